@@ -0,0 +1,137 @@
+package dk.br.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A directory of content, each file named by the SHA-256 digest of its content, for
+ * archived mails to reference their parts by. Content stored twice is kept once.
+ * <p>
+ * Files are kept in subdirectories by the first two hex digits of the digest, and are
+ * referenced as {@code blob:<hex digest>}. Files are written to a temporary file first and
+ * renamed when complete, so a file by its digest is always whole; the directory can be
+ * shared by threads and processes.
+ *
+ * @see MailMessageMarshaller#marshal(javax.mail.internet.MimeMessage, BlobSink)
+ * @see MailPartData#setBlobDirectory(BlobDirectory)
+ * @author osa
+ */
+public final class BlobDirectory implements BlobSink
+{
+  private final static Logger LOG = LoggerFactory.getLogger(BlobDirectory.class);
+
+  private final static String SCHEME = "blob:";
+  private final static Pattern REFERENCE = Pattern.compile("blob:(?<digest>[0-9a-f]{64})");
+
+  private final File dir;
+
+  /**
+   * @throws IOException  if the directory can't be created
+   */
+  public BlobDirectory(File dir)
+      throws IOException
+  {
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException(dir + ": cannot create blob directory");
+    this.dir = dir;
+  }
+
+  public File getDirectory()
+  {
+    return dir;
+  }
+
+  @Override
+  public String put(String contentType, InputStream content)
+      throws IOException
+  {
+    File tmp = File.createTempFile("blob", ".tmp", dir);
+    MessageDigest md = PartStore.newDigest();
+    try {
+      try (OutputStream os = new DigestOutputStream(new FileOutputStream(tmp), md)) {
+        IOUtils.copyLarge(content, os);
+      }
+
+      String digest = Hex.encodeHexString(md.digest());
+      File file = _file(digest);
+      if (file.isFile() && file.length() == tmp.length()) {
+        LOG.debug("{}: stored already", file);
+      }
+      else {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+          throw new IOException(parent + ": cannot create directory");
+        // Stored meanwhile by another thread or process, if the rename fails:
+        if (!tmp.renameTo(file) && file.length() != tmp.length())
+          throw new IOException(tmp + ": cannot rename to " + file);
+      }
+      return SCHEME + digest;
+    }
+    finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * @return  whether {@code ref} is a reference to a blob directory
+   */
+  static boolean isReference(String ref)
+  {
+    return ref != null && ref.startsWith(SCHEME);
+  }
+
+  /**
+   * @return  the SHA-256 digest of the content referenced
+   * @throws IOException  if not a valid reference
+   */
+  static byte[] digestOf(String ref)
+      throws IOException
+  {
+    Matcher m = REFERENCE.matcher(ref);
+    if (!m.matches())
+      throw new IOException("'" + ref + "': not a blob reference");
+    try {
+      return Hex.decodeHex(m.group("digest").toCharArray());
+    }
+    catch (DecoderException ex) {
+      // Mustn't happen
+      throw new IOException("'" + ref + "': " + ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   * @return  the file holding the content referenced
+   * @throws IOException  if not a valid reference, or not found
+   */
+  File file(String ref)
+      throws IOException
+  {
+    File file = _file(Hex.encodeHexString(digestOf(ref)));
+    if (!file.isFile())
+      throw new IOException("'" + ref + "': not found in " + dir);
+    return file;
+  }
+
+  private File _file(String digest)
+  {
+    return new File(new File(dir, digest.substring(0, 2)), digest);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[blobs " + dir + "]";
+  }
+}
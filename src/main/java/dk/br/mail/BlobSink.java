@@ -0,0 +1,26 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores the content of the related parts and attachments of mails being marshalled, for
+ * the XML to reference it rather than hold it. Implementations must be thread-safe.
+ *
+ * @see MailMessageMarshaller#marshal(javax.mail.internet.MimeMessage, BlobSink)
+ * @see BlobDirectory
+ * @author osa
+ */
+public interface BlobSink
+{
+  /**
+   * Stores {@code content}, read to its end, and left open.
+   *
+   * @param contentType  the base content type of the part
+   * @return  the reference to put in the {@code src} attribute of the part: a URL, or a
+   *          {@code blob:} reference to a {@link BlobDirectory}
+   * @throws  IOException  if the content cannot be stored
+   */
+  String put(String contentType, InputStream content)
+      throws IOException;
+}
@@ -0,0 +1,404 @@
+package dk.br.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * An immutable, compact form of a {@link MailMessageData}, for holding many mails queued in
+ * memory at a time.
+ * <p>
+ * Texts are kept as UTF-8, large bodies deflated (above {@code dk.br.mail.compact-deflate-bytes}).
+ * Addresses, headers and parts are kept in arrays, sized to fit. Addresses, header values
+ * and parts repeated from mail to mail of a batch (the sender, the bounce address, the logo)
+ * are kept once, when compacted by the same {@link Interner}.
+ * <p>
+ * Composing gives the very message the mail compacted would have given.
+ * <p>
+ * Instances are immutable but for their custom headers, e.g. the tracking headers set by
+ * queue and sender code, which are replaced copy-on-write.
+ *
+ * @author osa
+ */
+public final class CompactMailMessage
+     implements Serializable, MailMessageSource
+{
+  private static final long serialVersionUID = -2741836418016482371L;
+
+  // Bodies larger than this are deflated (0 = never):
+  private final static int DEFLATE_THRESHOLD = Integer.getInteger("dk.br.mail.compact-deflate-bytes", 4096);
+
+  private final static InternetAddress NO_ADDRESSES[] = {};
+  private final static String NO_STRINGS[] = {};
+  private final static MailPartSource NO_PARTS[] = {};
+
+  private final InternetAddress m_sender;
+  private final InternetAddress m_bounceTo;
+  private final InternetAddress m_from[];
+  private final InternetAddress m_replyTo[];
+  private final InternetAddress m_recipientsTo[];
+  private final InternetAddress m_recipientsCc[];
+  private final InternetAddress m_recipientsBcc[];
+  private final String m_messageID;
+  private final long m_sentDate;
+  private final String m_subject;
+  private final Body m_plainText;
+  private final Body m_htmlText;
+  private final MailPartSource m_alternative;
+  // Names and values, in the order of the headers of the mail compacted, replaced when set:
+  private volatile String m_customHeaders[];
+  private final String m_relatedIds[];
+  private final MailPartSource m_relatedBodyParts[];
+  private final MailPartSource m_attachments[];
+
+  private CompactMailMessage(MailMessageData mail, Interner interner)
+  {
+    m_sender = interner.address(mail.getSender());
+    m_bounceTo = interner.address(mail.getBounceAddress());
+    m_from = interner.addresses(mail.getFrom());
+    m_replyTo = interner.addresses(mail.getReplyTo());
+    m_recipientsTo = interner.addresses(mail.getRecipientsTo());
+    m_recipientsCc = interner.addresses(mail.getRecipientsCc());
+    m_recipientsBcc = interner.addresses(mail.getRecipientsBcc());
+    m_messageID = mail.getMessageID();
+    m_sentDate = mail.getSentDate() == null ? Long.MIN_VALUE : mail.getSentDate().getTime();
+    m_subject = interner.string(mail.getSubject());
+    m_plainText = Body.of(mail.getPlainBody());
+    m_htmlText = Body.of(mail.getHtmlBody());
+    m_alternative = interner.part(mail.getAlternativeBody());
+
+    Map<String,String> headers = mail.getCustomHeaders();
+    m_customHeaders = headers.isEmpty() ? NO_STRINGS : new String[2 * headers.size()];
+    int i = 0;
+    for (Map.Entry<String,String> e : headers.entrySet()) {
+      m_customHeaders[i++] = interner.string(e.getKey());
+      m_customHeaders[i++] = interner.string(e.getValue());
+    }
+
+    Map<String,MailPartSource> related = mail.getRelatedBodyParts();
+    m_relatedIds = related.isEmpty() ? NO_STRINGS : new String[related.size()];
+    m_relatedBodyParts = related.isEmpty() ? NO_PARTS : new MailPartSource[related.size()];
+    i = 0;
+    for (Map.Entry<String,MailPartSource> e : related.entrySet()) {
+      m_relatedIds[i] = interner.string(e.getKey());
+      m_relatedBodyParts[i++] = interner.part(e.getValue());
+    }
+
+    List<MailPartSource> attachments = mail.getAttachments();
+    m_attachments = attachments.isEmpty() ? NO_PARTS : new MailPartSource[attachments.size()];
+    i = 0;
+    for (MailPartSource attachment : attachments)
+      m_attachments[i++] = interner.part(attachment);
+  }
+
+  /**
+   * @return  {@code mail} compacted on its own
+   */
+  public static CompactMailMessage of(MailMessageData mail)
+  {
+    return new CompactMailMessage(mail, new Interner());
+  }
+
+  /**
+   * @return  {@code mail} compacted, sharing the values it has in common with the other
+   *          mails compacted by {@code interner}
+   */
+  public static CompactMailMessage of(MailMessageData mail, Interner interner)
+  {
+    return new CompactMailMessage(mail, interner);
+  }
+
+  /**
+   * @return  a mail of the same content, to be changed at will
+   */
+  public MailMessageData toMailMessageData()
+  {
+    MailMessageData mail = new MailMessageData();
+    // Addresses are copied, as they may be shared with the other mails of a batch:
+    if (m_sender != null)
+      mail.setSender(_copy(m_sender));
+    if (m_bounceTo != null)
+      mail.setBounceAddress(_copy(m_bounceTo));
+    for (InternetAddress a : m_from)
+      mail.addFrom(_copy(a));
+    for (InternetAddress a : m_replyTo)
+      mail.addReplyTo(_copy(a));
+    mail.addRecipientsTo(_copy(m_recipientsTo));
+    mail.addRecipientsCc(_copy(m_recipientsCc));
+    mail.addRecipientsBcc(_copy(m_recipientsBcc));
+    mail.setMessageID(m_messageID);
+    mail.setSentDate(getSentDate());
+    mail.setSubject(m_subject);
+    // Added in the order compacted, for the headers to be composed in that order:
+    String headers[] = m_customHeaders;
+    for (int i = 0; i < headers.length; i += 2)
+      mail.setCustomHeader(headers[i], headers[i + 1]);
+    mail.setPlainBody(getPlainBody());
+    mail.setHtmlBody(getHtmlBody());
+    mail.setAlternativeBody(m_alternative);
+    for (int i = 0; i < m_relatedIds.length; i++)
+      mail.addRelatedBodyPart(m_relatedIds[i], m_relatedBodyParts[i]);
+    for (MailPartSource attachment : m_attachments)
+      mail.attach(attachment);
+    return mail;
+  }
+
+  @Override
+  public MimeMessage compose(Session session, boolean failsafe)
+    throws MessagingException
+  {
+    return toMailMessageData().compose(session, failsafe);
+  }
+
+  @Override
+  public void composeTo(OutputStream os, Session session, boolean failsafe)
+    throws MessagingException, IOException
+  {
+    toMailMessageData().composeTo(os, session, failsafe);
+  }
+
+  @Override
+  public String getCustomHeader(String name)
+  {
+    String headers[] = m_customHeaders;
+    for (int i = 0; i < headers.length; i += 2)
+      if (headers[i].equals(name))
+        return headers[i + 1];
+    return null;
+  }
+
+  /**
+   * Sets a header, replacing the headers of this mail with a copy, leaving those shared
+   * with the other mails of a batch as they are.
+   */
+  @Override
+  public synchronized void setCustomHeader(String name, String value)
+  {
+    String headers[] = m_customHeaders;
+    for (int i = 0; i < headers.length; i += 2) {
+      if (headers[i].equals(name)) {
+        headers = headers.clone();
+        headers[i + 1] = value;
+        m_customHeaders = headers;
+        return;
+      }
+    }
+    headers = Arrays.copyOf(headers, headers.length + 2);
+    headers[headers.length - 2] = name;
+    headers[headers.length - 1] = value;
+    m_customHeaders = headers;
+  }
+
+  @Override
+  public String getSubject()
+  {
+    return m_subject;
+  }
+
+  public String getMessageID()
+  {
+    return m_messageID;
+  }
+
+  @Override
+  public Date getSentDate()
+  {
+    return m_sentDate == Long.MIN_VALUE ? null : new Date(m_sentDate);
+  }
+
+  public String getPlainBody()
+  {
+    return m_plainText == null ? null : m_plainText.text();
+  }
+
+  public String getHtmlBody()
+  {
+    return m_htmlText == null ? null : m_htmlText.text();
+  }
+
+  @Override
+  public InternetAddress getFirstRecipient()
+  {
+    return _copy(m_recipientsTo.length > 0 ? m_recipientsTo[0] :
+                 m_recipientsCc.length > 0 ? m_recipientsCc[0] :
+                 m_recipientsBcc.length > 0 ? m_recipientsBcc[0] : null);
+  }
+
+  @Override
+  public InternetAddress getFirstSender()
+  {
+    return _copy(m_from.length > 0 ? m_from[0] :
+                 m_sender != null ? m_sender : m_bounceTo);
+  }
+
+  @Override
+  public InternetAddress getBounceAddress()
+  {
+    return _copy(m_bounceTo);
+  }
+
+  /**
+   * @return  the number of bytes the bodies take up
+   */
+  int bodyBytes()
+  {
+    return (m_plainText == null ? 0 : m_plainText.content.length) + (m_htmlText == null ? 0 : m_htmlText.content.length);
+  }
+
+  private static InternetAddress _copy(InternetAddress address)
+  {
+    // Addresses are mutable, and may be shared with other mails:
+    return address == null ? null : (InternetAddress)address.clone();
+  }
+
+  private static InternetAddress[] _copy(InternetAddress addresses[])
+  {
+    InternetAddress res[] = new InternetAddress[addresses.length];
+    for (int i = 0; i < res.length; i++)
+      res[i] = _copy(addresses[i]);
+    return res;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[" + getFirstRecipient() + ": \"" + m_subject + "\"]";
+  }
+
+  /**
+   * A text body, as UTF-8, deflated if large.
+   */
+  private static class Body
+      implements Serializable
+  {
+    private static final long serialVersionUID = 6190584734022871736L;
+
+    private final byte content[];
+    // The length of the text as UTF-8, if deflated:
+    private final int inflatedLength;
+
+    private Body(byte content[], int inflatedLength)
+    {
+      this.content = content;
+      this.inflatedLength = inflatedLength;
+    }
+
+    static Body of(String text)
+    {
+      if (text == null)
+        return null;
+      byte utf8[] = text.getBytes(StandardCharsets.UTF_8);
+      if (DEFLATE_THRESHOLD <= 0 || utf8.length < DEFLATE_THRESHOLD)
+        return new Body(utf8, -1);
+
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(utf8);
+        deflater.finish();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(utf8.length / 4);
+        byte chunk[] = new byte[8192];
+        while (!deflater.finished() && bos.size() < utf8.length)
+          bos.write(chunk, 0, deflater.deflate(chunk));
+        // Kept as is, unless smaller deflated:
+        return deflater.finished() && bos.size() < utf8.length ? new Body(bos.toByteArray(), utf8.length) : new Body(utf8, -1);
+      }
+      finally {
+        deflater.end();
+      }
+    }
+
+    String text()
+    {
+      if (inflatedLength < 0)
+        return new String(content, StandardCharsets.UTF_8);
+
+      byte utf8[] = new byte[inflatedLength];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(content);
+        int n = 0;
+        while (n < utf8.length && !inflater.finished())
+          n += inflater.inflate(utf8, n, utf8.length - n);
+      }
+      catch (DataFormatException ex) {
+        // Mustn't happen
+        throw new RuntimeException(ex);
+      }
+      finally {
+        inflater.end();
+      }
+      return new String(utf8, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * The values of a batch of mails being compacted, for those repeated from mail to mail to
+   * be kept once. Not thread-safe; to be discarded with the batch.
+   */
+  public static class Interner
+  {
+    private final Map<String,String> strings = new HashMap();
+    private final Map<String,InternetAddress> addresses = new HashMap();
+    private final Map<MailPartSource,MailPartSource> parts = new HashMap();
+
+    String string(String s)
+    {
+      if (s == null)
+        return null;
+      String res = strings.putIfAbsent(s, s);
+      return res == null ? s : res;
+    }
+
+    InternetAddress address(InternetAddress address)
+    {
+      if (address == null)
+        return null;
+      // InternetAddress.equals() compares the addresses only:
+      String key = address.toString();
+      InternetAddress res = addresses.get(key);
+      if (res == null)
+        addresses.put(key, res = (InternetAddress)address.clone());
+      return res;
+    }
+
+    InternetAddress[] addresses(List<InternetAddress> addresses)
+    {
+      if (addresses.isEmpty())
+        return NO_ADDRESSES;
+      InternetAddress res[] = new InternetAddress[addresses.size()];
+      for (int i = 0; i < res.length; i++)
+        res[i] = address(addresses.get(i));
+      return res;
+    }
+
+    MailPartSource part(MailPartSource part)
+    {
+      if (part == null)
+        return null;
+      MailPartSource res = parts.putIfAbsent(part, part);
+      return res == null ? part : res;
+    }
+
+    /**
+     * @return  the number of distinct values kept
+     */
+    public int size()
+    {
+      return strings.size() + addresses.size() + parts.size();
+    }
+  }
+}
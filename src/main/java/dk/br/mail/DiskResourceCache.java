@@ -0,0 +1,512 @@
+package dk.br.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of fetched resources on disk, surviving restarts, bounded by the total size of
+ * its files.
+ * <p>
+ * Resources are appended, as records, to segment files of limited size. Each record holds
+ * the URL, the validators, the fetch time and content type, and the content, and is checked
+ * by a CRC. The index, from URL to record, is rebuilt from the segments when the cache is
+ * opened. Records torn by a crash fail their check, and are cut off. Room is made by
+ * deleting the oldest segment. Segments are memory-mapped for reading.
+ * <p>
+ * The directory is locked while open, and can't be shared between processes.
+ *
+ * @see MailPartData#setDiskCache(DiskResourceCache)
+ * @author osa
+ */
+public class DiskResourceCache implements Closeable
+{
+  private final static Logger LOG = LoggerFactory.getLogger(DiskResourceCache.class);
+
+  private final static int MAGIC = 0x4D505243;
+  private final static int HEADER_LENGTH = 12;
+  private final static long MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+  private final static Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+  private final File dir;
+  private final long maxBytes;
+  private final long segmentBytes;
+
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+
+  // Segments, oldest first:
+  private final TreeMap<Integer,Segment> segments = new TreeMap();
+  private final Map<String,Location> index = new LinkedHashMap();
+  private Segment active;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Opens the cache in {@code dir}, creating it if need be.
+   *
+   * @param maxBytes  the total size of the segment files to keep
+   * @throws IOException  if the directory can't be created, read or locked
+   */
+  public DiskResourceCache(File dir, long maxBytes)
+      throws IOException
+  {
+    if (maxBytes <= 0)
+      throw new IllegalArgumentException("size must be positive: " + maxBytes);
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException(dir + ": cannot create cache directory");
+
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = Math.max(1, Math.min(MAX_SEGMENT_BYTES, maxBytes / 4));
+
+    lockChannel = FileChannel.open(new File(dir, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock l = null;
+    try {
+      l = lockChannel.tryLock();
+    }
+    catch (OverlappingFileLockException ex) {
+      // Locked by this process
+    }
+    finally {
+      if (l == null)
+        lockChannel.close();
+    }
+    if (l == null)
+      throw new IOException(dir + ": in use by another process");
+    lock = l;
+
+    try {
+      _open();
+    }
+    catch (IOException | RuntimeException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  private void _open()
+      throws IOException
+  {
+    long t1 = System.currentTimeMillis();
+    File files[] = dir.listFiles();
+    for (File file : files == null ? new File[0] : files) {
+      Matcher m = SEGMENT_NAME.matcher(file.getName());
+      if (m.matches()) {
+        int number = Integer.parseInt(m.group(1));
+        segments.put(number, new Segment(number, file));
+      }
+    }
+
+    for (Segment segment : segments.values())
+      _scan(segment);
+    active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+    long t2 = System.currentTimeMillis();
+    LOG.info("{}: {} resource(s) in {} segment(s), {} bytes ({}ms)", dir, index.size(), segments.size(), getBytes(), t2-t1);
+  }
+
+  /**
+   * Indexes the records of a segment, cutting it off at the first record failing its check.
+   */
+  private void _scan(Segment segment)
+      throws IOException
+  {
+    long size = segment.channel.size();
+    ByteBuffer buffer = size == 0 ? ByteBuffer.allocate(0) : segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    long offset = 0;
+    while (offset + HEADER_LENGTH <= size) {
+      ((Buffer)buffer).position((int)offset);
+      int magic = buffer.getInt();
+      int length = buffer.getInt();
+      int crc = buffer.getInt();
+      if (magic != MAGIC || length < 0 || offset + HEADER_LENGTH + length > size)
+        break;
+
+      ByteBuffer body = buffer.slice();
+      ((Buffer)body).limit(length);
+      if (_crc(body.duplicate()) != crc)
+        break;
+
+      Record record = Record.read(body.duplicate(), false);
+      _index(record.key, new Location(segment, offset, length, record.etag, record.lastModified, record.fetchedAt));
+      offset += HEADER_LENGTH + length;
+    }
+
+    if (offset < size) {
+      LOG.warn("{}: corrupt or incomplete record at {}, {} byte(s) cut off", segment.file, offset, size - offset);
+      segment.channel.truncate(offset);
+    }
+    segment.size = offset;
+  }
+
+  private void _index(String key, Location location)
+  {
+    // Most recently stored last:
+    index.remove(key);
+    index.put(key, location);
+  }
+
+  private static int _crc(ByteBuffer body)
+  {
+    CRC32 crc = new CRC32();
+    byte chunk[] = new byte[8192];
+    while (body.hasRemaining()) {
+      int n = Math.min(chunk.length, body.remaining());
+      body.get(chunk, 0, n);
+      crc.update(chunk, 0, n);
+    }
+    return (int)crc.getValue();
+  }
+
+  /**
+   * @return  the resource stored under {@code key}, or {@code null}
+   */
+  synchronized Stored get(String key)
+  {
+    Location location = index.get(key);
+    if (location == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    try {
+      ByteBuffer body = location.segment.body(location.offset, location.length);
+      if (_crc(body.duplicate()) != location.segment.crc(location.offset)) {
+        LOG.warn("{}: record of {} at {} fails its check", location.segment.file, key, location.offset);
+        index.remove(key);
+        misses.incrementAndGet();
+        return null;
+      }
+      Record record = Record.read(body, true);
+      hits.incrementAndGet();
+      return new Stored(MailPartData.read(record.contentType, record.name, new MailPartData.ByteBufferInputStream(record.content)),
+                        record.etag, record.lastModified, record.fetchedAt);
+    }
+    catch (IOException ex) {
+      LOG.warn("{}: cannot read {} - {}", dir, key, ex.getMessage());
+      index.remove(key);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Stores a resource held on the heap. Others are left out.
+   */
+  synchronized void put(String key, MailPartData value, String etag, String lastModified, long fetchedAt)
+  {
+    if (value.weight() <= 0 || value.weight() > segmentBytes)
+      return;
+
+    try {
+      DataSource ds = value._source();
+      byte content[];
+      try (InputStream is = ds.getInputStream()) {
+        content = IOUtils.toByteArray(is);
+      }
+      Record record = new Record(key, etag, lastModified, fetchedAt, ds.getContentType(), ds.getName(), ByteBuffer.wrap(content));
+      byte body[] = record.toBytes();
+
+      if (active == null || active.size + HEADER_LENGTH + body.length > segmentBytes)
+        _roll();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.putInt(MAGIC).putInt(body.length).putInt(_crc(ByteBuffer.wrap(body)));
+      ((Buffer)header).flip();
+      long offset = active.size;
+      active.channel.write(new ByteBuffer[] { header, ByteBuffer.wrap(body) }, 0, 2);
+      active.size += HEADER_LENGTH + body.length;
+      _index(key, new Location(active, offset, body.length, etag, lastModified, fetchedAt));
+
+      _evict();
+    }
+    catch (IOException | MessagingException ex) {
+      LOG.warn("{}: cannot store {} - {}", dir, key, ex.getMessage());
+    }
+  }
+
+  private void _roll()
+      throws IOException
+  {
+    int number = active == null ? 1 : active.number + 1;
+    File file = new File(dir, String.format("segment-%06d.dat", number));
+    active = new Segment(number, file);
+    segments.put(number, active);
+  }
+
+  private void _evict()
+      throws IOException
+  {
+    while (getBytes() > maxBytes && segments.size() > 1) {
+      Segment oldest = segments.pollFirstEntry().getValue();
+      for (Iterator<Location> it = index.values().iterator(); it.hasNext(); )
+        if (it.next().segment == oldest)
+          it.remove();
+      oldest.close();
+      if (!oldest.file.delete())
+        LOG.warn("{}: cannot delete", oldest.file);
+      else
+        LOG.debug("{}: evicted", oldest.file);
+    }
+  }
+
+  /**
+   * @return  the keys of the resources stored, most recently stored first
+   */
+  public synchronized List<String> keys()
+  {
+    List<String> res = new ArrayList(index.keySet());
+    Collections.reverse(res);
+    return res;
+  }
+
+  public synchronized int size()
+  {
+    return index.size();
+  }
+
+  /**
+   * @return  the total size of the segment files
+   */
+  public synchronized long getBytes()
+  {
+    long res = 0;
+    for (Segment segment : segments.values())
+      res += segment.size;
+    return res;
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  public File getDirectory()
+  {
+    return dir;
+  }
+
+  @Override
+  public synchronized void close()
+      throws IOException
+  {
+    for (Segment segment : segments.values())
+      segment.close();
+    segments.clear();
+    index.clear();
+    active = null;
+    if (lock != null)
+      lock.release();
+    lockChannel.close();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[disk resource cache " + dir + ": " + size() + " entries, " + getBytes() + "/" + maxBytes + " bytes, " + hits.get() + " hits, " + misses.get() + " misses]";
+  }
+
+  /**
+   * A resource read back from disk.
+   */
+  static class Stored
+  {
+    final MailPartData value;
+    final String etag;
+    final String lastModified;
+    final long fetchedAt;
+
+    private Stored(MailPartData value, String etag, String lastModified, long fetchedAt)
+    {
+      this.value = value;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private static class Segment
+  {
+    private final int number;
+    private final File file;
+    private final FileChannel channel;
+    private long size;
+    private MappedByteBuffer mapped;
+
+    private Segment(int number, File file)
+        throws IOException
+    {
+      this.number = number;
+      this.file = file;
+      this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.channel.position(channel.size());
+    }
+
+    /**
+     * @return  the part of the segment holding a record, mapping the segment anew if it has
+     *          grown past it
+     */
+    private MappedByteBuffer _mapped(long end)
+        throws IOException
+    {
+      if (mapped == null || mapped.capacity() < end)
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      return mapped;
+    }
+
+    private ByteBuffer body(long offset, int length)
+        throws IOException
+    {
+      ByteBuffer buffer = _mapped(offset + HEADER_LENGTH + length).duplicate();
+      ((Buffer)buffer).position((int)offset + HEADER_LENGTH);
+      ByteBuffer body = buffer.slice();
+      ((Buffer)body).limit(length);
+      return body;
+    }
+
+    private int crc(long offset)
+        throws IOException
+    {
+      return _mapped(offset + HEADER_LENGTH).getInt((int)offset + 8);
+    }
+
+    private void close()
+        throws IOException
+    {
+      mapped = null;
+      channel.close();
+    }
+  }
+
+  private static class Location
+  {
+    private final Segment segment;
+    private final long offset;
+    private final int length;
+    private final String etag;
+    private final String lastModified;
+    private final long fetchedAt;
+
+    private Location(Segment segment, long offset, int length, String etag, String lastModified, long fetchedAt)
+    {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private static class Record
+  {
+    private final String key;
+    private final String etag;
+    private final String lastModified;
+    private final long fetchedAt;
+    private final String contentType;
+    private final String name;
+    private final ByteBuffer content;
+
+    private Record(String key, String etag, String lastModified, long fetchedAt, String contentType, String name, ByteBuffer content)
+    {
+      this.key = key;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.fetchedAt = fetchedAt;
+      this.contentType = contentType;
+      this.name = name;
+      this.content = content;
+    }
+
+    private byte[] toBytes()
+        throws IOException
+    {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(content.remaining() + 256);
+      DataOutputStream os = new DataOutputStream(bos);
+      os.writeUTF(key);
+      _writeNullable(os, etag);
+      _writeNullable(os, lastModified);
+      os.writeLong(fetchedAt);
+      _writeNullable(os, contentType);
+      _writeNullable(os, name);
+      os.writeInt(content.remaining());
+      os.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+      os.flush();
+      return bos.toByteArray();
+    }
+
+    private static Record read(ByteBuffer body, boolean withContent)
+        throws IOException
+    {
+      DataInputStream is = new DataInputStream(new MailPartData.ByteBufferInputStream(body));
+      String key = is.readUTF();
+      String etag = _readNullable(is);
+      String lastModified = _readNullable(is);
+      long fetchedAt = is.readLong();
+      String contentType = _readNullable(is);
+      String name = _readNullable(is);
+      ByteBuffer content = null;
+      if (withContent) {
+        // The stream reads the buffer through, without buffering ahead:
+        int length = is.readInt();
+        content = body.slice();
+        ((Buffer)content).limit(length);
+      }
+      return new Record(key, etag, lastModified, fetchedAt, contentType, name, content);
+    }
+
+    private static void _writeNullable(DataOutputStream os, String s)
+        throws IOException
+    {
+      os.writeBoolean(s != null);
+      if (s != null)
+        os.writeUTF(s);
+    }
+
+    private static String _readNullable(DataInputStream is)
+        throws IOException
+    {
+      return is.readBoolean() ? is.readUTF() : null;
+    }
+  }
+}
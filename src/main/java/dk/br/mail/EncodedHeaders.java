@@ -0,0 +1,64 @@
+package dk.br.mail;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Header values as encoded (RFC 2047) for the last many mails, as the subject and the
+ * sender of a batch repeat for every mail of it, and need not be encoded anew each time.
+ *
+ * @author osa
+ */
+final class EncodedHeaders
+{
+  private final static int MAX_ENTRIES = 4096;
+
+  private final static Map<String,String> TEXTS = new ConcurrentHashMap();
+  private final static Map<String,InternetAddress> ADDRESSES = new ConcurrentHashMap();
+
+  private EncodedHeaders()
+  {
+  }
+
+  /**
+   * @return  {@code text} encoded in UTF-8 as need be, and folded to follow the name of
+   *          its header
+   */
+  static String text(String name, String text)
+      throws UnsupportedEncodingException
+  {
+    String key = name + "\n" + text;
+    String res = TEXTS.get(key);
+    if (res == null) {
+      res = MimeUtility.fold(name.length() + 2, MimeUtility.encodeText(text, "UTF-8", null));
+      if (TEXTS.size() >= MAX_ENTRIES)
+        TEXTS.clear();
+      TEXTS.put(key, res);
+    }
+    return res;
+  }
+
+  /**
+   * @return  a validated address, its personal name encoded in the default MIME charset
+   * @throws AddressException  if {@code address} is not a valid address
+   */
+  static InternetAddress address(String address, String personal)
+      throws AddressException, UnsupportedEncodingException
+  {
+    String key = personal == null ? address : address + "\n" + personal;
+    InternetAddress res = ADDRESSES.get(key);
+    if (res == null) {
+      res = new InternetAddress(address, personal);
+      res.validate();
+      if (ADDRESSES.size() >= MAX_ENTRIES)
+        ADDRESSES.clear();
+      ADDRESSES.put(key, res);
+    }
+    // Addresses are mutable:
+    return (InternetAddress)res.clone();
+  }
+}
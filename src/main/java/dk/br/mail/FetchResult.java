@@ -0,0 +1,115 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The response of a {@link ResourceFetcher}.
+ *
+ * @author osa
+ */
+public class FetchResult implements Closeable
+{
+  private final URL url;
+  private final String contentType;
+  private final String contentEncoding;
+  private final InputStream content;
+  private final boolean notModified;
+  private final String etag;
+  private final String lastModified;
+
+  /**
+   * @param url              the URL fetched, after redirects
+   * @param contentEncoding  the encoding of {@code content}, e.g. "gzip", or {@code null}
+   *                         if not encoded
+   */
+  public FetchResult(URL url, String contentType, String contentEncoding, InputStream content)
+  {
+    this(url, contentType, contentEncoding, content, null, null);
+  }
+
+  /**
+   * @param etag          the "ETag" response header, or {@code null}
+   * @param lastModified  the "Last-Modified" response header, or {@code null}
+   */
+  public FetchResult(URL url, String contentType, String contentEncoding, InputStream content, String etag, String lastModified)
+  {
+    this(url, contentType, contentEncoding, content, false, etag, lastModified);
+  }
+
+  private FetchResult(URL url, String contentType, String contentEncoding, InputStream content, boolean notModified, String etag, String lastModified)
+  {
+    this.url = url;
+    this.contentType = contentType;
+    this.contentEncoding = contentEncoding;
+    this.content = content;
+    this.notModified = notModified;
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return  the response to a conditional fetch of content left unchanged
+   */
+  public static FetchResult notModified(URL url, String etag, String lastModified)
+  {
+    return new FetchResult(url, null, null, new ByteArrayInputStream(new byte[0]), true, etag, lastModified);
+  }
+
+  public URL getUrl()
+  {
+    return url;
+  }
+
+  public String getContentType()
+  {
+    return contentType;
+  }
+
+  public String getContentEncoding()
+  {
+    return contentEncoding;
+  }
+
+  public InputStream getContent()
+  {
+    return content;
+  }
+
+  /**
+   * @return  whether the content is unchanged since fetched with the validators given, see
+   *          {@link ResourceFetcher#fetch(URL, String, String)}
+   */
+  public boolean isNotModified()
+  {
+    return notModified;
+  }
+
+  public String getETag()
+  {
+    return etag;
+  }
+
+  public String getLastModified()
+  {
+    return lastModified;
+  }
+
+  /**
+   * @return  whether the content can be revalidated by a conditional fetch
+   */
+  public boolean hasValidators()
+  {
+    return etag != null || lastModified != null;
+  }
+
+  @Override
+  public void close()
+      throws IOException
+  {
+    content.close();
+  }
+}
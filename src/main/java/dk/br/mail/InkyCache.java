@@ -0,0 +1,174 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.commons.codec.binary.Hex;
+import org.w3c.dom.NodeList;
+
+/**
+ * A bounded, least-recently-used cache of Inky transformation output, keyed by a SHA-256
+ * hash of the canonical XML serialization of the <code>&lt;html-body&gt;</code> content
+ * and the transformation options.
+ * <p>
+ * Mails of a batch usually share their body verbatim, apart from the tracking token in
+ * tagged links, which {@link MailMessageParser} keeps out of the key. Such mails are
+ * transformed once.
+ *
+ * @author osa
+ */
+public class InkyCache
+{
+  private final int maxEntries;
+  private final Map<String,String> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxEntries  the number of transformed bodies to keep; zero disables caching
+   */
+  public InkyCache(final int maxEntries)
+  {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String,String>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,String> eldest)
+      {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Computes the cache key of a body.
+   */
+  static String key(NodeList nodeList, String encoding, boolean useCssInliner)
+    throws TransformerException
+  {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+    md.update((encoding + (useCssInliner ? "|inline|" : "|outline|")).getBytes(StandardCharsets.UTF_8));
+
+    Transformer s = SERIALIZERS.get();
+    StreamResult result = new StreamResult(new DigestOutputStream(NULL_OUTPUT, md));
+    for (int i = 0; i < nodeList.getLength(); i++)
+      s.transform(new DOMSource(nodeList.item(i)), result);
+
+    return Hex.encodeHexString(md.digest());
+  }
+
+  private final static ThreadLocal<Transformer> SERIALIZERS = ThreadLocal.withInitial(() -> _serializer());
+
+  private static Transformer _serializer()
+  {
+    try {
+      Transformer s = TransformerFactory.newInstance().newTransformer();
+      s.setOutputProperty(OutputKeys.METHOD, "xml");
+      s.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+      s.setOutputProperty(OutputKeys.INDENT, "no");
+      s.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      return s;
+    }
+    catch (TransformerConfigurationException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private final static OutputStream NULL_OUTPUT = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException
+    {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+    }
+  };
+
+  /**
+   * @return  the transformed body cached under {@code key}, or {@code null}
+   */
+  String get(String key)
+  {
+    String html;
+    synchronized (entries) {
+      html = entries.get(key);
+    }
+    (html == null ? misses : hits).incrementAndGet();
+    return html;
+  }
+
+  void put(String key, String html)
+  {
+    if (maxEntries <= 0)
+      return;
+    synchronized (entries) {
+      entries.put(key, html);
+    }
+  }
+
+  public boolean isEnabled()
+  {
+    return maxEntries > 0;
+  }
+
+  public int getMaxEntries()
+  {
+    return maxEntries;
+  }
+
+  public int size()
+  {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  /**
+   * Empties the cache and resets the hit/miss counters.
+   */
+  public void clear()
+  {
+    synchronized (entries) {
+      entries.clear();
+    }
+    hits.set(0);
+    misses.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[inky cache: " + size() + "/" + maxEntries + " entries, " + hits.get() + " hits, " + misses.get() + " misses]";
+  }
+}
@@ -3,6 +3,8 @@ package dk.br.mail;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -31,6 +33,24 @@ public class LinkTagger
     _init();
   }
 
+  /**
+   * @param domains   pre-compiled domain patterns, see {@link #compileDomainPatterns(String)}
+   */
+  public LinkTagger(Collection<Pattern> domains) {
+    _init();
+    taggedDomains.addAll(domains);
+  }
+
+  /**
+   * Copies the domain patterns and the current tag stack of {@code that}, e.g. to carry on
+   * tagging in another thread.
+   */
+  public LinkTagger(LinkTagger that) {
+    for (Map<String,String> frame : that.tags)
+      tags.add(new LinkedHashMap(frame));
+    taggedDomains.addAll(that.taggedDomains);
+  }
+
   private void _init() {
     pushFrame(); // never popped. Death by GC.
   }
@@ -156,11 +176,21 @@ public class LinkTagger
   }
 
   public void addTaggedDomains(String wcs) {
+    taggedDomains.addAll(compileDomainPatterns(wcs));
+  }
+
+  /**
+   * Compiles a white-space separated list of domain wildcards, e.g. "example.com *.example.com
+   * localhost:*", into patterns matching the <code>host[:port]</code> part of a URL.
+   */
+  public static List<Pattern> compileDomainPatterns(String wcs) {
+    List<Pattern> res = new ArrayList();
     for (String wc : wcs.split("\\s+")) {
       LOG.info("### [{}]: domain pattern", wc);
       String rx = wc.replaceAll("[^?*]+", "\\\\Q$0\\\\E").replaceAll("\\?", ".").replaceAll("\\*", ".*");
-      taggedDomains.add(Pattern.compile(rx));
+      res.add(Pattern.compile(rx));
     }
+    return res;
   }
 
   private boolean isAutoTagged(String domain) {
@@ -0,0 +1,536 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * A compact binary form of {@link MailMessageData}, for queueing mails between hosts, in
+ * place of Java serialization.
+ * <p>
+ * A stream starts with a header giving the format version and the size of the content
+ * window, followed by any number of mails. Numbers and lengths are varints, strings UTF-8.
+ * The content of each part is written once per stream: parts of content written already,
+ * and still in the window, are written as a reference to its SHA-256 digest. Both ends keep
+ * the window alike, evicting the least recently used content first, for every reference
+ * written to be found by the reader.
+ * <p>
+ * Remote resources go by their URL, to be fetched by the receiver; content of any other
+ * part goes inline, large content spilled to a file when read back (see
+ * {@link MailPartData#read(String, String, InputStream)}).
+ * <p>
+ * Writers and readers are not thread-safe.
+ *
+ * @author osa
+ */
+public final class MailMessageCodec
+{
+  public final static int VERSION = 1;
+
+  private final static int MAGIC = 0x4D4D4443;
+
+  private final static int DEFAULT_WINDOW_ENTRIES = 256;
+  private final static long DEFAULT_WINDOW_BYTES = 64 * 1024 * 1024;
+
+  // Fields present in a mail, as flags:
+  private final static int HAS_SENDER = 1;
+  private final static int HAS_BOUNCE_TO = 1 << 1;
+  private final static int HAS_MESSAGE_ID = 1 << 2;
+  private final static int HAS_SENT_DATE = 1 << 3;
+  private final static int HAS_SUBJECT = 1 << 4;
+  private final static int HAS_PLAIN_BODY = 1 << 5;
+  private final static int HAS_HTML_BODY = 1 << 6;
+  private final static int HAS_ALTERNATIVE = 1 << 7;
+
+  // Kinds of part:
+  private final static int PART_REMOTE = 0;
+  private final static int PART_CONTENT = 1;
+  private final static int PART_REFERENCE = 2;
+
+  private final static int DIGEST_LENGTH = 32;
+
+  private MailMessageCodec()
+  {
+  }
+
+  /**
+   * @return  {@code mail} encoded on its own, all content inline
+   */
+  public static byte[] encode(MailMessageData mail)
+      throws IOException
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (Writer w = new Writer(bos)) {
+      w.write(mail);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * @see #encode(MailMessageData)
+   */
+  public static MailMessageData decode(byte data[])
+      throws IOException
+  {
+    try (Reader r = new Reader(new ByteArrayInputStream(data))) {
+      MailMessageData res = r.read();
+      if (res == null)
+        throw new EOFException("no mail encoded");
+      return res;
+    }
+  }
+
+  /**
+   * Writes mails to a stream, each part of content written once.
+   */
+  public static class Writer
+      implements Closeable, Flushable
+  {
+    private final OutputStream out;
+    private final Window<Long> window;
+
+    public Writer(OutputStream out)
+        throws IOException
+    {
+      this(out, DEFAULT_WINDOW_ENTRIES, DEFAULT_WINDOW_BYTES);
+    }
+
+    /**
+     * @param windowEntries  the number of contents the reader is to keep for references
+     * @param windowBytes    the total size of the contents the reader is to keep
+     */
+    public Writer(OutputStream out, int windowEntries, long windowBytes)
+        throws IOException
+    {
+      this.out = out;
+      window = new Window(windowEntries, windowBytes);
+      _writeInt(MAGIC);
+      _writeVarint(VERSION);
+      _writeVarint(windowEntries);
+      _writeVarint(windowBytes);
+    }
+
+    public void write(MailMessageData mail)
+        throws IOException
+    {
+      int flags = 0;
+      if (mail.getSender() != null)
+        flags |= HAS_SENDER;
+      if (mail.getBounceAddress() != null)
+        flags |= HAS_BOUNCE_TO;
+      if (mail.getMessageID() != null)
+        flags |= HAS_MESSAGE_ID;
+      if (mail.getSentDate() != null)
+        flags |= HAS_SENT_DATE;
+      if (mail.getSubject() != null)
+        flags |= HAS_SUBJECT;
+      if (mail.getPlainBody() != null)
+        flags |= HAS_PLAIN_BODY;
+      if (mail.getHtmlBody() != null)
+        flags |= HAS_HTML_BODY;
+      if (mail.getAlternativeBody() != null)
+        flags |= HAS_ALTERNATIVE;
+      _writeVarint(flags);
+
+      if (mail.getSender() != null)
+        _writeAddress(mail.getSender());
+      if (mail.getBounceAddress() != null)
+        _writeAddress(mail.getBounceAddress());
+      _writeAddresses(mail.getFrom());
+      _writeAddresses(mail.getReplyTo());
+      _writeAddresses(mail.getRecipientsTo());
+      _writeAddresses(mail.getRecipientsCc());
+      _writeAddresses(mail.getRecipientsBcc());
+      if (mail.getMessageID() != null)
+        _writeString(mail.getMessageID());
+      if (mail.getSentDate() != null)
+        _writeVarint(mail.getSentDate().getTime());
+      if (mail.getSubject() != null)
+        _writeString(mail.getSubject());
+
+      Map<String,String> headers = mail.getCustomHeaders();
+      _writeVarint(headers.size());
+      for (Map.Entry<String,String> e : headers.entrySet()) {
+        _writeString(e.getKey());
+        _writeString(e.getValue());
+      }
+
+      if (mail.getPlainBody() != null)
+        _writeString(mail.getPlainBody());
+      if (mail.getHtmlBody() != null)
+        _writeString(mail.getHtmlBody());
+      if (mail.getAlternativeBody() != null)
+        _writePart(mail.getAlternativeBody());
+
+      Map<String,MailPartSource> related = mail.getRelatedBodyParts();
+      _writeVarint(related.size());
+      for (Map.Entry<String,MailPartSource> e : related.entrySet()) {
+        _writeString(e.getKey());
+        _writePart(e.getValue());
+      }
+
+      List<MailPartSource> attachments = mail.getAttachments();
+      _writeVarint(attachments.size());
+      for (MailPartSource attachment : attachments)
+        _writePart(attachment);
+    }
+
+    private void _writeAddresses(List<InternetAddress> addresses)
+        throws IOException
+    {
+      _writeVarint(addresses.size());
+      for (InternetAddress address : addresses)
+        _writeAddress(address);
+    }
+
+    private void _writeAddress(InternetAddress address)
+        throws IOException
+    {
+      _writeString(address.getAddress());
+      _writeNullable(address.getPersonal());
+    }
+
+    private void _writePart(MailPartSource src)
+        throws IOException
+    {
+      URL url = src instanceof MailPartData ? ((MailPartData)src).getSourceUrl() : null;
+      if (url != null) {
+        _writeVarint(PART_REMOTE);
+        _writeString(url.toString());
+        return;
+      }
+
+      MailPartData data = src instanceof MailPartData ? (MailPartData)src : null;
+      if (data == null || data.digest() == null) {
+        // Read into a part of known digest first:
+        try {
+          DataSource ds = src.getDataHandler().getDataSource();
+          try (InputStream is = ds.getInputStream()) {
+            data = MailPartData.read(ds.getContentType(), ds.getName(), is);
+          }
+        }
+        catch (MessagingException ex) {
+          throw new IOException("failed to read " + src, ex);
+        }
+      }
+
+      ByteBuffer digest = ByteBuffer.wrap(data.digest());
+      if (window.touch(digest) != null) {
+        _writeVarint(PART_REFERENCE);
+        _writeNullable(data.getContentType());
+        _writeNullable(data.getName());
+        out.write(data.digest());
+        return;
+      }
+
+      _writeVarint(PART_CONTENT);
+      _writeNullable(data.getContentType());
+      _writeNullable(data.getName());
+      _writeVarint(data.length());
+      try (InputStream is = data.getDataHandler().getInputStream()) {
+        IOUtils.copyLarge(is, out);
+      }
+      catch (MessagingException ex) {
+        throw new IOException("failed to read " + data, ex);
+      }
+      window.put(digest, data.length(), data.length());
+    }
+
+    private void _writeNullable(String s)
+        throws IOException
+    {
+      if (s == null) {
+        out.write(0);
+        return;
+      }
+      byte b[] = s.getBytes(StandardCharsets.UTF_8);
+      _writeVarint(b.length + 1L);
+      out.write(b);
+    }
+
+    private void _writeString(String s)
+        throws IOException
+    {
+      byte b[] = s.getBytes(StandardCharsets.UTF_8);
+      _writeVarint(b.length);
+      out.write(b);
+    }
+
+    private void _writeInt(int v)
+        throws IOException
+    {
+      out.write(v >>> 24);
+      out.write(v >>> 16);
+      out.write(v >>> 8);
+      out.write(v);
+    }
+
+    private void _writeVarint(long v)
+        throws IOException
+    {
+      while ((v & ~0x7fL) != 0) {
+        out.write((int)(v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      out.write((int)v);
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+      out.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads mails written by a {@link Writer}.
+   */
+  public static class Reader
+      implements Closeable
+  {
+    private final InputStream in;
+    private final Window<MailPartData> window;
+
+    public Reader(InputStream in)
+        throws IOException
+    {
+      this.in = in;
+      int magic = _readByte() << 24 | _readByte() << 16 | _readByte() << 8 | _readByte();
+      if (magic != MAGIC)
+        throw new IOException("not an encoded mail stream");
+      int version = (int)_readVarint();
+      if (version != VERSION)
+        throw new IOException("unsupported format version " + version + ", expected " + VERSION);
+      window = new Window((int)_readVarint(), _readVarint());
+    }
+
+    /**
+     * @return  the next mail, or {@code null} at the end of the stream
+     */
+    public MailMessageData read()
+        throws IOException
+    {
+      int first = in.read();
+      if (first < 0)
+        return null;
+      int flags = (int)_readVarint(first);
+
+      MailMessageData mail = new MailMessageData();
+      if ((flags & HAS_SENDER) != 0)
+        mail.setSender(_readAddress());
+      if ((flags & HAS_BOUNCE_TO) != 0)
+        mail.setBounceAddress(_readAddress());
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.addFrom(_readAddress());
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.addReplyTo(_readAddress());
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.addRecipientTo(_readAddress());
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.addRecipientCc(_readAddress());
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.addRecipientBcc(_readAddress());
+      if ((flags & HAS_MESSAGE_ID) != 0)
+        mail.setMessageID(_readString());
+      if ((flags & HAS_SENT_DATE) != 0)
+        mail.setSentDate(new Date(_readVarint()));
+      mail.setSubject((flags & HAS_SUBJECT) != 0 ? _readString() : null);
+
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.setCustomHeader(_readString(), _readString());
+
+      if ((flags & HAS_PLAIN_BODY) != 0)
+        mail.setPlainBody(_readString());
+      if ((flags & HAS_HTML_BODY) != 0)
+        mail.setHtmlBody(_readString());
+      if ((flags & HAS_ALTERNATIVE) != 0)
+        mail.setAlternativeBody(_readPart());
+
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.addRelatedBodyPart(_readString(), _readPart());
+      for (int n = (int)_readVarint(); n > 0; n--)
+        mail.attach(_readPart());
+      return mail;
+    }
+
+    private InternetAddress _readAddress()
+        throws IOException
+    {
+      String address = _readString();
+      String personal = _readNullable();
+      try {
+        return new InternetAddress(address, personal, "UTF-8");
+      }
+      catch (UnsupportedEncodingException ex) {
+        // Mustn't happen
+        throw new RuntimeException(ex);
+      }
+    }
+
+    private MailPartData _readPart()
+        throws IOException
+    {
+      int kind = (int)_readVarint();
+      switch (kind) {
+        case PART_REMOTE:
+          return MailPartData.remote(new URL(_readString()));
+
+        case PART_CONTENT: {
+          String contentType = _readNullable();
+          String name = _readNullable();
+          long length = _readVarint();
+          BoundedInputStream content = new BoundedInputStream(in, length);
+          content.setPropagateClose(false);
+          MailPartData res = MailPartData.read(contentType, name, content);
+          if (res.length() != length)
+            throw new EOFException("truncated content of " + res);
+          window.put(ByteBuffer.wrap(res.digest()), res, length);
+          return res;
+        }
+
+        case PART_REFERENCE: {
+          String contentType = _readNullable();
+          String name = _readNullable();
+          byte digest[] = new byte[DIGEST_LENGTH];
+          IOUtils.readFully(in, digest);
+          MailPartData res = window.touch(ByteBuffer.wrap(digest));
+          if (res == null)
+            throw new IOException("reference to content not in the window");
+          return res.rename(contentType, name);
+        }
+
+        default:
+          throw new IOException("unknown kind of part: " + kind);
+      }
+    }
+
+    private String _readNullable()
+        throws IOException
+    {
+      long length = _readVarint();
+      return length == 0 ? null : _readString(length - 1);
+    }
+
+    private String _readString()
+        throws IOException
+    {
+      return _readString(_readVarint());
+    }
+
+    private String _readString(long length)
+        throws IOException
+    {
+      if (length > Integer.MAX_VALUE)
+        throw new IOException(length + " bytes, too long for a string");
+      byte b[] = new byte[(int)length];
+      IOUtils.readFully(in, b);
+      return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private int _readByte()
+        throws IOException
+    {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException();
+      return b;
+    }
+
+    private long _readVarint()
+        throws IOException
+    {
+      return _readVarint(_readByte());
+    }
+
+    private long _readVarint(int b)
+        throws IOException
+    {
+      long res = 0;
+      for (int shift = 0; ; shift += 7) {
+        if (shift > 63)
+          throw new IOException("malformed varint");
+        res |= (long)(b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          return res;
+        b = _readByte();
+      }
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * The contents written (or read) lately, by digest, the least recently used evicted first.
+   * Writer and reader update theirs alike, for them to hold the same contents.
+   */
+  private static class Window<V>
+  {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<ByteBuffer,V> values = new LinkedHashMap(16, 0.75f, true);
+    private final Map<ByteBuffer,Long> lengths = new LinkedHashMap();
+    private long bytes;
+
+    private Window(int maxEntries, long maxBytes)
+    {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return  the value stored under {@code digest}, marked as used lately, or {@code null}
+     */
+    private V touch(ByteBuffer digest)
+    {
+      return values.get(digest);
+    }
+
+    private void put(ByteBuffer digest, V value, long length)
+    {
+      if (length > maxBytes || maxEntries <= 0)
+        return;
+      values.put(digest, value);
+      Long replaced = lengths.put(digest, length);
+      bytes += length - (replaced == null ? 0 : replaced);
+
+      Iterator<ByteBuffer> eldest = values.keySet().iterator();
+      while (values.size() > maxEntries || bytes > maxBytes) {
+        ByteBuffer key = eldest.next();
+        eldest.remove();
+        bytes -= lengths.remove(key);
+      }
+    }
+  }
+}
@@ -1,11 +1,15 @@
 package dk.br.mail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.mail.*;
@@ -43,10 +47,15 @@ public final class MailMessageData
   private String m_plainText;
   private String m_htmlText;
   private MailPartSource m_alternative;
-  private final Map<String,MailPartSource> m_relatedBodyParts = new HashMap();
+  // In the order added, for the one kept of parts of the same content to be the first:
+  private final Map<String,MailPartSource> m_relatedBodyParts = new LinkedHashMap();
   private final Map<String,String> m_customHeaders = new HashMap();
   private final List<MailPartSource> m_attachments = new LinkedList();
 
+  // The text bodies as last encoded:
+  private transient volatile PreEncodedPart m_encodedPlain;
+  private transient volatile PreEncodedPart m_encodedHtml;
+
   @Override
   public String getCustomHeader(String name)
   {
@@ -172,6 +181,51 @@ public final class MailMessageData
     m_alternative = altBody;
   }
 
+  MailPartSource getAlternativeBody()
+  {
+    return m_alternative;
+  }
+
+  Map<String,MailPartSource> getRelatedBodyParts()
+  {
+    return Collections.unmodifiableMap(m_relatedBodyParts);
+  }
+
+  Map<String,String> getCustomHeaders()
+  {
+    return Collections.unmodifiableMap(m_customHeaders);
+  }
+
+  List<MailPartSource> getAttachments()
+  {
+    return Collections.unmodifiableList(m_attachments);
+  }
+
+  InternetAddress getSender()
+  {
+    return m_sender;
+  }
+
+  List<InternetAddress> getReplyTo()
+  {
+    return Collections.unmodifiableList(m_replyTo);
+  }
+
+  List<InternetAddress> getRecipientsTo()
+  {
+    return Collections.unmodifiableList(m_recipientsTo);
+  }
+
+  List<InternetAddress> getRecipientsCc()
+  {
+    return Collections.unmodifiableList(m_recipientsCc);
+  }
+
+  List<InternetAddress> getRecipientsBcc()
+  {
+    return Collections.unmodifiableList(m_recipientsBcc);
+  }
+
   public void addRecipientTo(InternetAddress address)
   {
     m_recipientsTo.add(address);
@@ -251,6 +305,75 @@ public final class MailMessageData
     return new Composer(failsafe).compose(session);
   }
 
+  /**
+   * Writes the MIME message straight to {@code os}, without composing a {@code MimeMessage}
+   * first. Large parts are streamed from their source. As by the SMTP transport of
+   * javax.mail, there is no "Bcc" header; the "Bcc" recipients are left for the envelope.
+   */
+  @Override
+  public void composeTo(OutputStream os, Session session, boolean failsafe)
+    throws MessagingException, IOException
+  {
+    MimeStreamWriter w = new MimeStreamWriter(os);
+    try {
+      new Composer(failsafe).composeTo(w, session);
+    }
+    finally {
+      w.close();
+    }
+  }
+
+  /**
+   * Composes the body of this message once, for messages of the same body to share. The
+   * body is all but the headers: the text bodies, related parts and attachments, encoded.
+   *
+   * @see #compose(Session, SharedBody)
+   * @see #composeTo(OutputStream, Session, SharedBody)
+   */
+  public SharedBody shareBody(boolean failsafe)
+    throws MessagingException, IOException
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    MimeStreamWriter w = new MimeStreamWriter(bos);
+    try {
+      new Composer(failsafe).writeMessageTo(w);
+    }
+    finally {
+      w.close();
+    }
+    return SharedBody.of(bos.toByteArray());
+  }
+
+  /**
+   * Produces the MIME message of the headers of this message, and a body composed already.
+   * The body of this message, if any, is ignored.
+   */
+  public MimeMessage compose(Session session, SharedBody body)
+    throws MessagingException
+  {
+    MimeMessage message = body.newMessage(session);
+    new Composer(false).composeHeadersTo(message);
+    return message;
+  }
+
+  /**
+   * Writes the MIME message of the headers of this message, and a body composed already,
+   * straight to {@code os}, without a "Bcc" header. The body of this message, if any, is
+   * ignored.
+   */
+  public void composeTo(OutputStream os, Session session, SharedBody body)
+    throws MessagingException, IOException
+  {
+    MimeStreamWriter w = new MimeStreamWriter(os);
+    try {
+      new Composer(false).writeHeadersTo(w, session);
+      body.writeTo(w);
+    }
+    finally {
+      w.close();
+    }
+  }
+
   private class Composer {
     private final boolean failsafe;
 
@@ -267,7 +390,15 @@ public final class MailMessageData
       throws MessagingException
     {
       MimeMessage message = new MimeMessage(session);
+      composeHeadersTo(message);
+      composeMessageTo(message);
+
+      return message;
+    }
 
+    private void composeHeadersTo(MimeMessage message)
+      throws MessagingException
+    {
       if (m_sentDate != null)
         message.setSentDate(m_sentDate);
       message.addFrom(toAddressArray(m_from));
@@ -281,14 +412,112 @@ public final class MailMessageData
       message.addRecipients(Message.RecipientType.CC, toAddressArray(m_recipientsCc));
       message.addRecipients(Message.RecipientType.BCC, toAddressArray(m_recipientsBcc));
       if (m_subject != null)
-        message.setSubject(m_subject, "UTF-8");
+        message.setHeader("Subject", _encodedSubject());
 
       for (Map.Entry<String, String> e : m_customHeaders.entrySet())
         message.addHeader(e.getKey(), e.getValue());
+    }
 
-      composeMessageTo(message);
+    /**
+     * Writes the MIME message, as {@link #compose(Session)} composes it, and
+     * {@link MimeMessage#writeTo(OutputStream, String[])} writes that, without the
+     * {@link MailMessageSource#SMTP_IGNORE_HEADERS}.
+     */
+    public void composeTo(MimeStreamWriter w, Session session)
+      throws MessagingException, IOException
+    {
+      writeHeadersTo(w, session);
+      writeMessageTo(w);
+    }
 
-      return message;
+    /**
+     * Writes the message headers, leaving the custom headers to go after the content
+     * headers of the body.
+     */
+    private void writeHeadersTo(MimeStreamWriter w, Session session)
+      throws MessagingException, IOException
+    {
+      if (m_sentDate != null)
+        w.dateHeader("Date", m_sentDate);
+      w.addressHeader("From", m_from);
+      if (m_sender != null)
+        w.addressHeader("Sender", Collections.singletonList(m_sender));
+      w.addressHeader("Reply-To", m_replyTo);
+      w.addressHeader("To", m_recipientsTo);
+      w.addressHeader("Cc", m_recipientsCc);
+      w.header("Message-ID", MimeStreamWriter.messageId(session));
+      if (m_subject != null)
+        w.header("Subject", _encodedSubject());
+      w.header("MIME-Version", "1.0");
+
+      for (Map.Entry<String, String> e : m_customHeaders.entrySet())
+        w.trailingHeader(e.getKey(), e.getValue());
+    }
+
+    /**
+     * @return  the subject, encoded as by {@link MimeMessage#setSubject(String, String)}
+     */
+    private String _encodedSubject()
+      throws MessagingException
+    {
+      try {
+        return EncodedHeaders.text("Subject", m_subject);
+      }
+      catch (UnsupportedEncodingException ex) {
+        throw new MessagingException("failed to encode subject", ex);
+      }
+    }
+
+    private void writeMessageTo(MimeStreamWriter w)
+      throws MessagingException, IOException
+    {
+      if (m_attachments.isEmpty())
+      {
+        writeBodyTo(w);
+        return;
+      }
+
+      String boundary = w.startMultipart("mixed");
+      w.boundary(boundary);
+      writeBodyTo(w);
+      w.writeln();
+      for (MailPartSource data : m_attachments)
+      {
+        w.boundary(boundary);
+        writeAttachmentTo(w, data);
+        w.writeln();
+      }
+      w.endMultipart(boundary);
+    }
+
+    private void writeAttachmentTo(MimeStreamWriter w, MailPartSource src)
+      throws MessagingException, IOException
+    {
+      PreEncodedPart encoded;
+      DataHandler dh;
+      try
+      {
+        encoded = _preEncoded(src);
+        dh = encoded == null ? src.getDataHandler() : null;
+      }
+      catch (MessagingException ex)
+      {
+        if (!failsafe)
+          throw ex;
+
+        LOG.error("failed to compose attachment {}", src, ex);
+        w.trailingHeader("Content-Disposition", Part.ATTACHMENT);
+        w.text(_failureText(src, ex), "text/plain");
+        return;
+      }
+
+      String name = encoded == null ? dh.getName() : encoded.getName();
+      if (name == null)
+        w.trailingHeader("Content-Disposition", Part.ATTACHMENT);
+      if (encoded != null)
+        w.preEncoded(encoded, name);
+      else
+        w.data(dh.getDataSource(), name);
     }
 
     private void composeMessageTo(Part target)
@@ -328,10 +557,18 @@ public final class MailMessageData
     {
       try
       {
-        MimeBodyPart attachment = new MimeBodyPart();
-        DataHandler dh = src.getDataHandler();
-        attachment.setDataHandler(dh);
-        attachment.setFileName(dh.getName());
+        MimeBodyPart attachment;
+        PreEncodedPart encoded = _preEncoded(src);
+        if (encoded != null) {
+          attachment = encoded.toBodyPart();
+          attachment.setFileName(encoded.getName());
+        }
+        else {
+          attachment = new MimeBodyPart();
+          DataHandler dh = src.getDataHandler();
+          attachment.setDataHandler(dh);
+          attachment.setFileName(dh.getName());
+        }
         attachment.setDisposition(Part.ATTACHMENT);
         return attachment;
       }
@@ -343,21 +580,53 @@ public final class MailMessageData
         LOG.error("failed to compose attachment {}", src, ex);
 
         // Giving up. Attach error message instead:
-        StringWriter w = new StringWriter();
-        PrintWriter text = new PrintWriter(w);
-        text.println("# ========");
-        text.println("# Failed to compose attachment " + src);
-        text.println("# Server stack trace follows:");
-        ex.printStackTrace(text);
-        text.println("# ========");
-
         MimeBodyPart attachment = new MimeBodyPart();
-        attachment.setText(w.toString());
+        attachment.setText(_failureText(src, ex));
         attachment.setDisposition(Part.ATTACHMENT);
         return attachment;
       }
     }
 
+    /**
+     * @return  a text body, encoded as when last composed, if the text is the same
+     */
+    private PreEncodedPart _encodedText(String text, String contentType)
+      throws MessagingException
+    {
+      boolean html = MailMessageData.MIME_TYPE_HTML.equals(contentType);
+      PreEncodedPart res = html ? m_encodedHtml : m_encodedPlain;
+      if (res == null || !res.encodes(text)) {
+        res = PreEncodedPart.text(text, contentType);
+        if (html)
+          m_encodedHtml = res;
+        else
+          m_encodedPlain = res;
+      }
+      return res;
+    }
+
+    /**
+     * @return  the content of a part, as encoded once for every mail it goes into, or
+     *          {@code null} if to be encoded as it is written
+     */
+    private PreEncodedPart _preEncoded(MailPartSource src)
+      throws MessagingException
+    {
+      return src instanceof MailPartData ? ((MailPartData)src).resolve().preEncoded() : null;
+    }
+
+    private String _failureText(MailPartSource src, MessagingException ex)
+    {
+      StringWriter w = new StringWriter();
+      PrintWriter text = new PrintWriter(w);
+      text.println("# ========");
+      text.println("# Failed to compose attachment " + src);
+      text.println("# Server stack trace follows:");
+      ex.printStackTrace(text);
+      text.println("# ========");
+      return w.toString();
+    }
+
     private void composeBodyTo(Part target)
       throws MessagingException
     {
@@ -386,20 +655,25 @@ public final class MailMessageData
         MimeMultipart alternatives = new MimeMultipart("alternative");
 
         if (m_plainText != null) {
-          BodyPart plainPart = new MimeBodyPart();
-          plainPart.setContent(m_plainText, MailMessageData.MIME_TYPE_PLAIN);
+          BodyPart plainPart = _encodedText(m_plainText, MailMessageData.MIME_TYPE_PLAIN).toBodyPart();
           alternatives.addBodyPart(plainPart);
         }
 
-        if (m_htmlText != null) {
+        if (m_htmlText != null && m_relatedBodyParts.isEmpty()) {
+          BodyPart htmlPart = _encodedText(m_htmlText, MailMessageData.MIME_TYPE_HTML).toBodyPart();
+          alternatives.addBodyPart(htmlPart);
+        }
+        else if (m_htmlText != null) {
           BodyPart htmlPart = new MimeBodyPart();
           composeHtmlBodyTo(htmlPart);
           alternatives.addBodyPart(htmlPart);
         }
 
         if (m_alternative != null) {
-          BodyPart altPart = new MimeBodyPart();
-          composeAlternativeTo(altPart);
+          PreEncodedPart encoded = _preEncoded(m_alternative);
+          BodyPart altPart = encoded == null ? new MimeBodyPart() : encoded.toBodyPart();
+          if (encoded == null)
+            composeAlternativeTo(altPart);
           alternatives.addBodyPart(altPart);
         }
 
@@ -407,6 +681,63 @@ public final class MailMessageData
       }
     }
 
+    /**
+     * Writes the body part(s), as {@link #composeBodyTo(Part)} composes them.
+     */
+    private void writeBodyTo(MimeStreamWriter w)
+      throws MessagingException, IOException
+    {
+      if (m_htmlText == null && m_plainText == null && m_alternative == null)
+        m_plainText = "";
+
+      if (m_htmlText == null && m_alternative == null)
+      {
+        w.preEncoded(_encodedText(m_plainText, MailMessageData.MIME_TYPE_PLAIN), null);
+      }
+      else if (m_plainText == null && m_alternative == null)
+      {
+        writeHtmlBodyTo(w);
+      }
+      else if (m_htmlText == null && m_plainText == null)
+      {
+        writeAlternativeTo(w);
+      }
+      else
+      {
+        String boundary = w.startMultipart("alternative");
+
+        if (m_plainText != null) {
+          w.boundary(boundary);
+          w.preEncoded(_encodedText(m_plainText, MailMessageData.MIME_TYPE_PLAIN), null);
+          w.writeln();
+        }
+
+        if (m_htmlText != null) {
+          w.boundary(boundary);
+          writeHtmlBodyTo(w);
+          w.writeln();
+        }
+
+        if (m_alternative != null) {
+          w.boundary(boundary);
+          writeAlternativeTo(w);
+          w.writeln();
+        }
+
+        w.endMultipart(boundary);
+      }
+    }
+
+    private void writeAlternativeTo(MimeStreamWriter w)
+      throws MessagingException, IOException
+    {
+      PreEncodedPart encoded = _preEncoded(m_alternative);
+      if (encoded != null)
+        w.preEncoded(encoded, null);
+      else
+        w.data(m_alternative.getDataHandler().getDataSource(), null);
+    }
+
     /**
      * Generates the Plain/text MIME part.
      */
@@ -445,22 +776,24 @@ public final class MailMessageData
         return;
       }
 
+      Map<String,MailPartSource> uniqueParts = new LinkedHashMap();
+      String htmlText = resolveRelatedParts(relatedParts, uniqueParts);
+
       // HTML part has one or more related parts associated:
       MimeMultipart related = new MimeMultipart("related");
-      BodyPart htmlPart = new MimeBodyPart();
-      htmlPart.setContent(m_htmlText, MailMessageData.MIME_TYPE_HTML);
+      BodyPart htmlPart = _encodedText(htmlText, MailMessageData.MIME_TYPE_HTML).toBodyPart();
       related.addBodyPart(htmlPart);
-      do
+      for (Map.Entry<String,MailPartSource> e : uniqueParts.entrySet())
       {
-        Map.Entry e = (Map.Entry)relatedParts.next();
-        String partId = (String)e.getKey();
-        MailPartSource res = (MailPartSource)e.getValue();
+        String partId = e.getKey();
+        MailPartSource res = e.getValue();
         LOG.debug("attaching related MIME-part <{}>: {}", partId, res);
 
-        BodyPart relatedBodyPart = new MimeBodyPart();
         try {
-          DataHandler dh = res.getDataHandler();
-          relatedBodyPart.setDataHandler(dh);
+          PreEncodedPart encoded = _preEncoded(res);
+          BodyPart relatedBodyPart = encoded == null ? new MimeBodyPart() : encoded.toBodyPart();
+          if (encoded == null)
+            relatedBodyPart.setDataHandler(res.getDataHandler());
           relatedBodyPart.setHeader("Content-ID", "<" + partId + ">");
           relatedBodyPart.setDisposition(Part.INLINE);
           related.addBodyPart(relatedBodyPart);
@@ -474,11 +807,118 @@ public final class MailMessageData
             throw ex;
           }
         }
-      } while (relatedParts.hasNext());
+      }
 
       target.setContent(related);
     }
 
+    /**
+     * Writes the HTML MIME part, as {@link #composeHtmlBodyTo(Part)} composes it.
+     */
+    private void writeHtmlBodyTo(MimeStreamWriter w)
+      throws MessagingException, IOException
+    {
+      Iterator relatedParts = m_relatedBodyParts.entrySet().iterator();
+      if (!relatedParts.hasNext())
+      {
+        w.preEncoded(_encodedText(m_htmlText, MailMessageData.MIME_TYPE_HTML), null);
+        return;
+      }
+
+      Map<String,MailPartSource> uniqueParts = new LinkedHashMap();
+      String htmlText = resolveRelatedParts(relatedParts, uniqueParts);
+
+      String boundary = w.startMultipart("related");
+      w.boundary(boundary);
+      w.preEncoded(_encodedText(htmlText, MailMessageData.MIME_TYPE_HTML), null);
+      w.writeln();
+      for (Map.Entry<String,MailPartSource> e : uniqueParts.entrySet())
+      {
+        String partId = e.getKey();
+        MailPartSource res = e.getValue();
+        LOG.debug("writing related MIME-part <{}>: {}", partId, res);
+
+        PreEncodedPart encoded;
+        DataHandler dh;
+        try {
+          encoded = _preEncoded(res);
+          dh = encoded == null ? res.getDataHandler() : null;
+        }
+        catch (MessagingException ex) {
+          if (failsafe) {
+            LOG.error("failed to attach MIME-part <{}>: {}", partId, res, ex);
+            continue;
+          }
+          else {
+            LOG.warn("{} - failed to attach MIME-part <{}>: {}", ex.getMessage(), partId, res);
+            throw ex;
+          }
+        }
+
+        w.boundary(boundary);
+        w.trailingHeader("Content-ID", "<" + partId + ">");
+        w.trailingHeader("Content-Disposition", Part.INLINE);
+        if (encoded != null)
+          w.preEncoded(encoded, null);
+        else
+          w.data(dh.getDataSource(), null);
+        w.writeln();
+      }
+      w.endMultipart(boundary);
+    }
+
+    /**
+     * Resolves the related parts first, as parts of identical content (the same image, by
+     * different URLs, say) are known only then. These go in once, under the Content-ID of the
+     * one added first.
+     *
+     * @return  the HTML text, referring to the parts kept only
+     */
+    private String resolveRelatedParts(Iterator relatedParts, Map<String,MailPartSource> uniqueParts)
+      throws MessagingException
+    {
+      String htmlText = m_htmlText;
+      Map<String,String> partIdsByContent = new HashMap();
+      do
+      {
+        Map.Entry e = (Map.Entry)relatedParts.next();
+        String partId = (String)e.getKey();
+        MailPartSource res = (MailPartSource)e.getValue();
+        try {
+          if (res instanceof MailPartData)
+            res = ((MailPartData)res).resolve();
+        }
+        catch (MessagingException ex) {
+          if (failsafe) {
+            LOG.error("failed to attach MIME-part <{}>: {}", partId, res, ex);
+            continue;
+          }
+          else {
+            LOG.warn("{} - failed to attach MIME-part <{}>: {}", ex.getMessage(), partId, res);
+            throw ex;
+          }
+        }
+
+        String contentKey = res instanceof MailPartData ? ((MailPartData)res).contentKey() : null;
+        String keptId = contentKey == null ? null : partIdsByContent.get(contentKey);
+        if (keptId != null) {
+          LOG.debug("MIME-part <{}> same as <{}>", partId, keptId);
+          htmlText = _replaceContentId(htmlText, partId, keptId);
+          continue;
+        }
+        if (contentKey != null)
+          partIdsByContent.put(contentKey, partId);
+        uniqueParts.put(partId, res);
+      } while (relatedParts.hasNext());
+      return htmlText;
+    }
+
+    private String _replaceContentId(String htmlText, String partId, String keptId)
+    {
+      // Not matching "cid:part.1" within "cid:part.12":
+      Pattern p = Pattern.compile(Pattern.quote("cid:" + partId) + "(?![^\"'()\\s>])");
+      return p.matcher(htmlText).replaceAll(Matcher.quoteReplacement("cid:" + keptId));
+    }
   }
 
 
@@ -3,7 +3,12 @@ package dk.br.mail;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -22,7 +27,11 @@ import javax.mail.internet.MimeMultipart;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jsoup.helper.W3CDom;
@@ -31,6 +40,7 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 /**
@@ -42,31 +52,106 @@ public class MailMessageMarshaller
 
   public static Document marshal(MimeMessage msg) throws MessagingException
   {
+    return marshal(msg, (BlobSink)null);
+  }
+
+  /**
+   * Marshals {@code msg}, the content of its related parts and attachments stored in
+   * {@code blobs} rather than inlined as base64. Each {@code <related>} and
+   * {@code <attachment>} gets the reference to its content as {@code src}, and the SHA-256
+   * digest of it, in hex, as {@code sha256}.
+   *
+   * @param blobs  where to store content, or {@code null} for inlining it
+   * @see MailPartData#setBlobDirectory(BlobDirectory)
+   */
+  public static Document marshal(MimeMessage msg, BlobSink blobs) throws MessagingException
+  {
+    Document doc = DOCUMENT_BUILDERS.get().newDocument();
+    Element e = doc.createElement("email");
+    new MailMessageMarshaller(blobs).digestMail(e, msg);
+    doc.appendChild(e);
+    return doc;
+  }
+
+  /**
+   * Writes the {@code <email>} of {@link #marshal(MimeMessage)} to {@code os}, as an XML
+   * document in UTF-8, without building it in memory first. The stream is left open.
+   *
+   * @see #marshal(MimeMessage, XMLStreamWriter)
+   */
+  public static void marshal(MimeMessage msg, OutputStream os) throws MessagingException, IOException
+  {
+    marshal(msg, os, null);
+  }
+
+  /**
+   * Writes the {@code <email>} of {@link #marshal(MimeMessage, BlobSink)} to {@code os}.
+   *
+   * @see #marshal(MimeMessage, OutputStream)
+   */
+  public static void marshal(MimeMessage msg, OutputStream os, BlobSink blobs) throws MessagingException, IOException
+  {
+    try
+    {
+      XMLStreamWriter w = XML_OUTPUT.createXMLStreamWriter(os, "UTF-8");
+      w.writeStartDocument("UTF-8", "1.0");
+      marshal(msg, w, blobs);
+      w.writeEndDocument();
+      w.flush();
+      // Leaves the stream open:
+      w.close();
+    }
+    catch (XMLStreamException ex)
+    {
+      throw new IOException("failed to write <email>", ex);
+    }
+  }
+
+  /**
+   * Writes the {@code <email>} element of {@link #marshal(MimeMessage)} to {@code w}. The
+   * content of non-text parts is read, and written as base64, a chunk at a time, rather
+   * than held in memory whole.
+   */
+  public static void marshal(MimeMessage msg, XMLStreamWriter w) throws MessagingException, IOException, XMLStreamException
+  {
+    marshal(msg, w, null);
+  }
+
+  /**
+   * Writes the {@code <email>} element of {@link #marshal(MimeMessage, BlobSink)} to {@code w}.
+   */
+  public static void marshal(MimeMessage msg, XMLStreamWriter w, BlobSink blobs) throws MessagingException, IOException, XMLStreamException
+  {
+    w.writeStartElement("email");
+    new MailMessageMarshaller(blobs).writeMail(w, msg);
+    w.writeEndElement();
+  }
+
+  private final static XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newInstance();
+
+  // Neither builders nor date formats are thread-safe, and builders are costly to make:
+  private final static ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = ThreadLocal.withInitial(() -> {
     DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    DocumentBuilder db;
     dbf.setNamespaceAware(true);
     try
     {
-      db = dbf.newDocumentBuilder();
+      return dbf.newDocumentBuilder();
     }
     catch (ParserConfigurationException ex)
     {
       throw new RuntimeException(ex);
     }
+  });
+  private final static ThreadLocal<DateFormat> ISO8601_TS = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ"));
+  private final static W3CDom W3C_DOM = new W3CDom();
 
-    Document doc = db.newDocument();
-    Element e = doc.createElement("email");
-    new MailMessageMarshaller().digestMail(e, msg);
-    doc.appendChild(e);
-    return doc;
-  }
+  private final BlobSink m_blobs;
 
-  private MailMessageMarshaller()
+  private MailMessageMarshaller(BlobSink blobs)
   {
+    m_blobs = blobs;
   }
 
-  private final static DateFormat ISO8601_TS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-
   private void digestMail(Element m, Message msg) throws MessagingException
   {
     for (String mid : msg.getHeader("Message-ID"))
@@ -96,8 +181,212 @@ public class MailMessageMarshaller
     }
   }
 
+  /**
+   * Writes the content of the {@code <email>} element, as {@link #digestMail(Element, Message)}
+   * adds it.
+   */
+  private void writeMail(XMLStreamWriter w, Message msg) throws MessagingException, IOException, XMLStreamException
+  {
+    String mids[] = msg.getHeader("Message-ID");
+    for (String mid : mids == null ? new String[0] : mids)
+      _writeText(w, "message-id", mid);
+    _writeDate(w, "sent", msg.getSentDate());
+    _writeDate(w, "received", msg.getReceivedDate());
+
+    _writeText(w, "subject", msg.getSubject());
+    w.writeStartElement("addresses");
+    for (Address a : _NVL(msg.getFrom()))
+      _writeAddress(w, "from", (InternetAddress)a);
+    if (!Arrays.equals(msg.getFrom(), msg.getReplyTo()))
+      for (Address a : _NVL(msg.getReplyTo()))
+        _writeAddress(w, "reply-to", (InternetAddress)a);
+    for (Address a : _NVL(msg.getRecipients(Message.RecipientType.TO)))
+      _writeAddress(w, "to", (InternetAddress)a);
+    for (Address a : _NVL(msg.getRecipients(Message.RecipientType.CC)))
+      _writeAddress(w, "cc", (InternetAddress)a);
+    w.writeEndElement();
+
+    _writePart(w, msg);
+  }
+
   private static final Pattern CID_PATTERN = Pattern.compile("<(?<cid>.*)>");
 
+  /**
+   * Writes a part, as {@link #_digestPart(Element, Part)} adds it.
+   */
+  private void _writePart(XMLStreamWriter w, Part p) throws MessagingException, IOException, XMLStreamException
+  {
+    if (p.isMimeType("multipart/alternative") || p.isMimeType("multipart/related") || p.isMimeType("multipart/mixed"))
+    {
+      MimeMultipart mm = (MimeMultipart)p.getContent();
+      for (int i = 0; i < mm.getCount(); i++)
+        _writePart(w, mm.getBodyPart(i));
+    }
+    else if (p.isMimeType("text/html"))
+    {
+      String htmlBody = _CRLF((String)p.getContent());
+      Document htmlDoc = _parseHtml(htmlBody);
+      w.writeStartElement("html-body");
+      _writeNode(w, htmlDoc.getDocumentElement(), null);
+      w.writeEndElement();
+    }
+    else if (p.isMimeType("text/plain"))
+    {
+      String plainbody = _CRLF((String)p.getContent());
+      _writeCData(w, "plain-body", plainbody);
+    }
+    else if (p instanceof MimeBodyPart)
+    {
+      MimeBodyPart mbp = (MimeBodyPart)p;
+
+      ContentType type = new ContentType(mbp.getContentType());
+      String disposition = mbp.getDisposition();
+      String contentID = mbp.getContentID();
+      if (contentID != null) {
+        w.writeStartElement("related");
+        Matcher cid = CID_PATTERN.matcher(contentID);
+        if (cid.matches())
+          w.writeAttribute("id", cid.group("cid"));
+        if (m_blobs != null)
+          _writeBlob(w, mbp, type);
+        _writeText(w, "type", type.getBaseType());
+        _writeText(w, "disposition", disposition);
+        if (m_blobs == null) {
+          try (PushbackInputStream is = new PushbackInputStream(mbp.getInputStream())) {
+            // No <content> for no content:
+            int first = is.read();
+            if (first >= 0) {
+              is.unread(first);
+              w.writeStartElement("content");
+              writeBase64(w, is);
+              w.writeEndElement();
+            }
+          }
+        }
+        w.writeEndElement();
+      }
+      else if (disposition != null && disposition.startsWith("attachment")) {
+        LOG.info("attaching {} {}", type, disposition);
+        w.writeStartElement("attachment");
+        w.writeAttribute("type", type.getBaseType());
+        if (type.getParameter("name") != null)
+          w.writeAttribute("name", type.getParameter("name"));
+        if (m_blobs != null) {
+          _writeBlob(w, mbp, type);
+        }
+        else {
+          try (InputStream is = mbp.getInputStream()) {
+            writeBase64(w, is);
+          }
+        }
+        w.writeEndElement();
+      }
+      else {
+        LOG.info("'{}' (Content-Disposition: {}) {} with null Content-ID - ignored", type, disposition, p.getClass().getName());
+      }
+    }
+    else
+    {
+      LOG.info("'{}' {} ignored", p.getContentType(), p.getClass().getName());
+    }
+  }
+
+  /**
+   * Stores the content of a part in the blob sink.
+   *
+   * @return  the reference to the content
+   */
+  private String _putBlob(MimeBodyPart mbp, ContentType type, MessageDigest md) throws MessagingException, IOException
+  {
+    try (InputStream is = new DigestInputStream(mbp.getInputStream(), md)) {
+      String src = m_blobs.put(type.getBaseType(), is);
+      // Digesting whatever the sink left unread:
+      IOUtils.consume(is);
+      return src;
+    }
+  }
+
+  private void _addBlob(Element e, MimeBodyPart mbp, ContentType type) throws MessagingException, IOException
+  {
+    MessageDigest md = PartStore.newDigest();
+    e.setAttribute("src", _putBlob(mbp, type, md));
+    e.setAttribute("sha256", Hex.encodeHexString(md.digest()));
+  }
+
+  private void _writeBlob(XMLStreamWriter w, MimeBodyPart mbp, ContentType type) throws MessagingException, IOException, XMLStreamException
+  {
+    MessageDigest md = PartStore.newDigest();
+    w.writeAttribute("src", _putBlob(mbp, type, md));
+    w.writeAttribute("sha256", Hex.encodeHexString(md.digest()));
+  }
+
+  // Whole lines of base64 (76 characters) to a chunk:
+  private final static int BASE64_CHUNK = 57 * 1024;
+
+  /**
+   * Writes content as base64, in lines of 76 characters, as by
+   * {@code Base64.encodeBase64(content, true)}, but a chunk at a time, each chunk a CDATA
+   * section of its own.
+   */
+  static void writeBase64(XMLStreamWriter w, InputStream is) throws IOException, XMLStreamException
+  {
+    byte chunk[] = new byte[BASE64_CHUNK];
+    for (int n; (n = IOUtils.read(is, chunk)) > 0; ) {
+      byte encoded[] = Base64.encodeBase64(n == chunk.length ? chunk : Arrays.copyOf(chunk, n), true);
+      w.writeCData(new String(encoded, StandardCharsets.US_ASCII));
+    }
+  }
+
+  /**
+   * Writes a DOM node and its descendants, declaring the namespace of each element that
+   * has another namespace than its parent.
+   */
+  private static void _writeNode(XMLStreamWriter w, Node n, String parentNamespace) throws XMLStreamException
+  {
+    switch (n.getNodeType())
+    {
+      case Node.ELEMENT_NODE:
+        String namespace = n.getNamespaceURI();
+        String name = n.getLocalName() == null ? n.getNodeName() : n.getLocalName();
+        if (namespace == null) {
+          w.writeStartElement(name);
+          if (parentNamespace != null)
+            w.writeDefaultNamespace("");
+        }
+        else {
+          w.writeStartElement("", name, namespace);
+          if (!namespace.equals(parentNamespace))
+            w.writeDefaultNamespace(namespace);
+        }
+        NamedNodeMap attrs = n.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+          Node a = attrs.item(i);
+          if (!"xmlns".equals(a.getNodeName()) && !a.getNodeName().startsWith("xmlns:"))
+            w.writeAttribute(a.getNodeName(), a.getNodeValue());
+        }
+        for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling())
+          _writeNode(w, c, namespace);
+        w.writeEndElement();
+        break;
+
+      case Node.TEXT_NODE:
+        w.writeCharacters(n.getNodeValue());
+        break;
+
+      case Node.CDATA_SECTION_NODE:
+        w.writeCData(n.getNodeValue());
+        break;
+
+      case Node.COMMENT_NODE:
+        w.writeComment(n.getNodeValue());
+        break;
+
+      default:
+        // Processing instructions, entity references: none from an HTML parser
+        break;
+    }
+  }
+
   private void _digestPart(Element m, Part p) throws MessagingException, IOException
   {
     if (p.isMimeType("multipart/alternative") || p.isMimeType("multipart/related") || p.isMimeType("multipart/mixed"))
@@ -122,14 +411,16 @@ public class MailMessageMarshaller
     {
       MimeBodyPart mbp = (MimeBodyPart)p;
 
-      String base64cdata;
-      InputStream is = mbp.getInputStream();
-      try {
-        byte content[] = IOUtils.toByteArray(is);
-        base64cdata = new String(Base64.encodeBase64(content, true), "UTF-8");
-      }
-      finally {
-        is.close();
+      String base64cdata = null;
+      if (m_blobs == null) {
+        InputStream is = mbp.getInputStream();
+        try {
+          byte content[] = IOUtils.toByteArray(is);
+          base64cdata = new String(Base64.encodeBase64(content, true), "UTF-8");
+        }
+        finally {
+          is.close();
+        }
       }
 
       ContentType type = new ContentType(mbp.getContentType());
@@ -142,14 +433,20 @@ public class MailMessageMarshaller
           rel.setAttribute("id", cid.group("cid"));
         _addText(rel, "type", type.getBaseType());
         _addText(rel, "disposition", disposition);
-        _addCData(rel, "content", base64cdata);
+        if (m_blobs != null)
+          _addBlob(rel, mbp, type);
+        else
+          _addCData(rel, "content", base64cdata);
       }
       else if (disposition != null && disposition.startsWith("attachment")) {
         LOG.info("attaching {} {}", type, disposition);
         Element rel = _addElement(m, "attachment");
         rel.setAttribute("type", type.getBaseType());
         rel.setAttribute("name", type.getParameter("name"));
-        rel.appendChild(rel.getOwnerDocument().createCDATASection(base64cdata));
+        if (m_blobs != null)
+          _addBlob(rel, mbp, type);
+        else
+          rel.appendChild(rel.getOwnerDocument().createCDATASection(base64cdata));
       }
       else {
         LOG.info("'{}' (Content-Disposition: {}) {} with null Content-ID - ignored", type, disposition, p.getClass().getName());
@@ -271,7 +568,40 @@ public class MailMessageMarshaller
   {
     if (d == null)
       return;
-    _addText(parentNode, elementName, ISO8601_TS.format(d));
+    _addText(parentNode, elementName, ISO8601_TS.get().format(d));
+  }
+
+  private static void _writeCData(XMLStreamWriter w, String elementName, String text) throws XMLStreamException
+  {
+    if (StringUtils.isBlank(text))
+      return;
+    w.writeStartElement(elementName);
+    w.writeCData(text);
+    w.writeEndElement();
+  }
+
+  private static void _writeText(XMLStreamWriter w, String elementName, String text) throws XMLStreamException
+  {
+    if (StringUtils.isBlank(text))
+      return;
+    w.writeStartElement(elementName);
+    w.writeCharacters(text);
+    w.writeEndElement();
+  }
+
+  private static void _writeDate(XMLStreamWriter w, String elementName, Date d) throws XMLStreamException
+  {
+    if (d == null)
+      return;
+    _writeText(w, elementName, ISO8601_TS.get().format(d));
+  }
+
+  private static void _writeAddress(XMLStreamWriter w, String type, InternetAddress a) throws XMLStreamException
+  {
+    w.writeStartElement(type);
+    _writeText(w, "personal", a.getPersonal());
+    _writeText(w, "email-address", a.getAddress());
+    w.writeEndElement();
   }
 
   private static void _addAddress(Node parentNode, String type, InternetAddress a)
@@ -287,8 +617,8 @@ public class MailMessageMarshaller
   {
     org.jsoup.nodes.Document soupDoc = org.jsoup.Jsoup.parse(html);
     try {
-      W3CDom domParser = new org.jsoup.helper.W3CDom();
-      Document htmlDoc = domParser.fromJsoup(soupDoc);
+      Document htmlDoc = DOCUMENT_BUILDERS.get().newDocument();
+      W3C_DOM.convert(soupDoc, htmlDoc);
       // Run a little pre-processing here?
       return htmlDoc;
     }
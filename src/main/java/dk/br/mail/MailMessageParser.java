@@ -6,13 +6,25 @@ import java.net.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.internet.*;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.stream.StreamResult;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
@@ -20,6 +32,11 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * @author     TietoEnator Consulting
@@ -29,52 +46,106 @@ public class MailMessageParser
 {
   private final static Logger LOG = LoggerFactory.getLogger(MailMessageParser.class);
 
-  private final LinkTagger tagger = new LinkTagger();
+  private final MailParserConfig config;
+  private final InkyCache inkyCache;
+  private final LinkTagger tagger;
 
-  private final String trackingHeaderName;
-  private final String trackingParameterName;
-  private final char trackingTokenAlphabet[];
-  private final int trackingTokenLength;
+  MailMessageParser(MailParserConfig config, InkyCache inkyCache)
+  {
+    this(config, inkyCache, new LinkTagger(config.getTrackedDomains()));
+  }
+
+  private MailMessageParser(MailParserConfig config, InkyCache inkyCache, LinkTagger tagger)
+  {
+    this.config = config;
+    this.inkyCache = inkyCache;
+    this.tagger = tagger;
+  }
+
+  /**
+   * Parses each <code>&lt;email&gt;</code> in a mail-merge document, using the
+   * {@link MailParserEngine#getDefault() default engine}.
+   */
+  public static MailMessageData[] parseMails(Node mailListNode)
+    throws IOException
+  {
+    return MailParserEngine.getDefault().parseMails(mailListNode);
+  }
+
+  /**
+   * Parses each <code>&lt;email&gt;</code> in a mail-merge document concurrently, using the
+   * {@link MailParserEngine#getDefault() default engine}.
+   *
+   * @see MailParserEngine#parseMails(Node, Executor)
+   */
+  public static MailMessageData[] parseMails(Node mailListNode, Executor executor)
+    throws IOException
+  {
+    return MailParserEngine.getDefault().parseMails(mailListNode, executor);
+  }
+
+  MailMessageData[] _parseMails(Node mailListNode)
+    throws IOException
+  {
+    List<MailMessageData> result = new ArrayList();
+    _appendMails(mailListNode, mailNode -> result.add(tryParseMail(mailNode)));
+    return result.toArray(new MailMessageData[result.size()]);
+  }
 
-  private MailMessageParser()
+  MailMessageData[] _parseMails(Node mailListNode, Executor executor)
+    throws IOException
   {
-    Properties config = new Properties();
-    String cfgSpec = System.getenv("MAIL_PARSER_CONFIG");
+    DocumentBuilder db;
     try {
-      URL cfg =
-         StringUtils.isEmpty(cfgSpec) ?
-            MailMessageParser.class.getClassLoader().getResource("dk/br/mail/mail-parser-config.properties") :
-              new URL(cfgSpec);
-      if (cfg != null) {
-        try (InputStream is = cfg.openStream()) {
-          config.load(is);
-          LOG.info("{} loaded", cfg);
+      db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+    catch (ParserConfigurationException ex) {
+      throw new RuntimeException(ex);
+    }
+
+    List<CompletableFuture<MailMessageData>> result = new ArrayList();
+    _appendMails(mailListNode, mailNode -> {
+      // The DOM implementation isn't thread-safe, not even for reading, so each task
+      // gets a copy of its <email> in a document of its own. It also gets a snapshot
+      // of the <tag-domain>/<tag> settings in force at this point in the list:
+      Document own = db.newDocument();
+      Element ownMailNode = (Element)own.appendChild(own.importNode(mailNode, true));
+      MailMessageParser parser = new MailMessageParser(config, inkyCache, new LinkTagger(tagger));
+      result.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return parser.tryParseMail(ownMailNode);
         }
         catch (IOException ex) {
-          throw new IllegalArgumentException(cfg + " " + ex.getMessage());
+          throw new CompletionException(ex);
         }
-      }
+      }, executor));
+    });
+
+    // Collect the results in document order:
+    MailMessageData mails[] = new MailMessageData[result.size()];
+    try {
+      for (int i = 0; i < mails.length; i++)
+        mails[i] = result.get(i).join();
     }
-    catch (MalformedURLException ex) {
-      throw new IllegalArgumentException(cfgSpec + " " + ex.getMessage());
+    catch (CompletionException ex) {
+      for (CompletableFuture<MailMessageData> f : result)
+        f.cancel(false);
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw ex;
     }
-
-    tagger.addTaggedDomains(config.getProperty("mail.tracking.domains", "localhost localhost:*"));
-    trackingHeaderName = config.getProperty("mail.tracking.header", "X-BR-Tracking-ID");
-    trackingParameterName = config.getProperty("mail.tracking.parameter", "track-id");
-    trackingTokenAlphabet = config.getProperty("mail.tracking.token.alphabet", "BCDFGHJKLMNPQRSTVWXZbcdfghjkmnpqrstvwxz0123456789_").toCharArray();
-    trackingTokenLength = Integer.parseInt(config.getProperty("mail.tracking.token.length", "10"));
+    return mails;
   }
 
-  public static MailMessageData[] parseMails(Node mailListNode)
-    throws IOException
+  private interface MailCollector
   {
-    List<MailMessageData> result = new LinkedList();
-    new MailMessageParser()._appendMails(mailListNode, result);
-    return result.toArray(new MailMessageData[result.size()]);
+    void add(Element mailNode) throws IOException;
   }
 
-  private void _appendMails(Node mailListNode, List<MailMessageData> result) throws IOException
+  private void _appendMails(Node mailListNode, MailCollector result) throws IOException
   {
     NodeList mailListNodes = mailListNode.getChildNodes();
     for (int j = 0; j < mailListNodes.getLength(); j++)
@@ -87,8 +158,7 @@ public class MailMessageParser
       }
       else if ("email".equals(mailItem.getNodeName()))
       {
-        MailMessageData msg = tryParseMail((Element)mailItem);
-        result.add(msg);
+        result.add((Element)mailItem);
       }
       else if ("tag-domain".equals(mailItem.getNodeName()))
       {
@@ -116,6 +186,422 @@ public class MailMessageParser
     }
   }
 
+  /**
+   * Streams the <code>&lt;email&gt;</code> elements of a (possibly huge) mail-merge document,
+   * parsing each one as the iterator reaches it. Only a single <code>&lt;email&gt;</code>
+   * subtree is held in memory at a time. List-level <code>&lt;tag-domain&gt;</code> and
+   * <code>&lt;tag&gt;</code> elements apply to the mails following them, just as they do
+   * with {@link #parseMails(Node)}.
+   * <p>
+   * Parse errors met while iterating are thrown as (unchecked) {@link RuntimeException}s.
+   * Closing the input stream is left to the caller.
+   */
+  public static Iterator<MailMessageData> streamMails(InputStream is)
+    throws IOException
+  {
+    return MailParserEngine.getDefault().streamMails(is);
+  }
+
+  /**
+   * @see #streamMails(InputStream)
+   */
+  public static Iterator<MailMessageData> streamMails(Reader rdr)
+    throws IOException
+  {
+    return MailParserEngine.getDefault().streamMails(rdr);
+  }
+
+  Iterator<MailMessageData> _streamMails(InputStream is)
+    throws IOException
+  {
+    try {
+      return new StreamingMailIterator(XMLInputFactory.newInstance().createXMLStreamReader(is));
+    }
+    catch (XMLStreamException ex) {
+      throw new IOException("XML stream error", ex);
+    }
+  }
+
+  Iterator<MailMessageData> _streamMails(Reader rdr)
+    throws IOException
+  {
+    try {
+      return new StreamingMailIterator(XMLInputFactory.newInstance().createXMLStreamReader(rdr));
+    }
+    catch (XMLStreamException ex) {
+      throw new IOException("XML stream error", ex);
+    }
+  }
+
+  /**
+   * Pulls StAX events only as far as needed to complete the next <code>&lt;email&gt;</code>.
+   */
+  private class StreamingMailIterator implements Iterator<MailMessageData>
+  {
+    private final XMLStreamReader xml;
+    private final Deque<MailMessageData> parsed = new ArrayDeque();
+    private final MailListDigester digester = new MailListDigester(parsed::add);
+
+    private StreamingMailIterator(XMLStreamReader xml)
+    {
+      this.xml = xml;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      try {
+        while (parsed.isEmpty() && xml.hasNext())
+          digest(xml.next());
+        if (parsed.isEmpty())
+          xml.close();
+      }
+      catch (XMLStreamException ex) {
+        throw new RuntimeException("XML stream error", ex);
+      }
+      catch (IOException ex) {
+        throw new RuntimeException(ex.getMessage(), ex);
+      }
+      return !parsed.isEmpty();
+    }
+
+    @Override
+    public MailMessageData next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      return parsed.poll();
+    }
+
+    private void digest(int event) throws IOException
+    {
+      switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+          int nsCount = xml.getNamespaceCount();
+          int attrCount = xml.getAttributeCount();
+          String attrs[] = new String[2 * (nsCount + attrCount)];
+          int n = 0;
+          for (int i = 0; i < nsCount; i++) {
+            String prefix = xml.getNamespacePrefix(i);
+            attrs[n++] = StringUtils.isEmpty(prefix) ? "xmlns" : "xmlns:" + prefix;
+            attrs[n++] = xml.getNamespaceURI(i);
+          }
+          for (int i = 0; i < attrCount; i++) {
+            attrs[n++] = _qName(xml.getAttributePrefix(i), xml.getAttributeLocalName(i));
+            attrs[n++] = xml.getAttributeValue(i);
+          }
+          digester.startElement(_qName(xml.getPrefix(), xml.getLocalName()), attrs);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          digester.endElement();
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          digester.characters(xml.getText());
+          break;
+        case XMLStreamConstants.CDATA:
+          digester.cdata(xml.getText());
+          break;
+        case XMLStreamConstants.COMMENT:
+          digester.comment(xml.getText());
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          digester.processingInstruction(xml.getPITarget(), xml.getPIData());
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Returns a SAX content handler accepting a mail-merge document, e.g. as the output of a
+   * mail-merge XSL transformation. Each <code>&lt;email&gt;</code> is parsed and passed to
+   * {@code sink} as soon as its end tag is seen, with no DOM built for the document as a
+   * whole. See {@link #saxResult(Consumer)} for the {@link Transformer} flavour.
+   */
+  public static ContentHandler contentHandler(Consumer<MailMessageData> sink)
+  {
+    return MailParserEngine.getDefault().contentHandler(sink);
+  }
+
+  /**
+   * Returns a {@link SAXResult} for an upstream {@link Transformer} to stream its
+   * mail-merge output into, e.g.
+   * <pre>
+   *   toMail.transform(source, MailMessageParser.saxResult(mail -&gt; queue.add(mail)));
+   * </pre>
+   */
+  public static SAXResult saxResult(Consumer<MailMessageData> sink)
+  {
+    return MailParserEngine.getDefault().saxResult(sink);
+  }
+
+  ContentHandler _contentHandler(Consumer<MailMessageData> sink)
+  {
+    return new SaxMailHandler(sink);
+  }
+
+  SAXResult _saxResult(Consumer<MailMessageData> sink)
+  {
+    SaxMailHandler handler = new SaxMailHandler(sink);
+    SAXResult result = new SAXResult(handler);
+    result.setLexicalHandler(handler);
+    return result;
+  }
+
+  /**
+   * Feeds SAX events to a {@link MailListDigester}. Namespace declarations are turned back
+   * into <code>xmlns</code> attributes, as a non-namespace-aware DOM parser would keep them.
+   */
+  private class SaxMailHandler extends DefaultHandler implements LexicalHandler
+  {
+    private final MailListDigester digester;
+    private final List<String> prefixMappings = new ArrayList();
+    private boolean inCData;
+
+    private SaxMailHandler(Consumer<MailMessageData> sink)
+    {
+      digester = new MailListDigester(sink);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri)
+    {
+      prefixMappings.add(StringUtils.isEmpty(prefix) ? "xmlns" : "xmlns:" + prefix);
+      prefixMappings.add(uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+    {
+      List<String> attrs = new ArrayList(prefixMappings);
+      // Names only, for an attribute not to be taken for one named by another's value:
+      Set<String> names = new HashSet();
+      for (int i = 0; i < prefixMappings.size(); i += 2)
+        names.add(prefixMappings.get(i));
+      prefixMappings.clear();
+      for (int i = 0; i < attributes.getLength(); i++) {
+        String name = StringUtils.isEmpty(attributes.getQName(i)) ? attributes.getLocalName(i) : attributes.getQName(i);
+        // The xmlns attributes reported by parsers with "namespace-prefixes" are mapped already:
+        if (!names.add(name))
+          continue;
+        attrs.add(name);
+        attrs.add(attributes.getValue(i));
+      }
+      digester.startElement(StringUtils.isEmpty(qName) ? localName : qName, attrs.toArray(new String[attrs.size()]));
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName)
+      throws SAXException
+    {
+      try {
+        digester.endElement();
+      }
+      catch (IOException ex) {
+        throw new SAXException(ex);
+      }
+    }
+
+    @Override
+    public void characters(char ch[], int start, int length)
+    {
+      String text = new String(ch, start, length);
+      if (inCData)
+        digester.cdata(text);
+      else
+        digester.characters(text);
+    }
+
+    @Override
+    public void ignorableWhitespace(char ch[], int start, int length)
+    {
+      digester.characters(new String(ch, start, length));
+    }
+
+    @Override
+    public void processingInstruction(String target, String data)
+    {
+      digester.processingInstruction(target, data);
+    }
+
+    @Override
+    public void comment(char ch[], int start, int length)
+    {
+      digester.comment(new String(ch, start, length));
+    }
+
+    @Override
+    public void startCDATA()
+    {
+      inCData = true;
+    }
+
+    @Override
+    public void endCDATA()
+    {
+      inCData = false;
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId)
+    {
+    }
+
+    @Override
+    public void endDTD()
+    {
+    }
+
+    @Override
+    public void startEntity(String name)
+    {
+    }
+
+    @Override
+    public void endEntity(String name)
+    {
+    }
+  }
+
+  private static String _qName(String prefix, String localName)
+  {
+    return StringUtils.isEmpty(prefix) ? localName : prefix + ":" + localName;
+  }
+
+  /**
+   * Builds one <code>&lt;email&gt;</code> element at a time from a sequence of XML parse
+   * events, handing each mail on to {@code sink} as soon as its end tag is seen. Anything
+   * outside of <code>&lt;email&gt;</code> is dealt with the same way {@link #_appendMails}
+   * deals with it, without ever building a DOM for it.
+   */
+  private class MailListDigester
+  {
+    private final Consumer<MailMessageData> sink;
+    private final DocumentBuilder db;
+
+    // Insertion point within the <email> being built, or null at list level:
+    private Node current;
+    // Nesting depth within a list-level element whose content is ignored:
+    private int skipDepth;
+    // List-level <tag-domain> or <tag> element being read, if any:
+    private String listTag;
+    private String listTagName;
+    private final StringBuilder listText = new StringBuilder();
+
+    private MailListDigester(Consumer<MailMessageData> sink)
+    {
+      this.sink = sink;
+      try {
+        db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      }
+      catch (ParserConfigurationException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+
+    void startElement(String qName, String attrs[])
+    {
+      if (current != null) {
+        current = current.appendChild(_element(current.getOwnerDocument(), qName, attrs));
+      }
+      else if (skipDepth > 0 || listTag != null) {
+        skipDepth++;
+      }
+      else if ("email".equals(qName)) {
+        // Each mail gets a document of its own, to let go of the previous one:
+        Document doc = db.newDocument();
+        current = doc.appendChild(_element(doc, qName, attrs));
+      }
+      else if ("email-list".equals(qName)) {
+        LOG.debug("### parsing {}", qName);
+      }
+      else if ("tag-domain".equals(qName) || "tag".equalsIgnoreCase(qName)) {
+        listTag = qName;
+        listTagName = _attr(attrs, "name");
+        listText.setLength(0);
+      }
+      else {
+        LOG.warn("unknown <{}>", qName);
+        skipDepth = 1;
+      }
+    }
+
+    void endElement() throws IOException
+    {
+      if (current != null) {
+        Node parent = current.getParentNode();
+        if (parent.getNodeType() == Node.DOCUMENT_NODE) {
+          Element mailNode = (Element)current;
+          current = null;
+          sink.accept(tryParseMail(mailNode));
+        }
+        else {
+          current = parent;
+        }
+      }
+      else if (skipDepth > 0) {
+        skipDepth--;
+      }
+      else if (listTag != null) {
+        if ("tag-domain".equals(listTag))
+          tagger.addTaggedDomains(listText.toString());
+        else
+          tagger.put(listTagName, listText.toString());
+        listTag = null;
+      }
+    }
+
+    void characters(String text)
+    {
+      if (current != null)
+        current.appendChild(current.getOwnerDocument().createTextNode(text));
+      else if (listTag != null && skipDepth == 0)
+        listText.append(text);
+      else if (skipDepth == 0 && !StringUtils.isBlank(text))
+        LOG.info("\"{}\" - text ignored", text);
+    }
+
+    void cdata(String text)
+    {
+      if (current != null)
+        current.appendChild(current.getOwnerDocument().createCDATASection(text));
+      else
+        characters(text);
+    }
+
+    void comment(String text)
+    {
+      if (current != null)
+        current.appendChild(current.getOwnerDocument().createComment(text));
+      else if (skipDepth == 0)
+        LOG.info("\"{}\" - comment ignored", text);
+    }
+
+    void processingInstruction(String target, String data)
+    {
+      if (current != null)
+        current.appendChild(current.getOwnerDocument().createProcessingInstruction(target, data));
+    }
+
+    private Element _element(Document doc, String qName, String attrs[])
+    {
+      Element e = doc.createElement(qName);
+      for (int i = 0; i < attrs.length; i += 2)
+        e.setAttribute(attrs[i], attrs[i + 1]);
+      return e;
+    }
+
+    private String _attr(String attrs[], String name)
+    {
+      for (int i = 0; i < attrs.length; i += 2)
+        if (name.equals(attrs[i]))
+          return attrs[i + 1];
+      return "";
+    }
+  }
+
   private void digestUrlTag(Element tag) {
     // Push name/value pair to stack:
     String name = tag.getAttribute("name");
@@ -133,16 +619,58 @@ public class MailMessageParser
   public static MailMessageData parseMail(Element mailNode)
     throws IOException
   {
-    return new MailMessageParser().tryParseMail(mailNode);
+    return MailParserEngine.getDefault().parseMail(mailNode);
+  }
+
+  MailMessageData _parseMail(Element mailNode)
+    throws IOException
+  {
+    return tryParseMail(mailNode);
+  }
+
+  /**
+   * Compiles an <code>&lt;email&gt;</code> element with <code>${name}</code> placeholders into
+   * a template for rendering many personalised mails, using the
+   * {@link MailParserEngine#getDefault() default engine}.
+   *
+   * @see MailTemplate
+   */
+  public static MailTemplate compileTemplate(Element mailNode)
+    throws IOException
+  {
+    return MailParserEngine.getDefault().compileTemplate(mailNode);
   }
 
-  private String randomToken() {
-    char tokenChars[] = new char[trackingTokenLength];
-    for (int i = 0; i < trackingTokenLength; i++) {
-      int randomPos = (int)(Math.random() * trackingTokenAlphabet.length);
-      tokenChars[i] = trackingTokenAlphabet[randomPos];
+  MailTemplate _compileTemplate(Element templateNode)
+    throws IOException
+  {
+    Document own;
+    try {
+      own = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+    catch (ParserConfigurationException ex) {
+      throw new RuntimeException(ex);
+    }
+    Element mailNode = (Element)own.appendChild(own.importNode(templateNode, true));
+
+    // Have the tracking id show up as a placeholder wherever it gets used:
+    if (StringUtils.isEmpty(mailNode.getAttribute("tracking-id")))
+      mailNode.setAttribute("tracking-id", "${" + MailTemplate.TRACKING_ID + "}");
+
+    // Addresses are kept out of the parsing, as their placeholders won't validate:
+    List<Element> addresses = new ArrayList();
+    for (Node n = mailNode.getFirstChild(); n != null; ) {
+      Node next = n.getNextSibling();
+      if ("addresses".equals(n.getNodeName())) {
+        for (Node a = n.getFirstChild(); a != null; a = a.getNextSibling())
+          if (a.getNodeType() == Node.ELEMENT_NODE)
+            addresses.add((Element)a);
+        mailNode.removeChild(n);
+      }
+      n = next;
     }
-    return new String(tokenChars);
+
+    return new MailTemplate(config, tryParseMail(mailNode), addresses);
   }
 
   private MailMessageData tryParseMail(Element mailNode)
@@ -152,8 +680,8 @@ public class MailMessageParser
     try {
       String trackingId = mailNode.getAttribute("tracking-id");
       if (StringUtils.isEmpty(trackingId))
-        trackingId = randomToken();
-      tagger.put(trackingParameterName, trackingId);
+        trackingId = config.newTrackingToken();
+      tagger.put(config.getTrackingParameterName(), trackingId);
 
       LOG.debug("###    parsing {}", mailNode.getNodeName());
 
@@ -163,7 +691,7 @@ public class MailMessageParser
       Map<String,MailPartSource> related = parseRelatedParts(mailNode);
 
       MailMessageData msg = new MailMessageData();
-      msg.setCustomHeader(trackingHeaderName, trackingId);
+      msg.setCustomHeader(config.getTrackingHeaderName(), trackingId);
 
       NodeList mailProperties = mailNode.getChildNodes();
       for (int i = 0; i < mailProperties.getLength(); i++)
@@ -198,7 +726,7 @@ public class MailMessageParser
         else if ("html-body".equals(propertyName))
         {
           NodeList bodyNodes = propertyNode.getChildNodes();
-          HtmlPartParser parser = new HtmlPartParser();
+          HtmlPartParser parser = new HtmlPartParser(trackingId);
           parser.digest(bodyNodes, msg, related);
         }
         else if ("addresses".equals(propertyName))
@@ -223,14 +751,16 @@ public class MailMessageParser
         else if ("attachment".equals(propertyName))
         {
           String src = propertyNode.getAttribute("src");
-          if (StringUtils.isNotEmpty(src)) {
+          if (BlobDirectory.isReference(src)) {
+            msg.attach(MailPartData.blob(src, propertyNode.getAttribute("type"), propertyNode.getAttribute("name")));
+          }
+          else if (StringUtils.isNotEmpty(src)) {
             msg.attach(MailPartData.from(src, null));
           }
           else {
             String type = propertyNode.getAttribute("type");
             String name = propertyNode.getAttribute("name");
-            byte content[] = Base64.decodeBase64(_text(propertyNode));
-            msg.attach(type, name, content);
+            msg.attach(MailPartData.fromBase64(type, name, _text(propertyNode)));
           }
         }
         else if ("message-id".equals(propertyName))
@@ -276,7 +806,7 @@ public class MailMessageParser
       if ("related".equals(tagName))
       {
         String partId = "cid:" + tag.getAttribute("id");
-        MailPartSource partSource = parseRelatedMimePart(tag.getChildNodes());
+        MailPartSource partSource = parseRelatedMimePart(tag);
         related.put(partId, partSource);
         LOG.debug("save {} : {}", partId, partSource);
       }
@@ -284,21 +814,30 @@ public class MailMessageParser
     return related;
   }
 
-  private static MailPartData parseRelatedMimePart(NodeList partNodes)
+  private static MailPartData parseRelatedMimePart(Element relatedNode)
+      throws IOException
   {
     String contentType = null;
     String name = null;
-    byte content[] = null;
+    String content = null;
 
+    NodeList partNodes = relatedNode.getChildNodes();
     for (int i = 0; i < partNodes.getLength(); i++)
     {
       Node partNode = partNodes.item(i);
       if ("type".equals(partNode.getNodeName()))
         contentType = _text((Element)partNode);
       else if ("content".equals(partNode.getNodeName()))
-        content = Base64.decodeBase64(_text((Element)partNode));
+        content = _text((Element)partNode);
     }
-    return MailPartData.from(contentType, name, content);
+    // Marshalled with its content stored elsewhere:
+    String src = relatedNode.getAttribute("src");
+    if (BlobDirectory.isReference(src))
+      return MailPartData.blob(src, contentType, name);
+    if (StringUtils.isNotEmpty(src))
+      return MailPartData.from(src, null);
+
+    return content == null ? MailPartData.from(contentType, name, null) : MailPartData.fromBase64(contentType, name, content);
   }
 
   private void parseAddresses(NodeList addressNodes, MailMessageData msg)
@@ -315,6 +854,11 @@ public class MailMessageParser
   {
     String type = addressElement.getNodeName();
     InternetAddress addr = getAddress(addressElement);
+    addAddress(msg, type, addr);
+  }
+
+  static void addAddress(MailMessageData msg, String type, InternetAddress addr)
+  {
     LOG.debug("{}: [{}]", type, addr);
 
     if ("to".equals(type))
@@ -349,21 +893,23 @@ public class MailMessageParser
     if (address == null)
       throw new IllegalArgumentException("'" + element.getTagName() + "' email-address is missing");
     String addrText = _text(address);
-    if (StringUtils.isBlank(addrText))
-      throw new IllegalArgumentException("'" + element.getTagName() + "' email-address is blank");
 
     Element personal = (Element)element.getElementsByTagName("personal").item(0);
     String personText = personal == null ? null : _text(personal);
+    return toAddress(element.getTagName(), addrText, personText);
+  }
+
+  static InternetAddress toAddress(String type, String addrText, String personText)
+  {
+    if (StringUtils.isBlank(addrText))
+      throw new IllegalArgumentException("'" + type + "' email-address is blank");
     try
     {
-      InternetAddress addr = new InternetAddress(addrText, personText);
-      try {
-        addr.validate();
-      }
-      catch (AddressException ex) {
-        throw new IllegalArgumentException("'" + element.getTagName() + "' email-address unparseable - " + ex.getMessage());
-      }
-      return addr;
+      return EncodedHeaders.address(addrText, personText);
+    }
+    catch (AddressException ex)
+    {
+      throw new IllegalArgumentException("'" + type + "' email-address unparseable - " + ex.getMessage());
     }
     catch (UnsupportedEncodingException ex)
     {
@@ -373,17 +919,27 @@ public class MailMessageParser
 
   private static final Pattern CSS_URL_PATTERN = Pattern.compile("(?<before>.*url\\(['\"]?)(?<url>[^\\)'\"]+)(?<after>['\"]?\\).*)");
 
+  // Stand in for the tracking token in tagged links, and for the time stamp of related
+  // part ids, while the HTML body is transformed, so that bodies differing only by those
+  // share one InkyCache entry:
+  private static final String TRACKING_TOKEN_MASK = "TrackingToken" + Long.toHexString(new Random().nextLong());
+  private static final String PART_STAMP_MASK = "PartStamp" + Long.toHexString(new Random().nextLong());
+  private static final Pattern MASKABLE_TOKEN = Pattern.compile("[A-Za-z0-9_]+");
+
   private class HtmlPartParser
   {
     private final String htmlEncoding;
     private final boolean useCssInliner;
+    private final String trackingId;
 
     boolean seenInky;
     URL m_baseHref;
+    String m_partStamp;
 
-    private HtmlPartParser() {
-      htmlEncoding = System.getProperty("dk.br.mail.html-encoding", "UTF-8");
-      useCssInliner = "1|yes|true".contains(System.getProperty("dk.br.mail.inline-css", "false"));
+    private HtmlPartParser(String trackingId) {
+      htmlEncoding = config.getHtmlEncoding();
+      useCssInliner = config.isCssInlining();
+      this.trackingId = trackingId;
     }
 
     // <Source URI> -> <Part-ID> map for all resources embedded as Related MIME parts
@@ -401,14 +957,34 @@ public class MailMessageParser
       m_resourceContent.clear();
       m_resourceContent.putAll(related);
 
+      // The token is URL and HTML safe, unless given explicitly by the tracking-id attribute:
+      boolean caching = inkyCache != null && inkyCache.isEnabled();
+      boolean maskToken = caching && MASKABLE_TOKEN.matcher(trackingId).matches();
+      String partStamp = String.valueOf(System.currentTimeMillis());
+      m_partStamp = caching ? PART_STAMP_MASK : partStamp;
+
       // Traverse HTML DOM, extracting and dereferencing external resources (style sheets,
       // images, etc.) as we go:
-      digestHtmlNodeList(bodyNodes);
+      if (maskToken) {
+        tagger.pushFrame();
+        tagger.put(config.getTrackingParameterName(), TRACKING_TOKEN_MASK);
+      }
+      try {
+        digestHtmlNodeList(bodyNodes);
+      }
+      finally {
+        if (maskToken)
+          tagger.popFrame();
+      }
 
       LOG.debug("HTML digested: {} part ids, {} content parts", m_resourcePartIds.size(), m_resourceContent.size());
 
       // Serialize the modified HTML back to text:
-      String bodyText = _htmlText(bodyNodes, htmlEncoding, seenInky, useCssInliner);
+      String bodyText = _htmlText(bodyNodes, htmlEncoding, seenInky, useCssInliner, inkyCache);
+      if (maskToken)
+        bodyText = StringUtils.replace(bodyText, TRACKING_TOKEN_MASK, trackingId);
+      if (caching)
+        bodyText = StringUtils.replace(bodyText, PART_STAMP_MASK, partStamp);
       msg.setHtmlBody(bodyText);
 
       // Attach the dereferenced resources to be included as "related" MIME parts in the
@@ -417,7 +993,7 @@ public class MailMessageParser
       for (Map.Entry<String,String> e : m_resourcePartIds.entrySet())
       {
         String ref = e.getKey();
-        String partId = e.getValue();
+        String partId = StringUtils.replace(e.getValue(), PART_STAMP_MASK, partStamp);
         LOG.debug("Attach related part {} from {}", partId, ref);
 
         MailPartSource partSource = partFromRef(ref);
@@ -609,9 +1185,7 @@ public class MailMessageParser
             MailPartSource binaryContent = m_resourceContent.get(urlText);
             if (binaryContent == null)
             {
-              String binaryContentBase64 = _text(tag);
-              byte bytes[] = Base64.decodeBase64(binaryContentBase64.getBytes("iso-8859-1"));
-              binaryContent = MailPartData.from(contentType, md5, bytes);
+              binaryContent = MailPartData.fromBase64(contentType, md5, _text(tag));
               m_resourceContent.put(urlText, binaryContent);
             }
             break;
@@ -678,7 +1252,7 @@ public class MailMessageParser
       String partId = m_resourcePartIds.get(urlText);
       if (partId == null)
       {
-        partId = "part." + (m_resourcePartIds.size() + 1) + "." + System.currentTimeMillis() + "@mail";
+        partId = "part." + (m_resourcePartIds.size() + 1) + "." + m_partStamp + "@mail";
         m_resourcePartIds.put(urlText, partId);
         LOG.debug("{}: resource embedded as MIME part <{}>", urlText, partId);
       }
@@ -777,7 +1351,16 @@ public class MailMessageParser
     return result.toString();
   }
 
-  private static Inky inky;
+  // Created on first use, and shared by all threads:
+  private static class InkyHolder
+  {
+    private final static Inky INSTANCE = new Inky();
+  }
+
+  private static Inky _inky()
+  {
+    return InkyHolder.INSTANCE;
+  }
 
  /**
    * Converts an org.w3c.dom.NodeList to a Java String.
@@ -787,7 +1370,7 @@ public class MailMessageParser
    * @param  compact  whether or not to maintain line breaks and indentation. Valid
    *  for "xml" and "html" methods only.
    */
-  private static String _htmlText(NodeList nodeList, String encoding, boolean useInky, boolean useCssInliner)
+  private static String _htmlText(NodeList nodeList, String encoding, boolean useInky, boolean useCssInliner, InkyCache cache)
   {
     if (nodeList.getLength() == 0)
       return "";
@@ -798,12 +1381,24 @@ public class MailMessageParser
     try
     {
       if (useInky) {
-        if (inky == null)
-          inky = new Inky();
+        String key = null;
+        if (cache != null && cache.isEnabled()) {
+          key = InkyCache.key(nodeList, encoding, useCssInliner);
+          String html = cache.get(key);
+          if (html != null)
+            return html;
+        }
+
+        Inky inky = _inky();
         for (int i = 0; i < nodeList.getLength(); i++) {
           Node item = nodeList.item(i);
           inky.transform(new DOMSource(item), result, useCssInliner);
         }
+
+        String html = "<!DOCTYPE html>\n" + new String(out.toByteArray(), encoding);
+        if (key != null)
+          cache.put(key, html);
+        return html;
       }
       else {
         Transformer s = _serializer();
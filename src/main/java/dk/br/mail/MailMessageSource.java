@@ -1,5 +1,7 @@
 package dk.br.mail;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -17,6 +19,23 @@ public interface MailMessageSource
 
   MimeMessage compose(Session session, boolean failsafe) throws MessagingException;
 
+  /**
+   * Headers left out of the message as written by {@link #composeTo}, as by the SMTP
+   * transport of javax.mail: "Bcc" recipients mustn't be seen by the other recipients.
+   */
+  String SMTP_IGNORE_HEADERS[] = { "Bcc", "Content-Length" };
+
+  /**
+   * Writes the MIME message, as composed by {@link #compose(Session, boolean)} and written
+   * by {@link MimeMessage#writeTo(OutputStream, String[])} without the
+   * {@link #SMTP_IGNORE_HEADERS}, e.g. to spool it to disk, or send it as the SMTP "DATA".
+   * The "Bcc" recipients are left for the envelope. The stream is left open.
+   */
+  default void composeTo(OutputStream os, Session session, boolean failsafe) throws MessagingException, IOException
+  {
+    compose(session, failsafe).writeTo(os, SMTP_IGNORE_HEADERS);
+  }
+
   String getSubject();
   Date getSentDate();
   InternetAddress getFirstSender();
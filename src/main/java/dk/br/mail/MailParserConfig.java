@@ -0,0 +1,162 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable, pre-compiled settings for {@link MailMessageParser}: tracking header and
+ * parameter names, tracking token format, the wildcard patterns of domains to tag links
+ * to, and HTML output options. Safe to share between any number of threads.
+ *
+ * @author osa
+ */
+public final class MailParserConfig
+{
+  private final static Logger LOG = LoggerFactory.getLogger(MailParserConfig.class);
+
+  private final static String DEFAULT_CONFIG = "dk/br/mail/mail-parser-config.properties";
+
+  private final URL source;
+  private final List<Pattern> trackedDomains;
+  private final String trackingHeaderName;
+  private final String trackingParameterName;
+  private final String trackingTokenAlphabet;
+  private final int trackingTokenLength;
+  private final String htmlEncoding;
+  private final boolean cssInlining;
+
+  private MailParserConfig(URL source, Properties config)
+  {
+    this.source = source;
+    trackedDomains = Collections.unmodifiableList(LinkTagger.compileDomainPatterns(config.getProperty("mail.tracking.domains", "localhost localhost:*")));
+    trackingHeaderName = config.getProperty("mail.tracking.header", "X-BR-Tracking-ID");
+    trackingParameterName = config.getProperty("mail.tracking.parameter", "track-id");
+    trackingTokenAlphabet = config.getProperty("mail.tracking.token.alphabet", "BCDFGHJKLMNPQRSTVWXZbcdfghjkmnpqrstvwxz0123456789_");
+    trackingTokenLength = Integer.parseInt(config.getProperty("mail.tracking.token.length", "10"));
+    htmlEncoding = config.getProperty("dk.br.mail.html-encoding", System.getProperty("dk.br.mail.html-encoding", "UTF-8"));
+    cssInlining = "1|yes|true".contains(config.getProperty("dk.br.mail.inline-css", System.getProperty("dk.br.mail.inline-css", "false")));
+  }
+
+  /**
+   * Compiles a configuration from a set of properties. HTML output options not given there
+   * default to the <code>dk.br.mail.html-encoding</code> and <code>dk.br.mail.inline-css</code>
+   * system properties.
+   */
+  public static MailParserConfig from(Properties config)
+  {
+    return new MailParserConfig(null, config);
+  }
+
+  /**
+   * Loads and compiles the configuration found at {@code cfg}. A {@code null} URL gives the
+   * built-in defaults.
+   */
+  public static MailParserConfig load(URL cfg)
+  {
+    Properties config = new Properties();
+    if (cfg != null) {
+      try (InputStream is = cfg.openStream()) {
+        config.load(is);
+        LOG.info("{} loaded", cfg);
+      }
+      catch (IOException ex) {
+        throw new IllegalArgumentException(cfg + " " + ex.getMessage());
+      }
+    }
+    return new MailParserConfig(cfg, config);
+  }
+
+  /**
+   * Loads the configuration given by the <code>MAIL_PARSER_CONFIG</code> environment variable,
+   * or, if not set, the <code>dk/br/mail/mail-parser-config.properties</code> classpath resource.
+   */
+  public static MailParserConfig load()
+  {
+    return load(defaultLocation());
+  }
+
+  static URL defaultLocation()
+  {
+    String cfgSpec = System.getenv("MAIL_PARSER_CONFIG");
+    try {
+      return StringUtils.isEmpty(cfgSpec) ?
+          MailParserConfig.class.getClassLoader().getResource(DEFAULT_CONFIG) :
+            new URL(cfgSpec);
+    }
+    catch (MalformedURLException ex) {
+      throw new IllegalArgumentException(cfgSpec + " " + ex.getMessage());
+    }
+  }
+
+  /**
+   * @return  where this configuration was loaded from, or {@code null}
+   */
+  public URL getSource()
+  {
+    return source;
+  }
+
+  public List<Pattern> getTrackedDomains()
+  {
+    return trackedDomains;
+  }
+
+  public String getTrackingHeaderName()
+  {
+    return trackingHeaderName;
+  }
+
+  public String getTrackingParameterName()
+  {
+    return trackingParameterName;
+  }
+
+  public String getTrackingTokenAlphabet()
+  {
+    return trackingTokenAlphabet;
+  }
+
+  public int getTrackingTokenLength()
+  {
+    return trackingTokenLength;
+  }
+
+  /**
+   * @return  a new, random, tracking token
+   */
+  public String newTrackingToken()
+  {
+    char tokenChars[] = new char[trackingTokenLength];
+    for (int i = 0; i < trackingTokenLength; i++) {
+      int randomPos = ThreadLocalRandom.current().nextInt(trackingTokenAlphabet.length());
+      tokenChars[i] = trackingTokenAlphabet.charAt(randomPos);
+    }
+    return new String(tokenChars);
+  }
+
+  public String getHtmlEncoding()
+  {
+    return htmlEncoding;
+  }
+
+  public boolean isCssInlining()
+  {
+    return cssInlining;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[" + (source == null ? "mail parser config" : source.toString()) + ": " + trackedDomains.size() + " tracked domain pattern(s)]";
+  }
+}
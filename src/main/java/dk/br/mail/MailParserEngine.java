@@ -0,0 +1,301 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import javax.xml.transform.sax.SAXResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+
+/**
+ * A thread-safe front for {@link MailMessageParser}. The configuration is loaded and compiled
+ * once, and shared by all threads; each parse only sets up its own, cheap, per-call state
+ * (link tag stack, date format.)
+ * <p>
+ * An engine created with {@link #watching(URL, long)} polls its configuration URL for
+ * changes, and picks up a modified file without restarting, e.g. to retune the set of
+ * tracked domains.
+ *
+ * @author osa
+ */
+public class MailParserEngine
+{
+  private final static Logger LOG = LoggerFactory.getLogger(MailParserEngine.class);
+
+  private final URL configUrl;
+  private final long checkIntervalMillis;
+
+  private final InkyCache inkyCache = new InkyCache(Integer.getInteger("dk.br.mail.inky-cache-size", 64));
+  private final ResourcePrefetcher prefetcher = new ResourcePrefetcher(Integer.getInteger("dk.br.mail.prefetch-per-host", 4));
+
+  private volatile MailParserConfig config;
+  private volatile long lastModified;
+  private volatile long nextCheck;
+
+  public MailParserEngine(MailParserConfig config)
+  {
+    this(config, null, 0);
+  }
+
+  private MailParserEngine(MailParserConfig config, URL configUrl, long checkIntervalMillis)
+  {
+    this.config = config;
+    this.configUrl = configUrl;
+    this.checkIntervalMillis = checkIntervalMillis;
+    this.nextCheck = System.currentTimeMillis() + checkIntervalMillis;
+  }
+
+  /**
+   * Creates an engine reading its configuration from {@code configUrl}, and re-reading it
+   * whenever the URL reports a new modification time. The URL is polled at most once per
+   * {@code checkIntervalMillis}; zero turns polling off.
+   * <p>
+   * A configuration that cannot be loaded is logged, and the built-in defaults used until
+   * the URL reports a new modification time.
+   */
+  public static MailParserEngine watching(URL configUrl, long checkIntervalMillis)
+  {
+    long modified = _lastModified(configUrl);
+    MailParserEngine engine;
+    try {
+      engine = new MailParserEngine(MailParserConfig.load(configUrl), configUrl, checkIntervalMillis);
+      engine.lastModified = modified;
+    }
+    catch (RuntimeException ex) {
+      LOG.error("{} failed to load - using built-in defaults", configUrl, ex);
+      engine = new MailParserEngine(MailParserConfig.load(null), configUrl, checkIntervalMillis);
+      engine.lastModified = 0;
+    }
+    return engine;
+  }
+
+  private static class DefaultEngine
+  {
+    // Never failing, not to leave the class uninitialisable for the life of the JVM:
+    private final static MailParserEngine INSTANCE = _defaultEngine();
+
+    private static MailParserEngine _defaultEngine()
+    {
+      URL configUrl;
+      try {
+        configUrl = MailParserConfig.defaultLocation();
+      }
+      catch (RuntimeException ex) {
+        LOG.error("MAIL_PARSER_CONFIG ignored - {}", ex.getMessage());
+        configUrl = null;
+      }
+      return watching(configUrl, 1000L * Long.getLong("dk.br.mail.config-reload-seconds", 0));
+    }
+  }
+
+  /**
+   * @return  the engine behind the static {@link MailMessageParser} methods, configured
+   *          as described for {@link MailParserConfig#load()}
+   */
+  public static MailParserEngine getDefault()
+  {
+    return DefaultEngine.INSTANCE;
+  }
+
+  public MailParserConfig getConfig()
+  {
+    if (configUrl != null && checkIntervalMillis > 0 && System.currentTimeMillis() >= nextCheck)
+      _checkForUpdate();
+    return config;
+  }
+
+  /**
+   * Re-reads the configuration URL, if any, regardless of its modification time.
+   */
+  public synchronized void reload()
+  {
+    if (configUrl == null)
+      return;
+    long modified = _lastModified(configUrl);
+    config = MailParserConfig.load(configUrl);
+    lastModified = modified;
+  }
+
+  private synchronized void _checkForUpdate()
+  {
+    long now = System.currentTimeMillis();
+    if (now < nextCheck)
+      return;
+    nextCheck = now + checkIntervalMillis;
+
+    long modified = _lastModified(configUrl);
+    if (modified == lastModified)
+      return;
+
+    try {
+      config = MailParserConfig.load(configUrl);
+      lastModified = modified;
+      LOG.info("{} reloaded: {}", configUrl, config);
+    }
+    catch (RuntimeException ex) {
+      LOG.error("{} failed to reload - keeping {}", configUrl, config, ex);
+    }
+  }
+
+  private static long _lastModified(URL url)
+  {
+    if (url == null)
+      return 0;
+    try {
+      URLConnection conn = url.openConnection();
+      // The headers of an HTTP resource only, not its content:
+      if (conn instanceof HttpURLConnection)
+        ((HttpURLConnection)conn).setRequestMethod("HEAD");
+      try {
+        return conn.getLastModified();
+      }
+      finally {
+        // Don't leave the (file, jar) stream dangling:
+        conn.getInputStream().close();
+      }
+    }
+    catch (IOException ex) {
+      LOG.warn("{} - {}", url, ex.getMessage());
+      return 0;
+    }
+  }
+
+  /**
+   * @return  the cache of Inky transformed HTML bodies shared by all parses on this engine,
+   *          sized by the <code>dk.br.mail.inky-cache-size</code> system property (default 64)
+   */
+  public InkyCache getInkyCache()
+  {
+    return inkyCache;
+  }
+
+  private MailMessageParser _parser()
+  {
+    return new MailMessageParser(getConfig(), inkyCache);
+  }
+
+  /**
+   * @see MailMessageParser#parseMail(Element)
+   */
+  public MailMessageData parseMail(Element mailNode)
+    throws IOException
+  {
+    return _parser()._parseMail(mailNode);
+  }
+
+  /**
+   * @see MailMessageParser#parseMails(Node)
+   */
+  public MailMessageData[] parseMails(Node mailListNode)
+    throws IOException
+  {
+    return _parser()._parseMails(mailListNode);
+  }
+
+  /**
+   * @see MailMessageParser#compileTemplate(Element)
+   */
+  public MailTemplate compileTemplate(Element mailNode)
+    throws IOException
+  {
+    return _parser()._compileTemplate(mailNode);
+  }
+
+  /**
+   * Parses the <code>&lt;email&gt;</code> elements of a mail-merge document concurrently on
+   * {@code executor}, returning the results in document order. The list is walked on the
+   * calling thread, so the <code>&lt;tag-domain&gt;</code> and <code>&lt;tag&gt;</code>
+   * settings in force at each <code>&lt;email&gt;</code> apply exactly as they would when
+   * parsing sequentially.
+   * <p>
+   * Each mail is parsed from a private copy of its <code>&lt;email&gt;</code> element, so,
+   * unlike {@link #parseMails(Node)}, this leaves {@code mailListNode} untouched.
+   */
+  public MailMessageData[] parseMails(Node mailListNode, Executor executor)
+    throws IOException
+  {
+    return _parser()._parseMails(mailListNode, executor);
+  }
+
+  /**
+   * Parses a mail-merge document on the common fork/join pool.
+   *
+   * @see #parseMails(Node, Executor)
+   */
+  public MailMessageData[] parseMailsInParallel(Node mailListNode)
+    throws IOException
+  {
+    return parseMails(mailListNode, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Fetches the remote resources of a batch of parsed mails concurrently, by at most
+   * <code>dk.br.mail.prefetch-per-host</code> (default 4) connections per host, so that
+   * composing the mails needn't wait for any.
+   *
+   * @return  the number of resources fetched
+   * @see ResourcePrefetcher
+   */
+  public int prefetchResources(MailMessageData... mails)
+  {
+    return prefetcher.prefetch(mails);
+  }
+
+  /**
+   * Warms up the resource cache of a freshly started process: loads what the disk cache
+   * holds, if any, and then fetches the resources of {@code manifest} not found there.
+   *
+   * @return  the number of resources of the manifest at hand
+   * @see MailPartData#warmUp()
+   */
+  public int warmUp(Collection<URL> manifest)
+  {
+    MailPartData.warmUp();
+    return prefetcher.prefetchUrls(manifest);
+  }
+
+  /**
+   * @see MailMessageParser#streamMails(InputStream)
+   */
+  public Iterator<MailMessageData> streamMails(InputStream is)
+    throws IOException
+  {
+    return _parser()._streamMails(is);
+  }
+
+  /**
+   * @see MailMessageParser#streamMails(Reader)
+   */
+  public Iterator<MailMessageData> streamMails(Reader rdr)
+    throws IOException
+  {
+    return _parser()._streamMails(rdr);
+  }
+
+  /**
+   * @see MailMessageParser#contentHandler(Consumer)
+   */
+  public ContentHandler contentHandler(Consumer<MailMessageData> sink)
+  {
+    return _parser()._contentHandler(sink);
+  }
+
+  /**
+   * @see MailMessageParser#saxResult(Consumer)
+   */
+  public SAXResult saxResult(Consumer<MailMessageData> sink)
+  {
+    return _parser()._saxResult(sink);
+  }
+}
@@ -1,24 +1,45 @@
 package dk.br.mail;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.HttpURLConnection;
+import java.lang.ref.SoftReference;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.cache.Cache;
+import javax.cache.CacheException;
 import javax.cache.CacheManager;
 import javax.cache.Caching;
 import javax.cache.configuration.MutableConfiguration;
@@ -26,9 +47,12 @@ import javax.cache.expiry.CreatedExpiryPolicy;
 import javax.cache.expiry.Duration;
 import javax.cache.spi.CachingProvider;
 import javax.mail.MessagingException;
-import javax.net.ssl.SSLException;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CharSequenceInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +64,14 @@ public abstract class MailPartData implements MailPartSource, Serializable
 {
   private final static Logger LOG = LoggerFactory.getLogger(MailPartData.class);
 
+  // Content larger than this is kept in a memory-mapped file rather than on the heap (0 = never):
+  private static volatile long SPILL_THRESHOLD = Long.getLong("dk.br.mail.spill-threshold", 0);
+  private final static String SPILL_DIR = System.getProperty("dk.br.mail.spill-dir");
+  // Spill files beyond this total size are removed, the least recently spilled first:
+  private final static long SPILL_DIR_BYTES = Long.getLong("dk.br.mail.spill-dir-bytes", 1024L * 1024 * 1024);
+  // Mapped content is serialized as the path of its file, only to be read back on this host:
+  private static volatile boolean SPILL_BY_REFERENCE = Boolean.getBoolean("dk.br.mail.spill-by-reference");
+
   protected abstract DataSource _source() throws MessagingException;
 
   public DataHandler getDataHandler() throws MessagingException {
@@ -47,11 +79,101 @@ public abstract class MailPartData implements MailPartSource, Serializable
     return new DataHandler(ds);
   }
 
+  /**
+   * @return  the URL of the remote resource to be fetched when composing, or {@code null}
+   *          if the content is at hand already, or is to be fetched anew for each mail
+   */
+  URL getRemoteUrl() {
+    return null;
+  }
+
+  /**
+   * @return  the URL the content is fetched from when composing, time stamp placeholder
+   *          ({@code $TS$}) and all, or {@code null} if the content is at hand
+   */
+  URL getSourceUrl() {
+    return null;
+  }
+
+  /**
+   * @return  the SHA-256 digest of the content, or {@code null} if not at hand
+   */
+  byte[] digest() {
+    return null;
+  }
+
+  /**
+   * @return  the number of bytes of content, or {@code -1} if not at hand
+   */
+  long length() {
+    return -1;
+  }
+
+  /**
+   * @return  the content type, if the content is at hand
+   */
+  String getContentType() {
+    return null;
+  }
+
+  /**
+   * @return  the name, if the content is at hand
+   */
+  String getName() {
+    return null;
+  }
+
+  /**
+   * @return  a part of the same content, by another content type and name
+   */
+  MailPartData rename(String contentType, String name) throws IOException {
+    throw new UnsupportedOperationException("no content at hand: " + this);
+  }
+
+  /**
+   * @return  this part, with its content at hand, fetching it if need be
+   */
+  MailPartData resolve() throws MessagingException {
+    return this;
+  }
+
+  /**
+   * @return  a key identifying the content type and content of this part, or {@code null}
+   *          if unknown without fetching, see {@link #resolve()}
+   */
+  String contentKey() {
+    return null;
+  }
+
+  /**
+   * @return  the number of bytes of content this part holds on the heap
+   */
+  long weight() {
+    return 0;
+  }
+
+  /**
+   * @return  the content of this part, transfer-encoded once for every mail it goes into,
+   *          or {@code null} if to be encoded as it is written
+   */
+  PreEncodedPart preEncoded() throws MessagingException {
+    return null;
+  }
+
+  /**
+   * Fetches a remote resource into the cache, for composing to find it there.
+   */
+  static void prefetch(URL url)
+      throws IOException
+  {
+    _read(url);
+  }
+
   /**
    * Return a lazy-loading part source wrapping a URL for the target resource to
    * be fetched and embedded during the mail composition.
    */
-  private static MailPartData remote(URL url) {
+  static MailPartData remote(URL url) {
     return new RemoteHtmlResource(url);
   }
 
@@ -72,6 +194,34 @@ public abstract class MailPartData implements MailPartSource, Serializable
     return new BinaryData(contentType, name, content);
   }
 
+  /**
+   * Reads the content of a part from {@code content}, which is left open. Content larger
+   * than the spill threshold ({@code dk.br.mail.spill-threshold}) is written to a file in the
+   * spill directory ({@code dk.br.mail.spill-dir}), and memory-mapped from there when
+   * composing.
+   */
+  public static MailPartData read(String contentType, String name, InputStream content)
+      throws IOException
+  {
+    if (SPILL_THRESHOLD <= 0)
+      return new BinaryData(contentType, name, IOUtils.toByteArray(content));
+
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    if (IOUtils.copyLarge(content, head, 0, SPILL_THRESHOLD + 1) <= SPILL_THRESHOLD)
+      return new BinaryData(contentType, name, head.toByteArray());
+    return MappedData.spill(contentType, name, head, content);
+  }
+
+  /**
+   * @see #read(String, String, InputStream)
+   */
+  static MailPartData fromBase64(String contentType, String name, CharSequence base64)
+      throws IOException
+  {
+    // Decoded as a stream, for large content not to be held on the heap twice:
+    return read(contentType, name, new Base64InputStream(new CharSequenceInputStream(base64, StandardCharsets.US_ASCII)));
+  }
+
 
   private final static Pattern BASE64_INLINE_URL = Pattern.compile("data:(?<contentType>[^;]*)(?<encoding>;[^,]*)?,(?<payload>.*)");
 
@@ -133,84 +283,267 @@ public abstract class MailPartData implements MailPartSource, Serializable
     }
   }
 
-  private static URLConnection _connect(URL url)
+  // How long to keep resources of cache-busting ($TS$) URLs, under the URL template:
+  private final static long CACHE_BUSTING_TTL = 1000L * Long.getLong("dk.br.mail.cache-busting-seconds", 30);
+
+  private static volatile ResourceFetcher FETCHER = _defaultFetcher();
+
+  private static ResourceFetcher _defaultFetcher()
+  {
+    String name = System.getProperty("dk.br.mail.fetcher", "default");
+    ResourceFetcher fetcher;
+    if ("pooled".equals(name)) {
+      fetcher = new PooledHttpFetcher();
+    }
+    else {
+      if (!"default".equals(name))
+        LOG.warn("unknown dk.br.mail.fetcher \"{}\" ignored", name);
+      fetcher = new UrlConnectionFetcher();
+    }
+    return Boolean.getBoolean("dk.br.mail.fetch-resilient") ? new ResilientFetcher(fetcher) : fetcher;
+  }
+
+  /**
+   * Sets the fetcher of the resources referenced by mails, when parsing or composing them.
+   * The default is a {@link UrlConnectionFetcher}, or a {@link PooledHttpFetcher} if the
+   * {@code dk.br.mail.fetcher} system property is {@code pooled}, wrapped in a
+   * {@link ResilientFetcher} if {@code dk.br.mail.fetch-resilient} is {@code true}.
+   */
+  public static void setResourceFetcher(ResourceFetcher fetcher)
+  {
+    if (fetcher == null)
+      throw new NullPointerException("fetcher");
+    FETCHER = fetcher;
+  }
+
+  public static ResourceFetcher getResourceFetcher()
+  {
+    return FETCHER;
+  }
+
+  private static volatile ResourceCache RESOURCE_CACHE = new ResourceCache(
+        Long.getLong("dk.br.mail.resource-cache-bytes", 64 * 1024 * 1024),
+        1000L * Long.getLong("dk.br.mail.resource-cache-seconds", 300),
+        1000L * Long.getLong("dk.br.mail.resource-stale-seconds", 3600));
+
+  /**
+   * @return  the in-process cache of fetched resources
+   */
+  public static ResourceCache getResourceCache()
+  {
+    return RESOURCE_CACHE;
+  }
+
+  /**
+   * Replaces the in-process cache of fetched resources, e.g. for one of another size.
+   */
+  public static void setResourceCache(ResourceCache cache)
+  {
+    if (cache == null)
+      throw new NullPointerException("cache");
+    RESOURCE_CACHE = cache;
+  }
+
+  /**
+   * @return  the size in bytes above which part content is spilled to a memory-mapped file,
+   *          or {@code 0} if never
+   */
+  public static long getSpillThreshold()
+  {
+    return SPILL_THRESHOLD;
+  }
+
+  /**
+   * Sets the size in bytes above which part content read from here on is kept in a
+   * memory-mapped file rather than on the heap. Initially the
+   * {@code dk.br.mail.spill-threshold} system property, or else {@code 0}, never.
+   */
+  public static void setSpillThreshold(long threshold)
+  {
+    SPILL_THRESHOLD = threshold;
+  }
+
+  /**
+   * @return  whether memory-mapped parts are serialized as the path of their file
+   */
+  public static boolean isSpillByReference()
+  {
+    return SPILL_BY_REFERENCE;
+  }
+
+  /**
+   * Sets whether memory-mapped parts are serialized as the path of their file rather than
+   * their content, for mails read back on this host only. Initially the
+   * {@code dk.br.mail.spill-by-reference} system property.
+   */
+  public static void setSpillByReference(boolean byReference)
+  {
+    SPILL_BY_REFERENCE = byReference;
+  }
+
+  private static volatile DiskResourceCache DISK_CACHE = _diskCache();
+
+  private static DiskResourceCache _diskCache()
+  {
+    String dir = System.getProperty("dk.br.mail.disk-cache-dir");
+    if (StringUtils.isEmpty(dir))
+      return null;
+    try {
+      return new DiskResourceCache(new File(dir), Long.getLong("dk.br.mail.disk-cache-bytes", 256 * 1024 * 1024));
+    }
+    catch (IOException ex) {
+      LOG.warn("No disk resource cache - {}", ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return  the cache of fetched resources on disk, or {@code null} if none
+   */
+  public static DiskResourceCache getDiskCache()
+  {
+    return DISK_CACHE;
+  }
+
+  /**
+   * Sets the cache of fetched resources on disk, behind the in-process cache. There is none
+   * unless the {@code dk.br.mail.disk-cache-dir} system property names a directory for it.
+   *
+   * @param cache  the cache, or {@code null} for none
+   */
+  public static void setDiskCache(DiskResourceCache cache)
+  {
+    DISK_CACHE = cache;
+  }
+
+  private static volatile BlobDirectory BLOB_DIRECTORY = _blobDirectory();
+
+  private static BlobDirectory _blobDirectory()
+  {
+    String dir = System.getProperty("dk.br.mail.blob-dir");
+    if (StringUtils.isEmpty(dir))
+      return null;
+    try {
+      return new BlobDirectory(new File(dir));
+    }
+    catch (IOException ex) {
+      LOG.warn("No blob directory - {}", ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return  the directory {@code blob:} references of parsed mails are resolved by, or
+   *          {@code null} if none
+   */
+  public static BlobDirectory getBlobDirectory()
+  {
+    return BLOB_DIRECTORY;
+  }
+
+  /**
+   * Sets the directory {@code blob:} references of parsed mails are resolved by. There is
+   * none unless the {@code dk.br.mail.blob-dir} system property names it.
+   *
+   * @param blobs  the directory, or {@code null} for none
+   */
+  public static void setBlobDirectory(BlobDirectory blobs)
+  {
+    BLOB_DIRECTORY = blobs;
+  }
+
+  /**
+   * Resolves a {@code blob:} reference to the file holding its content, which is not read
+   * until composing.
+   */
+  static MailPartData blob(String ref, String contentType, String name)
       throws IOException
   {
-    Set<String> seen = new HashSet();
+    BlobDirectory blobs = BLOB_DIRECTORY;
+    if (blobs == null)
+      throw new IOException("cannot resolve '" + ref + "' - no blob directory (dk.br.mail.blob-dir)");
+    return new MappedData(contentType, name, blobs.file(ref), BlobDirectory.digestOf(ref));
+  }
 
-    // Loop to follow redirects:
-    for (;;) {
-      LOG.debug("connect({})", url);
-      if (url == null)
-        throw new NullPointerException("bad url");
-      if (!url.getProtocol().startsWith("http"))
-        return url.openConnection();
-
-      // Check for loops and overlong chains of redirects:
-      String urlText = url.toString();
-      if (seen.contains(urlText))
-        throw new IOException("redirect loop");
-      if (seen.size() > 10)
-        throw new IOException("too many redirects");
-      seen.add(urlText);
-
-      // https://stackoverflow.com/a/26046079/442782
-      HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-      conn.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Thunderbird/128.1.0");
-      conn.setConnectTimeout(15000);
-      conn.setReadTimeout(15000);
-      conn.setInstanceFollowRedirects(false);
-
-      int res;
-      try {
-        res = conn.getResponseCode();
-      }
-      catch (SSLException ex) {
-        // conn.disconnect(); here?
-        if ("https".equals(url.getProtocol()) && url.getPort() == -1) {
-          URL retryUrl = new URL(url.toString().replaceFirst("^https:", "http:"));
-          LOG.warn("{} - {}, retry {}", url, ex.getMessage(), retryUrl);
-          url = retryUrl;
-          continue;
-        }
-        throw ex;
-      }
+  /**
+   * Loads the resources cached on disk into the in-process cache, most recently fetched
+   * first, as many as it holds, so that a restarted process composes its first mails without
+   * fetching anything. Resources gone stale are kept for revalidation.
+   *
+   * @return  the number of resources loaded
+   */
+  public static int warmUp()
+  {
+    DiskResourceCache disk = DISK_CACHE;
+    ResourceCache cache = RESOURCE_CACHE;
+    if (disk == null || !cache.isEnabled())
+      return 0;
 
-      if (res == 301 || res == 302) {
-        String location = conn.getHeaderField("Location");
-        LOG.info("Redirect ({} {}) {} \u9192 {}", res, conn.getResponseMessage(), url, location);
-        url = new URL(url, location);  // Deal with relative URLs
+    long t1 = System.currentTimeMillis();
+    List<String> keys = new ArrayList();
+    List<DiskResourceCache.Stored> stored = new ArrayList();
+    long bytes = 0;
+    for (String key : disk.keys()) {
+      DiskResourceCache.Stored s = disk.get(key);
+      if (s == null)
         continue;
-      }
-
-      if (res == 200)
-        LOG.debug("{} ({} {})", url, res, conn.getResponseMessage());
-      else
-        LOG.info("{} ({} {})", url, res, conn.getResponseMessage());
+      if ((bytes += s.value.weight()) > cache.getMaxBytes())
+        break;
+      keys.add(key);
+      stored.add(s);
+    }
 
-      return conn;
+    // Least recently fetched first, so as not to evict the most recent:
+    int loaded = 0;
+    for (int i = keys.size() - 1; i >= 0; i--) {
+      DiskResourceCache.Stored s = stored.get(i);
+      if (cache.restore(keys.get(i), s.value, s.etag, s.lastModified, s.fetchedAt).isUsable())
+        loaded++;
     }
+    long t2 = System.currentTimeMillis();
+    LOG.info("warmed up {} resource(s) from {} ({}ms)", loaded, disk.getDirectory(), t2-t1);
+    return loaded;
   }
 
   private static CacheManager CM;
+  private static Cache<URL,MailPartData> BINARY_DATA_CACHE;
+  private static boolean BINARY_DATA_CACHE_RESOLVED;
+
+  /**
+   * @return  the JSR-107 cache of fetched resources, or {@code null} if there is no caching
+   *          provider, or it is disabled
+   */
+  private static synchronized Cache<URL,MailPartData> _binaryDataCache() {
+    if (BINARY_DATA_CACHE_RESOLVED)
+      return BINARY_DATA_CACHE;
+    BINARY_DATA_CACHE_RESOLVED = true;
 
-  private static Cache<URL,BinaryData> _binaryDataCache() {
-    if (CM == null) {
-      CachingProvider cp = Caching.getCachingProvider();
-      LOG.info("Caching provider {}", cp.getClass());
+    if ("false".equals(System.getProperty("dk.br.mail.resource-cache-jsr107"))) {
+      LOG.info("JSR-107 resource cache disabled");
+      return null;
+    }
 
-      ClassLoader classLoader = MailPartData.class.getClassLoader();
-      URL cfg = classLoader.getResource("cache-config.xml");
-      URI cacheConfig = cfg == null ? null : URI.create(cfg.toString());
-      CM = cp.getCacheManager(cacheConfig, classLoader);
+    CachingProvider cp;
+    try {
+      cp = Caching.getCachingProvider();
+    }
+    catch (CacheException ex) {
+      LOG.info("No JSR-107 resource cache - {}", ex.getMessage());
+      return null;
     }
+    LOG.info("Caching provider {}", cp.getClass());
 
-    Cache<URL, BinaryData> cache = CM.getCache("binaryData", URL.class, BinaryData.class);
+    ClassLoader classLoader = MailPartData.class.getClassLoader();
+    URL cfg = classLoader.getResource("cache-config.xml");
+    URI cacheConfig = cfg == null ? null : URI.create(cfg.toString());
+    CM = cp.getCacheManager(cacheConfig, classLoader);
+
+    Cache<URL,MailPartData> cache = CM.getCache("binaryData", URL.class, MailPartData.class);
     if (cache == null) {
       // See https://www.ehcache.org/documentation/3.9/107.html
-      MutableConfiguration<URL,BinaryData> config =
+      MutableConfiguration<URL,MailPartData> config =
         new MutableConfiguration()
-            .setTypes(URL.class, BinaryData.class)
+            .setTypes(URL.class, MailPartData.class)
             .setStoreByValue(true)
             .setStatisticsEnabled(false)
             .setManagementEnabled(false)
@@ -218,27 +551,162 @@ public abstract class MailPartData implements MailPartSource, Serializable
 
       cache = CM.createCache("binaryData", config);
     }
-    return cache;
+    return BINARY_DATA_CACHE = cache;
   }
 
   /**
-   * Fetch remote resource and cache it for reuse
+   * Fetch remote resource and cache it for reuse, in the in-process cache, backed by the
+   * JSR-107 cache, if any.
    */
-  private static BinaryData _read(URL url)
+  private static MailPartData _read(final URL url)
       throws IOException
   {
     if (isLocal(url.toString()))
       return _fetch(url);
 
-    Cache<URL,BinaryData> cache = _binaryDataCache();
-    BinaryData res = cache.get(url);
-    if (res == null) {
-      res = _fetch(url);
-      cache.put(url, res);
+    // URL.equals() would resolve the host names:
+    final String key = url.toString();
+    final ResourceCache.Entry cached = RESOURCE_CACHE.lookup(key);
+    if (cached != null && cached.isFresh())
+      return cached.getValue();
+
+    if (cached != null && cached.isStale()) {
+      _refresh(key, () -> _load(url, key, cached));
+      return cached.getValue();
     }
+
+    return _coalesced(key, () -> _load(url, key, cached));
+  }
+
+  /**
+   * Loads a resource from the disk cache, or the JSR-107 cache, if not in the in-process
+   * cache at all, or else fetches it, revalidating the entry found, if any.
+   */
+  private static MailPartData _load(URL url, String key, ResourceCache.Entry cached)
+      throws IOException
+  {
+    DiskResourceCache disk = DISK_CACHE;
+    if (cached == null && disk != null) {
+      DiskResourceCache.Stored stored = disk.get(key);
+      if (stored != null) {
+        cached = RESOURCE_CACHE.restore(key, stored.value, stored.etag, stored.lastModified, stored.fetchedAt);
+        if (cached.isFresh())
+          return cached.getValue();
+        if (!cached.isUsable())
+          cached = null;
+      }
+    }
+
+    Cache<URL,MailPartData> cache = _binaryDataCache();
+    if (cached == null && cache != null) {
+      MailPartData res = cache.get(url);
+      if (res != null) {
+        RESOURCE_CACHE.put(key, res);
+        return res;
+      }
+    }
+
+    MailPartData res = _fetch(url, key, cached);
+    if (cache != null)
+      cache.put(url, res);
     return res;
   }
 
+  // Fetches under way, by cache key:
+  private final static ConcurrentMap<String,CompletableFuture<MailPartData>> IN_FLIGHT = new ConcurrentHashMap();
+
+  private final static ExecutorService REFRESHER = Executors.newFixedThreadPool(4, r -> {
+    Thread t = new Thread(r, "resource-refresh");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private interface Loader
+  {
+    MailPartData load() throws IOException;
+  }
+
+  /**
+   * @return  the resource loaded by {@code loader}, or by the loader of any concurrent call
+   *          for the same key
+   */
+  private static MailPartData _coalesced(String key, Loader loader)
+      throws IOException
+  {
+    CompletableFuture<MailPartData> flight = new CompletableFuture();
+    CompletableFuture<MailPartData> other = IN_FLIGHT.putIfAbsent(key, flight);
+    if (other != null) {
+      LOG.debug("{}: awaiting fetch under way", key);
+      return _await(key, other);
+    }
+
+    try {
+      // Another flight may have landed since the cache was looked at:
+      MailPartData res = RESOURCE_CACHE.peek(key);
+      if (res == null)
+        res = loader.load();
+      flight.complete(res);
+      return res;
+    }
+    catch (IOException | RuntimeException ex) {
+      flight.completeExceptionally(ex);
+      throw ex;
+    }
+    finally {
+      IN_FLIGHT.remove(key, flight);
+    }
+  }
+
+  /**
+   * Reloads a stale resource in the background, unless already being loaded.
+   */
+  private static void _refresh(final String key, final Loader loader)
+  {
+    final CompletableFuture<MailPartData> flight = new CompletableFuture();
+    if (IN_FLIGHT.putIfAbsent(key, flight) != null)
+      return;
+
+    LOG.debug("{}: refreshing stale resource", key);
+    try {
+      REFRESHER.execute(() -> {
+        try {
+          flight.complete(loader.load());
+        }
+        catch (IOException | RuntimeException ex) {
+          LOG.warn("{}: refresh failed - {}", key, ex.getMessage());
+          flight.completeExceptionally(ex);
+        }
+        finally {
+          IN_FLIGHT.remove(key, flight);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      IN_FLIGHT.remove(key, flight);
+      flight.completeExceptionally(ex);
+    }
+  }
+
+  private static MailPartData _await(String key, CompletableFuture<MailPartData> flight)
+      throws IOException
+  {
+    try {
+      return flight.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(key + ": interrupted awaiting fetch");
+    }
+    catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw new IOException(cause.getMessage(), cause);
+      if (cause instanceof RuntimeException)
+        throw new RuntimeException(cause.getMessage(), cause);
+      throw new IOException(cause);
+    }
+  }
+
   private static final Pattern URL_PATTERN = Pattern.compile("(?<proto>[^:]):(?<tail>.*)");
 
   private static boolean isLocal(String url) {
@@ -260,22 +728,58 @@ public abstract class MailPartData implements MailPartSource, Serializable
    * embedded during mail composition.
    * @throws  IOException    if the content cannot be fetched
    */
-  private static BinaryData _fetch(URL url)
+  private static MailPartData _fetch(URL url)
+      throws IOException
+  {
+    return _fetch(url, null, null);
+  }
+
+  /**
+   * Fetch the target resource, unless unchanged since cached under {@code key}, and cache
+   * it there, with its validators, if a key is given.
+   */
+  private static MailPartData _fetch(URL url, String key, ResourceCache.Entry cached)
       throws IOException
   {
     long t1 = System.currentTimeMillis();
     LOG.debug("fetching {}", url);
-    URLConnection conn = _connect(url);
-
-    String contentType = conn.getContentType();
-    String contentEncoding = conn.getContentEncoding();
 
     String name = _fileNameOf(url);
 
-    byte content[] = IOUtils.toByteArray(conn);
+    MailPartData res;
+    String contentEncoding;
+    boolean conditional = cached != null && cached.hasValidators();
+    try (FetchResult fetched = conditional ? FETCHER.fetch(url, cached.getETag(), cached.getLastModified()) : FETCHER.fetch(url)) {
+      if (conditional && fetched.isNotModified()) {
+        LOG.debug("{}: not modified ({}ms)", url, System.currentTimeMillis() - t1);
+        RESOURCE_CACHE.revalidated(key, cached);
+        // Stored anew, for a restarted process to find it fresh too:
+        DiskResourceCache disk = DISK_CACHE;
+        if (disk != null)
+          disk.put(key, cached.getValue(), cached.getETag(), cached.getLastModified(), t1);
+        return cached.getValue();
+      }
+
+      String contentType = fetched.getContentType();
+      contentEncoding = fetched.getContentEncoding();
+
+      // Large local files are mapped where they are:
+      File file = "file".equals(url.getProtocol()) ? FileUtils.toFile(url) : null;
+      if (SPILL_THRESHOLD > 0 && file != null && file.isFile() && file.length() > SPILL_THRESHOLD)
+        res = MappedData.map(contentType, name, file);
+      else
+        res = read(contentType, name, fetched.getContent());
+
+      if (key != null) {
+        RESOURCE_CACHE.put(key, res, fetched.getETag(), fetched.getLastModified());
+        DiskResourceCache disk = DISK_CACHE;
+        if (disk != null)
+          disk.put(key, res, fetched.getETag(), fetched.getLastModified(), t1);
+      }
+    }
     long t2 = System.currentTimeMillis();
-    LOG.info("{}: fetched {} bytes of {} ({}ms)", url, content.length, (contentEncoding == null ? "" : "[" + contentEncoding + "]-encoded ") + contentType, t2-t1);
-    return new BinaryData(contentType, name, content);
+    LOG.info("{}: fetched {}{} ({}ms)", url, contentEncoding == null ? "" : "[" + contentEncoding + "]-encoded ", res, t2-t1);
+    return res;
   }
 
   private static String _fileNameOf(URL url)
@@ -308,16 +812,43 @@ public abstract class MailPartData implements MailPartSource, Serializable
       m_urlSpec = url;
     }
 
+    @Override
+    URL getSourceUrl() {
+      return m_urlSpec;
+    }
+
+    @Override
+    URL getRemoteUrl() {
+      // Time stamped URLs are never served from the cache:
+      return m_urlSpec.toString().contains("$TS$") ? null : m_urlSpec;
+    }
+
     @Override
     protected DataSource _source() throws MessagingException {
+      return resolve()._source();
+    }
+
+    @Override
+    MailPartData resolve() throws MessagingException {
       // return new URLDataSource(m_urlSpec);
-      String tsUrl = m_urlSpec.toString().replaceAll(Pattern.quote("$TS$"), Long.toString(System.currentTimeMillis()));
-      BinaryData data;
+      String template = m_urlSpec.toString();
+      String tsUrl = template.replaceAll(Pattern.quote("$TS$"), Long.toString(System.currentTimeMillis()));
+      MailPartData data;
       try
       {
         URL url = new URL(tsUrl);
         try {
-          data = _read(url);
+          if (tsUrl.equals(template))
+            data = _read(url);
+          else if (CACHE_BUSTING_TTL <= 0 || isLocal(tsUrl))
+            data = _fetch(url);
+          else if ((data = RESOURCE_CACHE.get(template)) == null)
+            // Time stamped URLs are kept under their template, for a short while:
+            data = _coalesced(template, () -> {
+              MailPartData res = _fetch(url);
+              RESOURCE_CACHE.put(template, res, CACHE_BUSTING_TTL);
+              return res;
+            });
         }
         catch (IOException ex)
         {
@@ -330,7 +861,7 @@ public abstract class MailPartData implements MailPartSource, Serializable
       }
 
       LOG.debug("attaching {}", data);
-      return data._source();
+      return data;
     }
 
     @Override
@@ -340,7 +871,8 @@ public abstract class MailPartData implements MailPartSource, Serializable
   }
 
   /*
-   *  Utility class that is used to attach a PDF file object to an email.
+   *  Utility class that is used to attach a PDF file object to an email. The content is
+   *  shared, by way of the PartStore, with any other part of the same content.
    */
   private static class BinaryData extends MailPartData
   {
@@ -349,12 +881,31 @@ public abstract class MailPartData implements MailPartSource, Serializable
     private final String m_contentType;
     private final String m_name;
     private final byte m_content[];
+    private final byte m_digest[];
+
+    // Softly, as the encoded content is larger than the content, and is not weighed by the
+    // resource cache; encoded anew if let go of:
+    private transient volatile SoftReference<PreEncodedPart> m_encoded;
 
     public BinaryData(String contentType, String name, byte content[])
+    {
+      this(contentType, name, content, content == null ? null : PartStore.digest(content));
+    }
+
+    private BinaryData(String contentType, String name, byte content[], byte digest[])
     {
       m_contentType = contentType;
       m_name = name;
-      m_content = content;
+      m_digest = digest;
+      m_content = digest == null ? content : PartStore.intern(digest, content);
+    }
+
+    /**
+     * Instances read back from a cache, by value, share the content of those at hand:
+     */
+    private Object readResolve()
+    {
+      return new BinaryData(m_contentType, m_name, m_content, m_digest == null && m_content != null ? PartStore.digest(m_content) : m_digest);
     }
 
     public byte[] getContentBytes()
@@ -362,6 +913,65 @@ public abstract class MailPartData implements MailPartSource, Serializable
       return m_content;
     }
 
+    @Override
+    byte[] digest()
+    {
+      return m_digest;
+    }
+
+    @Override
+    long length()
+    {
+      return m_content == null ? -1 : m_content.length;
+    }
+
+    @Override
+    String getContentType()
+    {
+      return m_contentType;
+    }
+
+    @Override
+    String getName()
+    {
+      return m_name;
+    }
+
+    @Override
+    MailPartData rename(String contentType, String name)
+    {
+      return new BinaryData(contentType, name, m_content, m_digest);
+    }
+
+    @Override
+    long weight()
+    {
+      return m_content == null ? 0 : m_content.length;
+    }
+
+    @Override
+    String contentKey()
+    {
+      return m_digest == null ? null : m_contentType + " " + Base64.encodeBase64String(m_digest);
+    }
+
+    @Override
+    PreEncodedPart preEncoded() throws MessagingException
+    {
+      SoftReference<PreEncodedPart> ref = m_encoded;
+      PreEncodedPart res = ref == null ? null : ref.get();
+      if (res == null && m_content != null) {
+        try {
+          res = PreEncodedPart.of(_source());
+          m_encoded = new SoftReference(res);
+        }
+        catch (IOException ex) {
+          throw new MessagingException("failed to encode " + this, ex);
+        }
+      }
+      return res;
+    }
+
     @Override
     public boolean equals(Object o)
     {
@@ -375,23 +985,14 @@ public abstract class MailPartData implements MailPartSource, Serializable
       return
              StringUtils.equals(this.m_name, that.m_name)
           && StringUtils.equals(this.m_contentType, that.m_contentType)
-          && Arrays.equals(this.m_content, that.m_content);
+          && (this.m_content == that.m_content || Arrays.equals(this.m_digest, that.m_digest));
     }
 
-    private Integer _hash;
-
     @Override
     public int hashCode()
     {
-      if (_hash == null)
-      {
-        // Where is java.util.Arrays.hashCode(Object myArray)?
-        int h = m_name.hashCode() * 37 + m_contentType.hashCode();
-        for (int i = 0; i < m_content.length; i++)
-          h = h * 37 + m_content[i];
-        _hash = h;
-      }
-      return _hash;
+      int h = (m_name == null ? 0 : m_name.hashCode()) * 37 + (m_contentType == null ? 0 : m_contentType.hashCode());
+      return h * 37 + Arrays.hashCode(m_digest);
     }
 
     @Override
@@ -426,4 +1027,324 @@ public abstract class MailPartData implements MailPartSource, Serializable
       };
     }
   }
+
+  /*
+   *  Content kept in a file, and memory-mapped when composing: either a local source file,
+   *  or a file in the spill directory the content was written to, named by its digest.
+   *  Serialized with its content, as BinaryData, unless by reference to the file is enabled
+   *  (dk.br.mail.spill-by-reference), for queues read back on the same host only.
+   */
+  private static class MappedData extends MailPartData
+  {
+    final static long serialVersionUID = 3317096204563802615L;
+
+    // Held while a spill file is reused or mapped, and while spill files are removed:
+    private final static Object SPILL_LOCK = new Object();
+
+    private final String m_contentType;
+    private final String m_name;
+    private final File m_file;
+    private final long m_length;
+    private final byte m_digest[];
+
+    private transient MappedByteBuffer m_buffer;
+
+    private MappedData(String contentType, String name, File file, byte digest[])
+      throws IOException
+    {
+      this(contentType, name, file, file.length(), digest);
+      if (m_length > Integer.MAX_VALUE)
+        throw new IOException(file + ": " + m_length + " bytes, too large to map");
+    }
+
+    private MappedData(String contentType, String name, File file, long length, byte digest[])
+    {
+      m_contentType = contentType;
+      m_name = name;
+      m_file = file;
+      m_length = length;
+      m_digest = digest;
+    }
+
+    static MappedData map(String contentType, String name, File file)
+      throws IOException
+    {
+      MappedData unhashed = new MappedData(contentType, name, file, null);
+      MappedByteBuffer buffer = unhashed._buffer();
+      MessageDigest md = PartStore.newDigest();
+      md.update(buffer.duplicate());
+
+      MappedData res = new MappedData(contentType, name, file, md.digest());
+      res.m_buffer = buffer;
+      return res;
+    }
+
+    static MappedData spill(String contentType, String name, ByteArrayOutputStream head, InputStream rest)
+      throws IOException
+    {
+      File dir = _spillDir();
+      File tmp = File.createTempFile("spill", ".tmp", dir);
+      MessageDigest md = PartStore.newDigest();
+      try {
+        try (OutputStream os = new DigestOutputStream(new FileOutputStream(tmp), md)) {
+          head.writeTo(os);
+          IOUtils.copyLarge(rest, os);
+        }
+
+        byte digest[] = md.digest();
+        File file = new File(dir, Hex.encodeHexString(digest));
+        synchronized (SPILL_LOCK) {
+          // Content already spilled is reused, and touched for the trimming to spare it:
+          boolean spilled = file.length() != tmp.length();
+          if (!spilled)
+            file.setLastModified(System.currentTimeMillis());
+          else if (!tmp.renameTo(file))
+            throw new IOException(tmp + ": cannot rename to " + file);
+
+          // Mapped before trimming, for the file to be removed by it without harm:
+          MappedData res = new MappedData(contentType, name, file, digest);
+          res._buffer();
+          if (spilled)
+            _trimSpillDir(dir, file);
+          return res;
+        }
+      }
+      finally {
+        tmp.delete();
+      }
+    }
+
+    /**
+     * Removes the least recently spilled files, until the spill directory is no larger
+     * than {@code dk.br.mail.spill-dir-bytes}.
+     */
+    private static void _trimSpillDir(File dir, File keep)
+    {
+      if (SPILL_DIR_BYTES <= 0)
+        return;
+      File files[] = dir.listFiles(f -> f.isFile() && !f.getName().endsWith(".tmp"));
+      if (files == null)
+        return;
+      long total = 0;
+      for (File f : files)
+        total += f.length();
+      if (total <= SPILL_DIR_BYTES)
+        return;
+
+      Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+      for (File f : files) {
+        if (total <= SPILL_DIR_BYTES)
+          break;
+        long length = f.length();
+        if (!f.equals(keep) && f.delete()) {
+          LOG.debug("{}: {} bytes removed from spill directory", f, length);
+          total -= length;
+        }
+      }
+    }
+
+    private static File _spillDir()
+      throws IOException
+    {
+      File dir = SPILL_DIR != null ? new File(SPILL_DIR) : new File(System.getProperty("java.io.tmpdir"), "dk.br.mail-spill");
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+        throw new IOException(dir + ": cannot create spill directory");
+      return dir;
+    }
+
+    private synchronized MappedByteBuffer _buffer()
+      throws IOException
+    {
+      if (m_buffer == null) {
+        try (FileChannel channel = FileChannel.open(m_file.toPath(), StandardOpenOption.READ)) {
+          if (channel.size() != m_length)
+            throw new IOException(m_file + ": changed from " + m_length + " to " + channel.size() + " bytes");
+          m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, m_length);
+        }
+      }
+      return m_buffer;
+    }
+
+    /**
+     * Copies read back by reference are mapped at once, not to depend on their file later.
+     */
+    private Object readResolve()
+      throws ObjectStreamException
+    {
+      try {
+        synchronized (SPILL_LOCK) {
+          _buffer();
+        }
+      }
+      catch (IOException ex) {
+        InvalidObjectException res = new InvalidObjectException(m_file + ": " + ex.getMessage());
+        res.initCause(ex);
+        throw res;
+      }
+      return this;
+    }
+
+    private Object writeReplace()
+      throws ObjectStreamException
+    {
+      if (SPILL_BY_REFERENCE)
+        return this;
+      // Inlined, for the mail to be composed on any host:
+      byte content[] = new byte[(int)m_length];
+      try {
+        _buffer().duplicate().get(content);
+      }
+      catch (IOException ex) {
+        InvalidObjectException res = new InvalidObjectException(m_file + ": " + ex.getMessage());
+        res.initCause(ex);
+        throw res;
+      }
+      return new BinaryData(m_contentType, m_name, content);
+    }
+
+    @Override
+    String contentKey()
+    {
+      return m_digest == null ? null : m_contentType + " " + Base64.encodeBase64String(m_digest);
+    }
+
+    @Override
+    byte[] digest()
+    {
+      return m_digest;
+    }
+
+    @Override
+    long length()
+    {
+      return m_length;
+    }
+
+    @Override
+    String getContentType()
+    {
+      return m_contentType;
+    }
+
+    @Override
+    String getName()
+    {
+      return m_name;
+    }
+
+    @Override
+    MailPartData rename(String contentType, String name)
+      throws IOException
+    {
+      // Sharing the mapping, rather than mapping the file anew:
+      MappedData res = new MappedData(contentType, name, m_file, m_length, m_digest);
+      res.m_buffer = _buffer();
+      return res;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (o == this)
+        return true;
+      if (!(o instanceof MappedData))
+        return false;
+      MappedData that = (MappedData)o;
+      return
+             StringUtils.equals(this.m_name, that.m_name)
+          && StringUtils.equals(this.m_contentType, that.m_contentType)
+          && this.m_file.equals(that.m_file)
+          && Arrays.equals(this.m_digest, that.m_digest);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = (m_name == null ? 0 : m_name.hashCode()) * 37 + (m_contentType == null ? 0 : m_contentType.hashCode());
+      return h * 37 + Arrays.hashCode(m_digest);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "[" + m_name + ": " + m_length + " bytes of " + m_contentType + ", mapped from " + m_file + "]";
+    }
+
+    protected DataSource _source() throws MessagingException
+    {
+      final ByteBuffer buffer;
+      try {
+        buffer = _buffer().duplicate();
+      }
+      catch (IOException ex) {
+        throw new MessagingException("failed to map " + m_file, ex);
+      }
+
+      return new DataSource() {
+
+        public InputStream getInputStream() throws IOException
+        {
+          return new ByteBufferInputStream(buffer.duplicate());
+        }
+
+        public OutputStream getOutputStream() throws IOException
+        {
+          throw new UnsupportedOperationException("not writable");
+        }
+
+        public String getContentType()
+        {
+          return m_contentType;
+        }
+
+        public String getName()
+        {
+          return StringUtils.isEmpty(m_name) ? "unknown" : m_name;
+        }
+      };
+    }
+  }
+
+  static class ByteBufferInputStream extends InputStream
+  {
+    private final ByteBuffer m_buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+      m_buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return m_buffer.hasRemaining() ? m_buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len)
+    {
+      if (len == 0)
+        return 0;
+      if (!m_buffer.hasRemaining())
+        return -1;
+      len = Math.min(len, m_buffer.remaining());
+      m_buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+      int k = (int)Math.max(0, Math.min(n, m_buffer.remaining()));
+      // Through Buffer, for the Java 8 method to be linked:
+      ((Buffer)m_buffer).position(m_buffer.position() + k);
+      return k;
+    }
+
+    @Override
+    public int available()
+    {
+      return m_buffer.remaining();
+    }
+  }
 }
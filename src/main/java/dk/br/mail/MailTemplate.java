@@ -0,0 +1,317 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.MessagingException;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A compiled mail-merge template. An <code>&lt;email&gt;</code> is parsed once, with resource
+ * resolution, Inky transformation and CSS inlining all done up front, leaving only the
+ * <code>${name}</code> placeholders in its texts to be filled in for each recipient.
+ * <p>
+ * Placeholders may appear in the subject, headers, plain and HTML bodies, message-id, and in
+ * the <code>&lt;personal&gt;</code> and <code>&lt;email-address&gt;</code> of each address.
+ * Values are HTML-escaped when filled into the HTML body, and URL-encoded when filled into the
+ * query string of a tagged link. Placeholders in the URLs of embedded resources (images, style
+ * sheets) are not supported, as those are resolved when compiling.
+ * <p>
+ * Unless the template has a fixed <code>tracking-id</code>, each rendered mail gets a new
+ * tracking token, or the value of its <code>tracking-id</code> field if given.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @author osa
+ */
+public final class MailTemplate
+{
+  /**
+   * Name of the field holding the tracking id of each rendered mail.
+   */
+  public final static String TRACKING_ID = "tracking-id";
+
+  private final static Pattern PLACEHOLDER = Pattern.compile("\\$\\{(?<name>[\\w.-]+)\\}|%24%7B(?<encoded>[\\w.-]+)%7D");
+
+  private final MailParserConfig config;
+  private final MailMessageData prototype;
+
+  private final Text subject;
+  private final Text plainBody;
+  private final Text htmlBody;
+  private final Text messageID;
+  private final Map<String,Text> headers = new LinkedHashMap();
+  private final List<AddressTemplate> addresses = new ArrayList();
+
+  MailTemplate(MailParserConfig config, MailMessageData prototype, List<Element> addressElements)
+  {
+    this.config = config;
+    this.prototype = prototype;
+
+    subject = Text.of(prototype.getSubject());
+    plainBody = Text.of(prototype.getPlainBody());
+    htmlBody = Text.of(prototype.getHtmlBody());
+    messageID = Text.of(prototype.getMessageID());
+    for (Map.Entry<String,String> e : prototype.getCustomHeaders().entrySet())
+      headers.put(e.getKey(), Text.of(e.getValue()));
+    for (Element a : addressElements)
+      addresses.add(new AddressTemplate(a));
+  }
+
+  /**
+   * Renders the mail for one recipient.
+   *
+   * @throws IllegalArgumentException  if a placeholder has no value in {@code fields}, or an
+   *                                   address comes out invalid
+   */
+  public MailMessageData render(Map<String,String> fields)
+  {
+    if (!fields.containsKey(TRACKING_ID)) {
+      fields = new HashMap(fields);
+      fields.put(TRACKING_ID, config.newTrackingToken());
+    }
+
+    MailMessageData msg = new MailMessageData();
+    if (subject != null)
+      msg.setSubject(subject.render(fields, Escape.NONE));
+    msg.setSentDate(prototype.getSentDate());
+    if (messageID != null)
+      msg.setMessageID(messageID.render(fields, Escape.NONE));
+    for (AddressTemplate a : addresses)
+      a.addTo(msg, fields);
+    for (Map.Entry<String,Text> e : headers.entrySet())
+      msg.setCustomHeader(e.getKey(), e.getValue().render(fields, Escape.NONE));
+    if (plainBody != null)
+      msg.setPlainBody(plainBody.render(fields, Escape.NONE));
+    if (htmlBody != null)
+      msg.setHtmlBody(htmlBody.render(fields, Escape.HTML));
+    msg.setAlternativeBody(prototype.getAlternativeBody());
+
+    // Resolved once, shared by all recipients:
+    for (Map.Entry<String,MailPartSource> e : prototype.getRelatedBodyParts().entrySet())
+      msg.addRelatedBodyPart(e.getKey(), e.getValue());
+    for (MailPartSource attachment : prototype.getAttachments())
+      msg.attach(attachment);
+
+    return msg;
+  }
+
+  /**
+   * Composes the body of the rendered mails once, for all of them to share, unless it
+   * differs by recipient, as when its texts have placeholders (tracked links included).
+   *
+   * @return  the body, or {@code null} if the rendered mails need bodies of their own
+   * @see MailMessageData#compose(javax.mail.Session, SharedBody)
+   */
+  public SharedBody shareBody(boolean failsafe)
+    throws MessagingException, IOException
+  {
+    if ((plainBody != null && !plainBody.isLiteral()) || (htmlBody != null && !htmlBody.isLiteral()))
+      return null;
+
+    MailMessageData msg = new MailMessageData();
+    msg.setPlainBody(prototype.getPlainBody());
+    msg.setHtmlBody(prototype.getHtmlBody());
+    msg.setAlternativeBody(prototype.getAlternativeBody());
+    for (Map.Entry<String,MailPartSource> e : prototype.getRelatedBodyParts().entrySet())
+      msg.addRelatedBodyPart(e.getKey(), e.getValue());
+    for (MailPartSource attachment : prototype.getAttachments())
+      msg.attach(attachment);
+    return msg.shareBody(failsafe);
+  }
+
+  public MailMessageData render(Properties fields)
+  {
+    Map<String,String> res = new HashMap();
+    for (String name : fields.stringPropertyNames())
+      res.put(name, fields.getProperty(name));
+    return render(res);
+  }
+
+  /**
+   * Renders the mail for a recipient given as an XML element, e.g.
+   * <code>&lt;recipient tracking-id="..."&gt;&lt;name&gt;Jane Doe&lt;/name&gt;&lt;email&gt;jane@example.com&lt;/email&gt;&lt;/recipient&gt;</code>.
+   * Fields are taken from its attributes and the text of its child elements.
+   */
+  public MailMessageData render(Element record)
+  {
+    Map<String,String> res = new HashMap();
+    NamedNodeMap attrs = record.getAttributes();
+    for (int i = 0; i < attrs.getLength(); i++) {
+      Attr a = (Attr)attrs.item(i);
+      res.put(a.getName(), a.getValue());
+    }
+    NodeList children = record.getChildNodes();
+    for (int i = 0; i < children.getLength(); i++) {
+      Node n = children.item(i);
+      if (n.getNodeType() == Node.ELEMENT_NODE)
+        res.put(n.getNodeName(), n.getTextContent());
+    }
+    return render(res);
+  }
+
+  /**
+   * Renders mails lazily, one for each record drawn from {@code records}.
+   */
+  public Iterator<MailMessageData> renderAll(final Iterator<? extends Map<String,String>> records)
+  {
+    return new Iterator<MailMessageData>() {
+      @Override
+      public boolean hasNext()
+      {
+        return records.hasNext();
+      }
+
+      @Override
+      public MailMessageData next()
+      {
+        return render(records.next());
+      }
+    };
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[template: \"" + prototype.getSubject() + "\"]";
+  }
+
+  private class AddressTemplate
+  {
+    private final String type;
+    private final Text address;
+    private final Text personal;
+
+    private AddressTemplate(Element addressElement)
+    {
+      type = addressElement.getTagName();
+      Node addressNode = addressElement.getElementsByTagName("email-address").item(0);
+      if (addressNode == null)
+        throw new IllegalArgumentException("'" + type + "' email-address is missing");
+      address = Text.of(addressNode.getTextContent());
+      Node personalNode = addressElement.getElementsByTagName("personal").item(0);
+      personal = personalNode == null ? null : Text.of(personalNode.getTextContent());
+    }
+
+    private void addTo(MailMessageData msg, Map<String,String> fields)
+    {
+      String addrText = address.render(fields, Escape.NONE);
+      String personText = personal == null ? null : personal.render(fields, Escape.NONE);
+      MailMessageParser.addAddress(msg, type, MailMessageParser.toAddress(type, addrText, personText));
+    }
+  }
+
+  private enum Escape
+  {
+    NONE, HTML
+  }
+
+  /**
+   * A text split into literal segments and placeholders, so that rendering it is a matter
+   * of concatenation.
+   */
+  private static class Text
+  {
+    private final String literals[];
+    private final String names[];
+    private final boolean urlEncoded[];
+    private final int literalLength;
+
+    private Text(List<String> literals, List<String> names, List<Boolean> urlEncoded)
+    {
+      this.literals = literals.toArray(new String[literals.size()]);
+      this.names = names.toArray(new String[names.size()]);
+      this.urlEncoded = new boolean[urlEncoded.size()];
+      int len = 0;
+      for (int i = 0; i < this.urlEncoded.length; i++)
+        this.urlEncoded[i] = urlEncoded.get(i);
+      for (String s : literals)
+        len += s.length();
+      literalLength = len;
+    }
+
+    static Text of(String text)
+    {
+      if (text == null)
+        return null;
+
+      List<String> literals = new ArrayList();
+      List<String> names = new ArrayList();
+      List<Boolean> urlEncoded = new ArrayList();
+      Matcher m = PLACEHOLDER.matcher(text);
+      int pos = 0;
+      while (m.find()) {
+        literals.add(text.substring(pos, m.start()));
+        boolean encoded = m.group("name") == null;
+        names.add(encoded ? m.group("encoded") : m.group("name"));
+        urlEncoded.add(encoded);
+        pos = m.end();
+      }
+      literals.add(text.substring(pos));
+      return new Text(literals, names, urlEncoded);
+    }
+
+    boolean isLiteral()
+    {
+      return names.length == 0;
+    }
+
+    String render(Map<String,String> fields, Escape escape)
+    {
+      if (names.length == 0)
+        return literals[0];
+
+      StringBuilder sb = new StringBuilder(literalLength + 32 * names.length);
+      for (int i = 0; i < names.length; i++) {
+        sb.append(literals[i]);
+        String value = fields.get(names[i]);
+        if (value == null)
+          throw new IllegalArgumentException("'" + names[i] + "': no value given");
+        if (urlEncoded[i])
+          sb.append(_urlEncode(value));
+        else if (escape == Escape.HTML)
+          _appendHtml(sb, value);
+        else
+          sb.append(value);
+      }
+      return sb.append(literals[names.length]).toString();
+    }
+  }
+
+  private static String _urlEncode(String s)
+  {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    }
+    catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static void _appendHtml(StringBuilder sb, String s)
+  {
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      switch (ch) {
+        case '&': sb.append("&amp;"); break;
+        case '<': sb.append("&lt;"); break;
+        case '>': sb.append("&gt;"); break;
+        case '"': sb.append("&quot;"); break;
+        default:  sb.append(ch);
+      }
+    }
+  }
+}
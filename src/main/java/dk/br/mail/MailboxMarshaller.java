@@ -0,0 +1,620 @@
+package dk.br.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Marshals whole mailboxes: a javax.mail {@link Folder}, an mbox file, or a maildir
+ * directory. Messages are read in order on the calling thread and marshalled concurrently
+ * on an executor, then written in mailbox order, either as one
+ * <code>&lt;email-list&gt;</code> document, or as a document per message.
+ * <p>
+ * No more than a window of messages ({@code dk.br.mail.marshal-window}) is read ahead of
+ * the one being written, so memory use is bounded by the window, not by the mailbox. The
+ * XML of a message larger than {@code dk.br.mail.marshal-spool-bytes} is held in a temporary
+ * file until written, rather than in memory.
+ * Messages of a folder are fetched a window at a time, by a {@link FetchProfile} of their
+ * envelope and content info.
+ *
+ * @see MailMessageMarshaller#marshal(MimeMessage, XMLStreamWriter, BlobSink)
+ * @author osa
+ */
+public class MailboxMarshaller
+{
+  private final static Logger LOG = LoggerFactory.getLogger(MailboxMarshaller.class);
+
+  private final static int DEFAULT_WINDOW = Integer.getInteger("dk.br.mail.marshal-window", 64);
+  private final static long SPOOL_THRESHOLD = Long.getLong("dk.br.mail.marshal-spool-bytes", 1024 * 1024);
+
+  private final static FetchProfile FETCH_PROFILE = new FetchProfile();
+  static {
+    FETCH_PROFILE.add(FetchProfile.Item.ENVELOPE);
+    FETCH_PROFILE.add(FetchProfile.Item.CONTENT_INFO);
+  }
+
+  private final static XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newInstance();
+  private final static byte XML_DECLARATION[] = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final Session session;
+  private final Executor executor;
+  private final int window;
+  private final BlobSink blobs;
+
+  /**
+   * @param session   the session to parse mbox and maildir messages in
+   * @param executor  the executor to marshal messages on
+   */
+  public MailboxMarshaller(Session session, Executor executor)
+  {
+    this(session, executor, DEFAULT_WINDOW, null);
+  }
+
+  /**
+   * @param window  the number of messages to read ahead at most
+   * @param blobs   where to store the content of related parts and attachments, or
+   *                {@code null} for inlining it as base64
+   */
+  public MailboxMarshaller(Session session, Executor executor, int window, BlobSink blobs)
+  {
+    if (window < 1)
+      throw new IllegalArgumentException("window: " + window);
+    this.session = session;
+    this.executor = executor;
+    this.window = window;
+    this.blobs = blobs;
+  }
+
+  /**
+   * Writes the messages of {@code folder} to {@code os}, as an <code>&lt;email-list&gt;</code>
+   * document. The folder is opened, read-only, if not open already, and then closed again.
+   * The stream is left open.
+   *
+   * @return  the number of messages written
+   */
+  public int marshalList(Folder folder, OutputStream os)
+      throws MessagingException, IOException
+  {
+    return _folder(folder, () -> _marshal(new FolderMessages(folder), new ListOutput(os)));
+  }
+
+  /**
+   * Writes the messages of {@code folder} to {@code dir}, a document per message.
+   *
+   * @return  the number of messages written
+   * @see #marshalList(Folder, OutputStream)
+   */
+  public int marshalFiles(Folder folder, File dir)
+      throws MessagingException, IOException
+  {
+    return _folder(folder, () -> _marshal(new FolderMessages(folder), new FileOutput(dir)));
+  }
+
+  /**
+   * Writes the messages of a mailbox to {@code os}, as an <code>&lt;email-list&gt;</code>
+   * document. The stream is left open.
+   *
+   * @param mailbox  an mbox file, or a maildir directory
+   * @return  the number of messages written
+   */
+  public int marshalList(File mailbox, OutputStream os)
+      throws MessagingException, IOException
+  {
+    try (Messages messages = _open(mailbox)) {
+      return _marshal(messages, new ListOutput(os));
+    }
+  }
+
+  /**
+   * Writes the messages of a mailbox to {@code dir}, a document per message.
+   *
+   * @param mailbox  an mbox file, or a maildir directory
+   * @return  the number of messages written
+   */
+  public int marshalFiles(File mailbox, File dir)
+      throws MessagingException, IOException
+  {
+    try (Messages messages = _open(mailbox)) {
+      return _marshal(messages, new FileOutput(dir));
+    }
+  }
+
+  private Messages _open(File mailbox)
+      throws IOException
+  {
+    if (mailbox.isDirectory())
+      return new MaildirMessages(mailbox);
+    return new MboxMessages(mailbox);
+  }
+
+  private interface FolderTask
+  {
+    int run() throws MessagingException, IOException;
+  }
+
+  private static int _folder(Folder folder, FolderTask task)
+      throws MessagingException, IOException
+  {
+    boolean open = folder.isOpen();
+    if (!open)
+      folder.open(Folder.READ_ONLY);
+    try {
+      return task.run();
+    }
+    finally {
+      if (!open)
+        folder.close(false);
+    }
+  }
+
+  /**
+   * Marshals the messages concurrently, a window of them at a time, and writes them in
+   * order.
+   */
+  private int _marshal(Messages messages, Output out)
+      throws MessagingException, IOException
+  {
+    Deque<CompletableFuture<Spool>> ahead = new ArrayDeque();
+    int count = 0;
+    try {
+      out.start();
+      for (Loader loader; (loader = messages.next()) != null; ) {
+        if (ahead.size() >= window)
+          _write(out, count++, ahead.removeFirst());
+        ahead.add(_submit(loader));
+      }
+      while (!ahead.isEmpty())
+        _write(out, count++, ahead.removeFirst());
+      out.end();
+      LOG.info("{} message(s) marshalled", count);
+      return count;
+    }
+    finally {
+      // Spooled, but not to be written:
+      for (CompletableFuture<Spool> f : ahead)
+        if (!f.cancel(false) && !f.isCompletedExceptionally())
+          f.join().delete();
+    }
+  }
+
+  private CompletableFuture<Spool> _submit(final Loader loader)
+  {
+    final CompletableFuture<Spool> f = new CompletableFuture();
+    executor.execute(() -> {
+      Spool spool = new Spool();
+      try {
+        _marshal(loader.load(), spool);
+      }
+      catch (Throwable ex) {
+        spool.delete();
+        f.completeExceptionally(ex);
+        return;
+      }
+      // Cancelled meanwhile:
+      if (!f.complete(spool))
+        spool.delete();
+    });
+    return f;
+  }
+
+  private static void _write(Output out, int index, CompletableFuture<Spool> f)
+      throws MessagingException, IOException
+  {
+    Spool spool = _await(f);
+    try {
+      out.write(index, spool);
+    }
+    finally {
+      spool.delete();
+    }
+  }
+
+  /**
+   * Writes the <code>&lt;email&gt;</code> of {@code msg} to {@code spool}, as UTF-8, without
+   * XML declaration, and closes it.
+   */
+  private void _marshal(MimeMessage msg, Spool spool)
+      throws MessagingException, IOException, XMLStreamException
+  {
+    try (Spool os = spool) {
+      XMLStreamWriter w = XML_OUTPUT.createXMLStreamWriter(os, "UTF-8");
+      MailMessageMarshaller.marshal(msg, w, blobs);
+      w.flush();
+      w.close();
+    }
+  }
+
+  private static Spool _await(CompletableFuture<Spool> f)
+      throws MessagingException, IOException
+  {
+    try {
+      return f.join();
+    }
+    catch (CompletionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof MessagingException)
+        throw (MessagingException)cause;
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof XMLStreamException)
+        throw new IOException("failed to write <email>", cause);
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw ex;
+    }
+  }
+
+  /**
+   * The XML of a marshalled message, held in memory up to {@code SPOOL_THRESHOLD} bytes, and
+   * in a temporary file beyond that.
+   */
+  private static class Spool extends OutputStream
+  {
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream os = bytes;
+    private long size;
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+      _reserve(1);
+      os.write(b);
+    }
+
+    @Override
+    public void write(byte b[], int off, int len)
+        throws IOException
+    {
+      _reserve(len);
+      os.write(b, off, len);
+    }
+
+    private void _reserve(int len)
+        throws IOException
+    {
+      size += len;
+      if (file == null && size > SPOOL_THRESHOLD) {
+        file = File.createTempFile("mail", ".xml");
+        os = new BufferedOutputStream(new FileOutputStream(file));
+        bytes.writeTo(os);
+        bytes = null;
+      }
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+      os.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      os.close();
+    }
+
+    void writeTo(OutputStream out)
+        throws IOException
+    {
+      if (file == null)
+        bytes.writeTo(out);
+      else
+        Files.copy(file.toPath(), out);
+    }
+
+    void delete()
+    {
+      if (file == null)
+        return;
+      try {
+        os.close();
+      }
+      catch (IOException ex) {
+        LOG.warn("{}: {}", file, ex.getMessage());
+      }
+      if (!file.delete())
+        LOG.warn("{}: cannot delete", file);
+    }
+  }
+
+  /**
+   * Loads a message, on the thread marshalling it.
+   */
+  private interface Loader
+  {
+    MimeMessage load() throws MessagingException, IOException;
+  }
+
+  /**
+   * The messages of a mailbox, in order.
+   */
+  private interface Messages extends Closeable
+  {
+    /**
+     * @return  the next message, or {@code null} if no more
+     */
+    Loader next() throws MessagingException, IOException;
+
+    @Override
+    default void close()
+        throws IOException
+    {
+    }
+  }
+
+  private class FolderMessages implements Messages
+  {
+    private final Folder folder;
+    private final int count;
+    private int number = 1;
+    private Message batch[] = {};
+    private int i;
+
+    FolderMessages(Folder folder)
+        throws MessagingException
+    {
+      this.folder = folder;
+      this.count = folder.getMessageCount();
+    }
+
+    @Override
+    public Loader next()
+        throws MessagingException
+    {
+      if (i == batch.length) {
+        if (number > count)
+          return null;
+        int last = Math.min(count, number + window - 1);
+        batch = folder.getMessages(number, last);
+        folder.fetch(batch, FETCH_PROFILE);
+        number = last + 1;
+        i = 0;
+      }
+      final Message msg = batch[i++];
+      if (!(msg instanceof MimeMessage))
+        throw new MessagingException(folder.getFullName() + " #" + msg.getMessageNumber() + ": not a MIME message");
+      // Marshalled as is, for its received date, from the folder, to be kept:
+      return () -> (MimeMessage)msg;
+    }
+  }
+
+  /**
+   * The messages of an mbox file: each starts with a "From " line, at the start of the file
+   * or after an empty line. Lines quoted as "&gt;From " (mboxrd) are unquoted.
+   */
+  private class MboxMessages implements Messages
+  {
+    private final InputStream is;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean started;
+    private boolean eof;
+
+    MboxMessages(File mbox)
+        throws IOException
+    {
+      is = new BufferedInputStream(new FileInputStream(mbox), 64 * 1024);
+    }
+
+    @Override
+    public Loader next()
+        throws IOException
+    {
+      if (!started) {
+        started = true;
+        // Whatever comes before the first "From " line isn't a message:
+        while (_readLine() && !_isFromLine())
+          ;
+      }
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      // Empty messages (an unquoted "From " line after an empty line) are skipped:
+      while (content.size() == 0) {
+        if (eof)
+          return null;
+        // The empty line before a "From " line separates, and isn't part of the message:
+        byte blank[] = null;
+        while (_readLine()) {
+          if (blank != null && _isFromLine())
+            break;
+          if (blank != null)
+            content.write(blank);
+          blank = _isBlankLine() ? line.toByteArray() : null;
+          if (blank == null)
+            _writeUnquoted(content);
+        }
+      }
+      final byte message[] = content.toByteArray();
+      return () -> new MimeMessage(session, new ByteArrayInputStream(message));
+    }
+
+    private boolean _readLine()
+        throws IOException
+    {
+      line.reset();
+      for (int b; (b = is.read()) >= 0; ) {
+        line.write(b);
+        if (b == '\n')
+          return true;
+      }
+      eof = true;
+      return line.size() > 0;
+    }
+
+    private boolean _isFromLine()
+    {
+      byte b[] = line.toByteArray();
+      return b.length >= 5 && b[0] == 'F' && b[1] == 'r' && b[2] == 'o' && b[3] == 'm' && b[4] == ' ';
+    }
+
+    private boolean _isBlankLine()
+    {
+      byte b[] = line.toByteArray();
+      return b.length == 1 && b[0] == '\n' || b.length == 2 && b[0] == '\r' && b[1] == '\n';
+    }
+
+    private void _writeUnquoted(ByteArrayOutputStream content)
+    {
+      byte b[] = line.toByteArray();
+      int quotes = 0;
+      while (quotes < b.length && b[quotes] == '>')
+        quotes++;
+      boolean quoted = quotes > 0 && b.length >= quotes + 5 && new String(b, quotes, 5, StandardCharsets.US_ASCII).equals("From ");
+      content.write(b, quoted ? 1 : 0, quoted ? b.length - 1 : b.length);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      is.close();
+    }
+  }
+
+  /**
+   * The messages of a maildir: the files of its "cur" and "new" subdirectories, by name,
+   * which starts with the time of delivery.
+   */
+  private class MaildirMessages implements Messages
+  {
+    private final List<File> files = new ArrayList();
+    private int i;
+
+    MaildirMessages(File maildir)
+        throws IOException
+    {
+      for (String sub : new String[] { "cur", "new" }) {
+        File list[] = new File(maildir, sub).listFiles(f -> f.isFile() && !f.getName().startsWith("."));
+        if (list != null)
+          files.addAll(Arrays.asList(list));
+      }
+      if (files.isEmpty() && !new File(maildir, "cur").isDirectory())
+        throw new IOException(maildir + ": not a maildir");
+      Collections.sort(files, (f1, f2) -> f1.getName().compareTo(f2.getName()));
+    }
+
+    @Override
+    public Loader next()
+    {
+      if (i == files.size())
+        return null;
+      final File file = files.get(i++);
+      return () -> {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+          return new MimeMessage(session, is);
+        }
+      };
+    }
+  }
+
+  /**
+   * Where marshalled messages are written, in order.
+   */
+  private interface Output
+  {
+    void start() throws IOException;
+
+    void write(int index, Spool email) throws IOException;
+
+    void end() throws IOException;
+  }
+
+  private static class ListOutput implements Output
+  {
+    private final OutputStream os;
+
+    ListOutput(OutputStream os)
+    {
+      this.os = os;
+    }
+
+    @Override
+    public void start()
+        throws IOException
+    {
+      os.write(XML_DECLARATION);
+      os.write("<email-list>\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void write(int index, Spool email)
+        throws IOException
+    {
+      email.writeTo(os);
+      os.write('\n');
+    }
+
+    @Override
+    public void end()
+        throws IOException
+    {
+      os.write("</email-list>\n".getBytes(StandardCharsets.US_ASCII));
+      os.flush();
+    }
+  }
+
+  private static class FileOutput implements Output
+  {
+    private final File dir;
+
+    FileOutput(File dir)
+    {
+      this.dir = dir;
+    }
+
+    @Override
+    public void start()
+        throws IOException
+    {
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+        throw new IOException(dir + ": cannot create directory");
+    }
+
+    @Override
+    public void write(int index, Spool email)
+        throws IOException
+    {
+      try (OutputStream os = new FileOutputStream(new File(dir, String.format("mail-%06d.xml", index + 1)))) {
+        os.write(XML_DECLARATION);
+        email.writeTo(os);
+      }
+    }
+
+    @Override
+    public void end()
+    {
+    }
+  }
+}
@@ -0,0 +1,362 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeUtility;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Writes a MIME message (RFC 5322, RFC 2045) straight to a stream, without building the
+ * tree of {@code MimeMessage}, {@code MimeMultipart} and {@code MimeBodyPart} objects first.
+ * <p>
+ * Headers, boundaries and encoded content go into a buffer taken from a per-thread pool,
+ * flushed to the target when full. Part content is streamed from its source, and encoded
+ * on the fly. The transfer encodings, default charsets and header order are those chosen
+ * by javax.mail, so that the output parses to the same message as the one composed.
+ *
+ * @see MailMessageSource#composeTo(OutputStream, Session, boolean)
+ * @author osa
+ */
+final class MimeStreamWriter
+{
+  private final static int BUFFER_SIZE = 64 * 1024;
+  private final static ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+  private final static int MAX_LINE_LENGTH = 998;
+  private final static byte CRLF[] = { '\r', '\n' };
+
+  private final static AtomicInteger PART_IDS = new AtomicInteger();
+  private final static AtomicInteger MESSAGE_IDS = new AtomicInteger();
+
+  private final OutputStream out;
+  private byte m_buffer[];
+  private int m_count;
+
+  // Headers to end the headers of the next part with:
+  private final List<String> m_trailing = new ArrayList();
+
+  private final OutputStream m_body = new OutputStream() {
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+      if (m_count == m_buffer.length)
+        _flushBuffer();
+      m_buffer[m_count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte b[], int off, int len)
+        throws IOException
+    {
+      MimeStreamWriter.this.write(b, off, len);
+    }
+  };
+
+  MimeStreamWriter(OutputStream out)
+  {
+    this.out = out;
+    // Taken from the pool until closed, for a nested writer not to share it:
+    m_buffer = BUFFERS.get();
+    BUFFERS.remove();
+  }
+
+  void write(byte b[], int off, int len)
+      throws IOException
+  {
+    while (len > 0) {
+      if (m_count == m_buffer.length)
+        _flushBuffer();
+      int n = Math.min(len, m_buffer.length - m_count);
+      System.arraycopy(b, off, m_buffer, m_count, n);
+      m_count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Writes a line of ASCII text.
+   */
+  void writeln(String s)
+      throws IOException
+  {
+    for (int i = 0; i < s.length(); i++) {
+      if (m_count == m_buffer.length)
+        _flushBuffer();
+      m_buffer[m_count++] = (byte)s.charAt(i);
+    }
+    writeln();
+  }
+
+  void writeln()
+      throws IOException
+  {
+    write(CRLF, 0, CRLF.length);
+  }
+
+  /**
+   * Writes a header as is; the value must be ASCII, and folded already if need be.
+   */
+  void header(String name, String value)
+      throws IOException
+  {
+    writeln(name + ": " + value);
+  }
+
+  /**
+   * Writes a header, folded to lines of no more than 76 characters where possible.
+   */
+  void foldedHeader(String name, String value)
+      throws IOException
+  {
+    header(name, MimeUtility.fold(name.length() + 2, value));
+  }
+
+  /**
+   * Writes an address header, unless there are no addresses.
+   */
+  void addressHeader(String name, List<InternetAddress> addresses)
+      throws IOException
+  {
+    if (addresses.isEmpty())
+      return;
+    header(name, InternetAddress.toString(addresses.toArray(new InternetAddress[addresses.size()]), name.length() + 2));
+  }
+
+  void dateHeader(String name, Date date)
+      throws IOException
+  {
+    header(name, new MailDateFormat().format(date));
+  }
+
+  /**
+   * Adds a header to be written after the content headers of the next part, where
+   * javax.mail puts headers other than the well-known ones.
+   */
+  void trailingHeader(String name, String value)
+  {
+    m_trailing.add(name + ": " + value);
+  }
+
+  private void _endHeaders()
+      throws IOException
+  {
+    for (String header : m_trailing)
+      writeln(header);
+    m_trailing.clear();
+    writeln();
+  }
+
+  /**
+   * Writes the headers of a multipart.
+   *
+   * @return  the boundary of its parts
+   * @see #boundary(String)
+   * @see #endMultipart(String)
+   */
+  String startMultipart(String subtype)
+      throws IOException, MessagingException
+  {
+    String boundary = "----=_Part_" + PART_IDS.getAndIncrement() + "_" + (ThreadLocalRandom.current().nextInt() & 0x7fffffff) + "." + System.currentTimeMillis();
+    ContentType ct = new ContentType("multipart", subtype, null);
+    ct.setParameter("boundary", boundary);
+    foldedHeader("Content-Type", ct.toString());
+    _endHeaders();
+    return boundary;
+  }
+
+  /**
+   * Starts the next part of a multipart. The part is to be ended by {@link #writeln()}.
+   */
+  void boundary(String boundary)
+      throws IOException
+  {
+    writeln("--" + boundary);
+  }
+
+  void endMultipart(String boundary)
+      throws IOException
+  {
+    writeln("--" + boundary + "--");
+  }
+
+  /**
+   * Writes a text part, in the charset of its content type, or else the default MIME
+   * charset.
+   */
+  void text(String text, String contentType)
+      throws IOException, MessagingException
+  {
+    preEncoded(PreEncodedPart.text(text, contentType), null);
+  }
+
+  /**
+   * Writes a part encoded already, as an attachment if a file name is given.
+   */
+  void preEncoded(PreEncodedPart part, String fileName)
+      throws IOException, MessagingException
+  {
+    ContentType ct = new ContentType(part.getContentType());
+    if (fileName != null)
+      ct.setParameter("name", fileName);
+    foldedHeader("Content-Type", ct.toString());
+    header("Content-Transfer-Encoding", part.getEncoding());
+    _attachmentHeader(fileName);
+    _endHeaders();
+    part.writeTo(m_body);
+  }
+
+  /**
+   * Writes a part from a data source, as an attachment if a file name is given. The source
+   * is read twice: first for choosing the transfer encoding (only as far as the first
+   * non-ASCII byte, unless text), then for writing it.
+   */
+  void data(DataSource ds, String fileName)
+      throws IOException, MessagingException
+  {
+    ContentType ct = new ContentType(ds.getContentType());
+    boolean text = ct.match("text/*");
+    String encoding;
+    try (InputStream is = ds.getInputStream()) {
+      encoding = encodingOf(is, text);
+    }
+    if (text && ct.getParameter("charset") == null)
+      ct.setParameter("charset", "7bit".equals(encoding) ? "us-ascii" : MimeUtility.getDefaultMIMECharset());
+    if (fileName != null)
+      ct.setParameter("name", fileName);
+
+    foldedHeader("Content-Type", ct.toString());
+    header("Content-Transfer-Encoding", encoding);
+    _attachmentHeader(fileName);
+    _endHeaders();
+
+    byte chunk[] = new byte[8192];
+    try (InputStream is = ds.getInputStream(); OutputStream os = _encoded(encoding)) {
+      for (int n; (n = is.read(chunk)) > 0; )
+        os.write(chunk, 0, n);
+    }
+  }
+
+  /**
+   * Writes a part composed already: its content header lines, the headers queued by
+   * {@link #trailingHeader}, and its encoded content.
+   */
+  void preComposed(byte headerLines[], byte content[])
+      throws IOException
+  {
+    write(headerLines, 0, headerLines.length);
+    _endHeaders();
+    write(content, 0, content.length);
+  }
+
+  private void _attachmentHeader(String fileName)
+      throws IOException, MessagingException
+  {
+    if (fileName == null)
+      return;
+    ContentDisposition cd = new ContentDisposition(Part.ATTACHMENT);
+    cd.setParameter("filename", fileName);
+    foldedHeader("Content-Disposition", cd.toString());
+  }
+
+  /**
+   * @return  a stream encoding content into the buffer, to be closed when done, leaving
+   *          the buffer open
+   */
+  private OutputStream _encoded(String encoding)
+      throws MessagingException
+  {
+    OutputStream shield = CloseShieldOutputStream.wrap(m_body);
+    if ("base64".equals(encoding))
+      return Base64.getMimeEncoder().wrap(shield);
+    return MimeUtility.encode(shield, encoding);
+  }
+
+  /**
+   * @return  the transfer encoding javax.mail would choose for content: "7bit" for ASCII in
+   *          lines of no more than 998 characters, "quoted-printable" for text that is mostly
+   *          that, and "base64" for anything else
+   */
+  static String encodingOf(InputStream is, boolean text)
+      throws IOException
+  {
+    long ascii = 0;
+    long nonAscii = 0;
+    boolean longLine = false;
+    int lineLength = 0;
+    byte chunk[] = new byte[8192];
+    for (int n; (n = is.read(chunk)) > 0; ) {
+      for (int i = 0; i < n; i++) {
+        int b = chunk[i] & 0xff;
+        if (b == '\r' || b == '\n')
+          lineLength = 0;
+        else if (++lineLength > MAX_LINE_LENGTH)
+          longLine = true;
+
+        if (b < 0x7f && (b >= 0x20 || b == '\r' || b == '\n' || b == '\t'))
+          ascii++;
+        else
+          nonAscii++;
+      }
+      // Binary content with a single byte of anything but short ASCII lines is base64:
+      if (!text && (nonAscii > 0 || longLine))
+        return "base64";
+    }
+
+    if (nonAscii == 0 && !longLine)
+      return "7bit";
+    return text && ascii > nonAscii ? "quoted-printable" : "base64";
+  }
+
+  /**
+   * @return  a unique Message-ID, as javax.mail makes them
+   */
+  static String messageId(Session session)
+  {
+    InternetAddress local = session == null ? null : InternetAddress.getLocalAddress(session);
+    String address = local == null ? "javamailuser@localhost" : local.getAddress();
+    return "<" + (ThreadLocalRandom.current().nextInt() & 0x7fffffff) + "." + MESSAGE_IDS.getAndIncrement() + "." + System.currentTimeMillis() + ".JavaMail." + address + ">";
+  }
+
+  private void _flushBuffer()
+      throws IOException
+  {
+    out.write(m_buffer, 0, m_count);
+    m_count = 0;
+  }
+
+  /**
+   * Flushes what is written to the target, and returns the buffer to the pool. The target
+   * is left open.
+   */
+  void close()
+      throws IOException
+  {
+    if (m_buffer == null)
+      return;
+    try {
+      _flushBuffer();
+      out.flush();
+    }
+    finally {
+      BUFFERS.set(m_buffer);
+      m_buffer = null;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package dk.br.mail;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM-wide, content-addressed store of mail part payloads. Identical payloads (the logo,
+ * footer images, or terms and conditions PDF embedded in every mail of a batch) are kept
+ * once, keyed by their SHA-256 digest, for as long as any part refers to them.
+ *
+ * @author osa
+ */
+final class PartStore
+{
+  private final static Map<ByteBuffer,ContentRef> CONTENT = new ConcurrentHashMap();
+  private final static ReferenceQueue<byte[]> STALE = new ReferenceQueue();
+
+  private PartStore()
+  {
+  }
+
+  static byte[] digest(byte content[])
+  {
+    return newDigest().digest(content);
+  }
+
+  static MessageDigest newDigest()
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * @return  the payload stored under {@code digest}, storing {@code content} there first
+   *          if there is none
+   */
+  static byte[] intern(byte digest[], byte content[])
+  {
+    _expunge();
+
+    ByteBuffer key = ByteBuffer.wrap(digest);
+    for (;;) {
+      ContentRef ref = CONTENT.get(key);
+      byte stored[] = ref == null ? null : ref.get();
+      if (stored != null)
+        return stored;
+
+      ContentRef fresh = new ContentRef(key, content);
+      if (ref == null ? CONTENT.putIfAbsent(key, fresh) == null : CONTENT.replace(key, ref, fresh))
+        return content;
+    }
+  }
+
+  /**
+   * @return  the number of distinct payloads stored
+   */
+  static int size()
+  {
+    _expunge();
+    return CONTENT.size();
+  }
+
+  private static void _expunge()
+  {
+    for (ContentRef ref; (ref = (ContentRef)STALE.poll()) != null; )
+      CONTENT.remove(ref.key, ref);
+  }
+
+  private static class ContentRef extends WeakReference<byte[]>
+  {
+    private final ByteBuffer key;
+
+    private ContentRef(ByteBuffer key, byte content[])
+    {
+      super(content, STALE);
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package dk.br.mail;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The permanent (301, 308) redirects seen by a fetcher, for later fetches to go straight to
+ * the target.
+ *
+ * @author osa
+ */
+final class PermanentRedirects
+{
+  private final static Logger LOG = LoggerFactory.getLogger(PermanentRedirects.class);
+
+  private final static int MAX_ENTRIES = 4096;
+  private final static int MAX_HOPS = 10;
+
+  // URL.equals() would resolve the host names:
+  private final Map<String,URL> targets = new ConcurrentHashMap();
+
+  static boolean isPermanent(int status)
+  {
+    return status == 301 || status == 308;
+  }
+
+  /**
+   * @return  the target {@code url} is known to redirect to, or {@code url} itself
+   */
+  URL resolve(URL url)
+  {
+    for (int i = 0; i < MAX_HOPS; i++) {
+      URL target = targets.get(url.toString());
+      if (target == null)
+        break;
+      url = target;
+    }
+    return url;
+  }
+
+  void remember(URL url, URL target)
+  {
+    if (targets.size() >= MAX_ENTRIES)
+      targets.clear();
+    targets.put(url.toString(), target);
+  }
+
+  /**
+   * Forgets the redirect of {@code url}, as its target failed.
+   */
+  void forget(URL url)
+  {
+    if (targets.remove(url.toString()) != null)
+      LOG.debug("{}: redirect forgotten", url);
+  }
+
+  int size()
+  {
+    return targets.size();
+  }
+}
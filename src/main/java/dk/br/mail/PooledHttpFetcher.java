@@ -0,0 +1,284 @@
+package dk.br.mail;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.SSLException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ResourceFetcher} keeping HTTP connections alive for reuse, asking for compressed
+ * content, and limiting the number of concurrent connections to each host.
+ * <p>
+ * Connections are pooled by the JDK's keep-alive cache, which takes back a connection once
+ * the response has been read to the end and closed. Every response, including those of
+ * redirects and errors, is therefore drained and closed here. Note that the cache keeps no
+ * more than {@code http.maxConnections} (5) idle connections per host, however many are
+ * allowed at a time.
+ * <p>
+ * "gzip" and "deflate" encoded content is decoded on the fly. Permanent redirects are
+ * remembered, and gone straight to by later fetches. Hosts failing the TLS handshake on the
+ * default HTTPS port are remembered too, and fetched from by plain HTTP thereafter.
+ *
+ * @author osa
+ */
+public class PooledHttpFetcher implements ResourceFetcher
+{
+  private final static Logger LOG = LoggerFactory.getLogger(PooledHttpFetcher.class);
+
+  private final static int MAX_REDIRECTS = 10;
+
+  // Unread response content to read before closing, for the connection to be kept alive:
+  private final static long MAX_DRAIN = 64 * 1024;
+
+  private final int perHostLimit;
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  private final ConcurrentMap<String,Semaphore> hostPermits = new ConcurrentHashMap();
+  private final Set<String> plainHttpHosts = ConcurrentHashMap.newKeySet();
+  private final PermanentRedirects redirects = new PermanentRedirects();
+
+  public PooledHttpFetcher()
+  {
+    this(Integer.getInteger("dk.br.mail.fetch-per-host", 8),
+         Integer.getInteger("dk.br.mail.fetch-connect-timeout", 15000),
+         Integer.getInteger("dk.br.mail.fetch-read-timeout", 15000));
+  }
+
+  /**
+   * @param perHostLimit    the number of concurrent connections allowed to any one host
+   * @param connectTimeout  milliseconds
+   * @param readTimeout     milliseconds
+   */
+  public PooledHttpFetcher(int perHostLimit, int connectTimeout, int readTimeout)
+  {
+    if (perHostLimit < 1)
+      throw new IllegalArgumentException("per-host limit must be positive: " + perHostLimit);
+    this.perHostLimit = perHostLimit;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  public int getPerHostLimit()
+  {
+    return perHostLimit;
+  }
+
+  @Override
+  public FetchResult fetch(URL url)
+      throws IOException
+  {
+    return fetch(url, null, null);
+  }
+
+  @Override
+  public FetchResult fetch(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    URL target = redirects.resolve(url);
+    if (!target.toString().equals(url.toString())) {
+      try {
+        return _fetch(target, etag, lastModified);
+      }
+      catch (IOException ex) {
+        LOG.info("{} - {}, retry {}", target, ex.getMessage(), url);
+        redirects.forget(url);
+      }
+    }
+    return _fetch(url, etag, lastModified);
+  }
+
+  private FetchResult _fetch(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    Set<String> seen = new HashSet();
+
+    // Loop to follow redirects:
+    for (;;) {
+      if (!url.getProtocol().startsWith("http")) {
+        URLConnection conn = url.openConnection();
+        return new FetchResult(url, conn.getContentType(), conn.getContentEncoding(), conn.getInputStream());
+      }
+
+      if ("https".equals(url.getProtocol()) && url.getPort() == -1 && plainHttpHosts.contains(url.getHost()))
+        url = new URL(url.toString().replaceFirst("^https:", "http:"));
+
+      // Check for loops and overlong chains of redirects:
+      String urlText = url.toString();
+      if (!seen.add(urlText))
+        throw new IOException("redirect loop");
+      if (seen.size() > MAX_REDIRECTS + 1)
+        throw new IOException("too many redirects");
+
+      Semaphore permits = _permits(url);
+      try {
+        permits.acquire();
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted waiting for a connection to " + url.getHost());
+      }
+
+      boolean released = false;
+      try {
+        LOG.debug("connect({})", url);
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setRequestProperty("User-Agent", UrlConnectionFetcher.USER_AGENT);
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setInstanceFollowRedirects(false);
+        if (etag != null)
+          conn.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null)
+          conn.setRequestProperty("If-Modified-Since", lastModified);
+
+        int res;
+        try {
+          res = conn.getResponseCode();
+        }
+        catch (SSLException ex) {
+          if ("https".equals(url.getProtocol()) && url.getPort() == -1) {
+            URL retryUrl = new URL(url.toString().replaceFirst("^https:", "http:"));
+            LOG.warn("{} - {}, retry {} (and any later https: URLs on {})", url, ex.getMessage(), retryUrl, url.getHost());
+            plainHttpHosts.add(url.getHost());
+            url = retryUrl;
+            continue;
+          }
+          throw ex;
+        }
+
+        if (res == 301 || res == 302 || res == 303 || res == 307 || res == 308) {
+          String location = conn.getHeaderField("Location");
+          LOG.info("Redirect ({} {}) {} \u9192 {}", res, conn.getResponseMessage(), url, location);
+          _drain(conn.getInputStream());
+          URL target = new URL(url, location);  // Deal with relative URLs
+          if (PermanentRedirects.isPermanent(res))
+            redirects.remember(url, target);
+          url = target;
+          continue;
+        }
+
+        if (res == 304) {
+          LOG.debug("{} ({} {})", url, res, conn.getResponseMessage());
+          _drain(conn.getInputStream());
+          return FetchResult.notModified(url, etag, lastModified);
+        }
+
+        if (res >= 400) {
+          LOG.info("{} ({} {})", url, res, conn.getResponseMessage());
+          _drain(conn.getErrorStream());
+          throw new IOException(url + ": " + res + " " + conn.getResponseMessage());
+        }
+
+        if (res == 200)
+          LOG.debug("{} ({} {})", url, res, conn.getResponseMessage());
+        else
+          LOG.info("{} ({} {})", url, res, conn.getResponseMessage());
+
+        // From here on, closing the response releases the permit:
+        InputStream is = new PermitInputStream(conn.getInputStream(), permits);
+        released = true;
+
+        String encoding = conn.getContentEncoding();
+        try {
+          if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+            is = new GZIPInputStream(is);
+          else if ("deflate".equalsIgnoreCase(encoding))
+            is = new InflaterInputStream(is);
+          else
+            return new FetchResult(url, conn.getContentType(), encoding, is, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+        }
+        catch (IOException ex) {
+          IOUtils.closeQuietly(is);
+          throw ex;
+        }
+
+        LOG.debug("{}: decoding {} content", url, encoding);
+        return new FetchResult(url, conn.getContentType(), null, is, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+      }
+      finally {
+        if (!released)
+          permits.release();
+      }
+    }
+  }
+
+  private Semaphore _permits(URL url)
+  {
+    String host = url.getHost().toLowerCase();
+    Semaphore permits = hostPermits.get(host);
+    if (permits == null) {
+      Semaphore fresh = new Semaphore(perHostLimit, true);
+      permits = hostPermits.putIfAbsent(host, fresh);
+      if (permits == null)
+        permits = fresh;
+    }
+    return permits;
+  }
+
+  /**
+   * Reads a response body to the end and closes it, handing the connection back for reuse
+   * unless too much of it was left unread.
+   */
+  private static void _drain(InputStream is)
+  {
+    if (is == null)
+      return;
+    try {
+      IOUtils.skip(is, MAX_DRAIN);
+    }
+    catch (IOException ex) {
+      LOG.debug("drain failed - {}", ex.getMessage());
+    }
+    finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  /**
+   * Holds a connection permit for its host until the response is closed. Decoders stop
+   * reading at the end of the compressed content, before the end of the response.
+   */
+  private static class PermitInputStream extends FilterInputStream
+  {
+    private Semaphore permits;
+
+    PermitInputStream(InputStream in, Semaphore permits)
+    {
+      super(in);
+      this.permits = permits;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+      try {
+        _drain(in);
+      }
+      finally {
+        synchronized (this) {
+          if (permits != null) {
+            permits.release();
+            permits = null;
+          }
+        }
+      }
+    }
+  }
+}
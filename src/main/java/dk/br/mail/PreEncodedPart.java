@@ -0,0 +1,270 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Base64;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The content of a part, transfer-encoded once, for the encoding to be reused by every
+ * mail the part goes into, rather than chosen and done anew by javax.mail each time.
+ * <p>
+ * Content of short lines of ASCII goes as is ("7bit"). Text goes as is, if it may be sent
+ * as "8bit" ({@code dk.br.mail.allow-8bit}, for relays known to support 8BITMIME), or else
+ * quoted-printable or base64, whichever is smaller. Anything else is base64.
+ *
+ * @see MailPartData#preEncoded()
+ * @author osa
+ */
+final class PreEncodedPart
+{
+  private final static boolean ALLOW_8BIT = Boolean.getBoolean("dk.br.mail.allow-8bit");
+
+  private final static int MAX_LINE_LENGTH = 998;
+  private final static int QP_LINE_LENGTH = 76;
+  private final static byte HEX[] = "0123456789ABCDEF".getBytes();
+
+  private final String m_contentType;
+  private final String m_name;
+  private final String m_encoding;
+  private final byte m_encoded[];
+
+  // The text encoded, if a text body:
+  private final String m_text;
+
+  private PreEncodedPart(String contentType, String name, String encoding, byte encoded[], String text)
+  {
+    m_contentType = contentType;
+    m_name = name;
+    m_encoding = encoding;
+    m_encoded = encoded;
+    m_text = text;
+  }
+
+  /**
+   * Encodes a text body, in the charset of its content type, or else the default MIME
+   * charset.
+   */
+  static PreEncodedPart text(String text, String contentType)
+      throws MessagingException
+  {
+    ContentType ct = new ContentType(contentType);
+    if (ct.getParameter("charset") == null)
+      ct.setParameter("charset", MimeUtility.getDefaultMIMECharset());
+    byte content[];
+    try {
+      content = text.getBytes(MimeUtility.javaCharset(ct.getParameter("charset")));
+    }
+    catch (UnsupportedEncodingException ex) {
+      throw new MessagingException(ct.getParameter("charset") + ": unsupported charset", ex);
+    }
+    return _encode(ct, null, content, text);
+  }
+
+  /**
+   * Encodes the content of a data source, keeping its content type and name.
+   */
+  static PreEncodedPart of(DataSource ds)
+      throws IOException, MessagingException
+  {
+    ContentType ct = new ContentType(ds.getContentType());
+    byte content[];
+    try (InputStream is = ds.getInputStream()) {
+      content = IOUtils.toByteArray(is);
+    }
+    return _encode(ct, ds.getName(), content, null);
+  }
+
+  private static PreEncodedPart _encode(ContentType ct, String name, byte content[], String source)
+  {
+    boolean text = ct.match("text/*");
+    long ascii = 0;
+    long nonAscii = 0;
+    boolean longLine = false;
+    boolean binary = false;
+    int lineLength = 0;
+    for (int i = 0; i < content.length; i++) {
+      int b = content[i] & 0xff;
+      if (b == '\r' || b == '\n')
+        lineLength = 0;
+      else if (++lineLength > MAX_LINE_LENGTH)
+        longLine = true;
+
+      if (b < 0x7f && (b >= 0x20 || b == '\r' || b == '\n' || b == '\t'))
+        ascii++;
+      else
+        nonAscii++;
+      if (b == 0)
+        binary = true;
+    }
+
+    String encoding;
+    byte encoded[];
+    if (nonAscii == 0 && !longLine) {
+      encoding = "7bit";
+      encoded = content;
+    }
+    else if (text && ALLOW_8BIT && !longLine && !binary) {
+      encoding = "8bit";
+      encoded = content;
+    }
+    else if (text && _quotedPrintableLength(ascii, nonAscii) <= _base64Length(content.length)) {
+      encoding = "quoted-printable";
+      encoded = quotedPrintable(content);
+    }
+    else {
+      encoding = "base64";
+      encoded = Base64.getMimeEncoder().encode(content);
+    }
+
+    // As javax.mail has it, text of no given charset is US-ASCII, if 7bit:
+    if (text && ct.getParameter("charset") == null)
+      ct.setParameter("charset", "7bit".equals(encoding) ? "us-ascii" : MimeUtility.getDefaultMIMECharset());
+    return new PreEncodedPart(ct.toString(), name, encoding, encoded, source);
+  }
+
+  private static long _base64Length(long length)
+  {
+    long res = (length + 2) / 3 * 4;
+    return res + res / 76 * 2;
+  }
+
+  private static long _quotedPrintableLength(long ascii, long nonAscii)
+  {
+    long res = ascii + 3 * nonAscii;
+    return res + res / (QP_LINE_LENGTH - 1) * 3;
+  }
+
+  /**
+   * @return  text encoded as quoted-printable (RFC 2045), line breaks of any kind written as
+   *          CRLF
+   */
+  static byte[] quotedPrintable(byte content[])
+  {
+    ByteArrayOutputStream os = new ByteArrayOutputStream(content.length + content.length / 8);
+    int lineLength = 0;
+    for (int i = 0; i < content.length; i++) {
+      int b = content[i] & 0xff;
+      if (b == '\r' || b == '\n') {
+        if (b == '\r' && i + 1 < content.length && content[i + 1] == '\n')
+          i++;
+        os.write('\r');
+        os.write('\n');
+        lineLength = 0;
+        continue;
+      }
+
+      // Whitespace at the end of a line would be lost:
+      boolean lineEnd = i + 1 == content.length || content[i + 1] == '\r' || content[i + 1] == '\n';
+      boolean literal = (b >= 0x21 && b <= 0x7e && b != '=') || ((b == ' ' || b == '\t') && !lineEnd);
+      int length = literal ? 1 : 3;
+      if (lineLength + length > QP_LINE_LENGTH - 1) {
+        os.write('=');
+        os.write('\r');
+        os.write('\n');
+        lineLength = 0;
+      }
+      if (literal) {
+        os.write(b);
+      }
+      else {
+        os.write('=');
+        os.write(HEX[b >> 4]);
+        os.write(HEX[b & 0xf]);
+      }
+      lineLength += length;
+    }
+    return os.toByteArray();
+  }
+
+  String getContentType()
+  {
+    return m_contentType;
+  }
+
+  String getName()
+  {
+    return m_name;
+  }
+
+  String getEncoding()
+  {
+    return m_encoding;
+  }
+
+  /**
+   * @return  whether this is the encoding of {@code text}
+   */
+  boolean encodes(String text)
+  {
+    return m_text != null && m_text.equals(text);
+  }
+
+  /**
+   * @return  the number of bytes of encoded content
+   */
+  int length()
+  {
+    return m_encoded.length;
+  }
+
+  void writeTo(OutputStream os)
+      throws IOException
+  {
+    os.write(m_encoded);
+  }
+
+  /**
+   * @return  a body part writing the encoded content as is
+   */
+  PreencodedMimeBodyPart toBodyPart()
+      throws MessagingException
+  {
+    PreencodedMimeBodyPart part = new PreencodedMimeBodyPart(m_encoding);
+    part.setDataHandler(new DataHandler(new EncodedSource()));
+    return part;
+  }
+
+  private class EncodedSource implements DataSource
+  {
+    @Override
+    public InputStream getInputStream()
+    {
+      return new ByteArrayInputStream(m_encoded);
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+      throw new UnsupportedOperationException("not writable");
+    }
+
+    @Override
+    public String getContentType()
+    {
+      return m_contentType;
+    }
+
+    @Override
+    public String getName()
+    {
+      return m_name;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[" + m_encoded.length + " bytes of " + m_encoding + "-encoded " + m_contentType + "]";
+  }
+}
@@ -0,0 +1,525 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ResourceFetcher} keeping track of the health of the hosts fetched from, for a
+ * host that is down not to stall a batch of mails, each waiting for it to time out.
+ * <ul>
+ * <li>Failed fetches are remembered for a while, and fail at once when repeated.</li>
+ * <li>A host failing to connect or respond a number of times in a row gets its circuit
+ *     opened: fetches from it fail at once, until a single trial fetch after a while
+ *     succeeds.</li>
+ * <li>Optionally, a fetch taking longer than a given percentile of the recent latencies of
+ *     its host is hedged by a second request, and the first response is used.</li>
+ * </ul>
+ * The state of each host is available from {@link #getHostStates()}.
+ *
+ * @author osa
+ */
+public class ResilientFetcher implements ResourceFetcher
+{
+  private final static Logger LOG = LoggerFactory.getLogger(ResilientFetcher.class);
+
+  private final static int MAX_FAILURES = 4096;
+  private final static int LATENCY_SAMPLES = 64;
+  private final static int MIN_LATENCY_SAMPLES = 16;
+  private final static long MIN_HEDGE_DELAY = 50;
+
+  public enum Circuit { CLOSED, OPEN, HALF_OPEN }
+
+  private final ResourceFetcher delegate;
+  private final long failureTtlMillis;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final int hedgePercentile;
+
+  private final Map<String,Failure> failures = new ConcurrentHashMap();
+  private final Map<String,HostHealth> hosts = new ConcurrentHashMap();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "resource-hedge");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public ResilientFetcher(ResourceFetcher delegate)
+  {
+    this(delegate,
+         1000L * Long.getLong("dk.br.mail.fetch-failure-seconds", 60),
+         Integer.getInteger("dk.br.mail.fetch-circuit-failures", 5),
+         1000L * Long.getLong("dk.br.mail.fetch-circuit-open-seconds", 60),
+         Integer.getInteger("dk.br.mail.fetch-hedge-percentile", 0));
+  }
+
+  /**
+   * @param failureTtlMillis  how long to remember a failed fetch; zero to not remember
+   * @param failureThreshold  the number of host failures in a row opening its circuit
+   * @param openMillis        how long a circuit stays open before a trial fetch
+   * @param hedgePercentile   the percentile of recent latencies of a host after which to
+   *                          hedge a fetch; zero to not hedge
+   */
+  public ResilientFetcher(ResourceFetcher delegate, long failureTtlMillis, int failureThreshold, long openMillis, int hedgePercentile)
+  {
+    if (failureThreshold < 1)
+      throw new IllegalArgumentException("failure threshold must be positive: " + failureThreshold);
+    if (hedgePercentile < 0 || hedgePercentile >= 100)
+      throw new IllegalArgumentException("hedge percentile must be 0-99: " + hedgePercentile);
+    this.delegate = delegate;
+    this.failureTtlMillis = failureTtlMillis;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  public ResourceFetcher getDelegate()
+  {
+    return delegate;
+  }
+
+  @Override
+  public FetchResult fetch(URL url)
+      throws IOException
+  {
+    return fetch(url, null, null);
+  }
+
+  @Override
+  public FetchResult fetch(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    if (!url.getProtocol().startsWith("http"))
+      return delegate.fetch(url, etag, lastModified);
+
+    String key = url.toString();
+    Failure failure = failures.get(key);
+    if (failure != null) {
+      if (System.currentTimeMillis() < failure.until)
+        throw new IOException(url + ": failed " + (System.currentTimeMillis() - failure.at) + "ms ago - " + failure.message);
+      failures.remove(key, failure);
+    }
+
+    HostHealth host = _host(url);
+    Circuit admitted = host.admit();
+    if (admitted == null)
+      throw new IOException(url + ": circuit open for " + url.getHost() + " - " + host.lastFailure);
+
+    try {
+      return _fetch(url, etag, lastModified, host);
+    }
+    catch (IOException ex) {
+      _failed(key, ex);
+      throw ex;
+    }
+    finally {
+      // Over, however it ended, for the next fetch to be a trial if need be:
+      if (admitted == Circuit.HALF_OPEN)
+        host.trialEnded();
+    }
+  }
+
+  private FetchResult _fetch(URL url, String etag, String lastModified, HostHealth host)
+      throws IOException
+  {
+    long delay = hedgePercentile > 0 ? host.latencyPercentile(hedgePercentile) : -1;
+    if (delay < 0)
+      return _attempt(url, etag, lastModified, host);
+
+    Race race = new Race();
+    _launch(race, url, etag, lastModified, host);
+    try {
+      try {
+        return race.winner.get(Math.max(delay, MIN_HEDGE_DELAY), TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException ex) {
+        if (_launch(race, url, etag, lastModified, host)) {
+          LOG.debug("{}: no response after {}ms, hedged", url, delay);
+          host.hedged();
+        }
+      }
+      return race.winner.get();
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(url + ": interrupted");
+    }
+    catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private boolean _launch(final Race race, final URL url, final String etag, final String lastModified, final HostHealth host)
+  {
+    if (!race.launch())
+      return false;
+    CompletableFuture.runAsync(() -> {
+      try {
+        race.succeeded(_attempt(url, etag, lastModified, host));
+      }
+      catch (IOException | RuntimeException ex) {
+        race.failed(ex);
+      }
+    }, executor);
+    return true;
+  }
+
+  private FetchResult _attempt(URL url, String etag, String lastModified, HostHealth host)
+      throws IOException
+  {
+    long t1 = System.currentTimeMillis();
+    try {
+      FetchResult res = delegate.fetch(url, etag, lastModified);
+      host.succeeded(System.currentTimeMillis() - t1);
+      return res;
+    }
+    catch (IOException ex) {
+      if (_isHostFailure(ex))
+        host.failed(ex);
+      else
+        host.succeeded(System.currentTimeMillis() - t1);
+      throw ex;
+    }
+  }
+
+  /**
+   * @return  whether {@code ex} tells of the host being down or overloaded, rather than of
+   *          the resource being missing, say
+   */
+  private static boolean _isHostFailure(IOException ex)
+  {
+    return ex instanceof SocketTimeoutException
+        || ex instanceof ConnectException
+        || ex instanceof NoRouteToHostException
+        || ex instanceof UnknownHostException;
+  }
+
+  private void _failed(String key, IOException ex)
+  {
+    if (failureTtlMillis <= 0)
+      return;
+    if (failures.size() >= MAX_FAILURES)
+      _expungeFailures();
+    long now = System.currentTimeMillis();
+    failures.put(key, new Failure(now, now + failureTtlMillis, ex.getMessage()));
+  }
+
+  private void _expungeFailures()
+  {
+    long now = System.currentTimeMillis();
+    for (Iterator<Failure> it = failures.values().iterator(); it.hasNext(); )
+      if (it.next().until <= now)
+        it.remove();
+    if (failures.size() >= MAX_FAILURES)
+      failures.clear();
+  }
+
+  private HostHealth _host(URL url)
+  {
+    String name = url.getHost().toLowerCase();
+    HostHealth host = hosts.get(name);
+    if (host == null) {
+      HostHealth fresh = new HostHealth(name);
+      host = hosts.putIfAbsent(name, fresh);
+      if (host == null)
+        host = fresh;
+    }
+    return host;
+  }
+
+  /**
+   * @return  the state of the hosts fetched from
+   */
+  public List<HostState> getHostStates()
+  {
+    List<HostState> res = new ArrayList();
+    for (HostHealth host : hosts.values())
+      res.add(host.state());
+    return res;
+  }
+
+  /**
+   * @return  the state of {@code host}, or {@code null} if not fetched from
+   */
+  public HostState getHostState(String host)
+  {
+    HostHealth health = hosts.get(host.toLowerCase());
+    return health == null ? null : health.state();
+  }
+
+  /**
+   * @return  the number of failed fetches remembered
+   */
+  public int getFailureCount()
+  {
+    return failures.size();
+  }
+
+  /**
+   * Forgets the failures of all hosts and URLs, closing all circuits.
+   */
+  public void reset()
+  {
+    failures.clear();
+    hosts.clear();
+  }
+
+  /**
+   * A snapshot of the state of a host.
+   */
+  public static class HostState
+  {
+    private final String host;
+    private final Circuit circuit;
+    private final int consecutiveFailures;
+    private final long successCount;
+    private final long failureCount;
+    private final long hedgeCount;
+    private final long medianLatency;
+    private final long openUntil;
+    private final String lastFailure;
+
+    private HostState(String host, Circuit circuit, int consecutiveFailures, long successCount, long failureCount, long hedgeCount, long medianLatency, long openUntil, String lastFailure)
+    {
+      this.host = host;
+      this.circuit = circuit;
+      this.consecutiveFailures = consecutiveFailures;
+      this.successCount = successCount;
+      this.failureCount = failureCount;
+      this.hedgeCount = hedgeCount;
+      this.medianLatency = medianLatency;
+      this.openUntil = openUntil;
+      this.lastFailure = lastFailure;
+    }
+
+    public String getHost()
+    {
+      return host;
+    }
+
+    public Circuit getCircuit()
+    {
+      return circuit;
+    }
+
+    public int getConsecutiveFailures()
+    {
+      return consecutiveFailures;
+    }
+
+    public long getSuccessCount()
+    {
+      return successCount;
+    }
+
+    public long getFailureCount()
+    {
+      return failureCount;
+    }
+
+    public long getHedgeCount()
+    {
+      return hedgeCount;
+    }
+
+    /**
+     * @return  the median of the recent latencies, in milliseconds, or -1 if unknown
+     */
+    public long getMedianLatency()
+    {
+      return medianLatency;
+    }
+
+    /**
+     * @return  when an open circuit is to admit a trial fetch, in milliseconds since the epoch
+     */
+    public long getOpenUntil()
+    {
+      return openUntil;
+    }
+
+    public String getLastFailure()
+    {
+      return lastFailure;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "[" + host + ": " + circuit + ", " + successCount + " ok, " + failureCount + " failed (" + consecutiveFailures + " in a row), " + hedgeCount + " hedged, median " + medianLatency + "ms]";
+    }
+  }
+
+  private class HostHealth
+  {
+    private final String name;
+
+    private Circuit circuit = Circuit.CLOSED;
+    private int consecutiveFailures;
+    private long successCount;
+    private long failureCount;
+    private long hedgeCount;
+    private long openUntil;
+    private String lastFailure;
+    private boolean trialUnderway;
+
+    private final long latencies[] = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+
+    private HostHealth(String name)
+    {
+      this.name = name;
+    }
+
+    /**
+     * @return  the circuit a fetch is admitted by, {@link Circuit#HALF_OPEN} for the trial
+     *          fetch, or {@code null} if not admitted
+     */
+    synchronized Circuit admit()
+    {
+      if (circuit == Circuit.CLOSED)
+        return Circuit.CLOSED;
+      if (circuit == Circuit.OPEN && System.currentTimeMillis() >= openUntil) {
+        LOG.info("{}: circuit half open, trial fetch", name);
+        circuit = Circuit.HALF_OPEN;
+      }
+      if (circuit == Circuit.HALF_OPEN && !trialUnderway) {
+        trialUnderway = true;
+        return Circuit.HALF_OPEN;
+      }
+      return null;
+    }
+
+    synchronized void trialEnded()
+    {
+      trialUnderway = false;
+    }
+
+    synchronized void succeeded(long latency)
+    {
+      latencies[latencyCount++ % LATENCY_SAMPLES] = latency;
+      successCount++;
+      consecutiveFailures = 0;
+      trialUnderway = false;
+      if (circuit != Circuit.CLOSED) {
+        LOG.info("{}: circuit closed", name);
+        circuit = Circuit.CLOSED;
+      }
+    }
+
+    synchronized void failed(IOException ex)
+    {
+      failureCount++;
+      consecutiveFailures++;
+      lastFailure = ex.toString();
+      trialUnderway = false;
+      if (circuit == Circuit.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+        if (circuit != Circuit.OPEN)
+          LOG.warn("{}: circuit open for {}ms, after {} failure(s) in a row - {}", name, openMillis, consecutiveFailures, lastFailure);
+        circuit = Circuit.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+      }
+    }
+
+    synchronized void hedged()
+    {
+      hedgeCount++;
+    }
+
+    /**
+     * @return  the given percentile of the recent latencies, or -1 if too few are known
+     */
+    synchronized long latencyPercentile(int percentile)
+    {
+      int n = Math.min(latencyCount, LATENCY_SAMPLES);
+      if (n < MIN_LATENCY_SAMPLES)
+        return -1;
+      long sorted[] = Arrays.copyOf(latencies, n);
+      Arrays.sort(sorted);
+      return sorted[Math.min(n - 1, n * percentile / 100)];
+    }
+
+    synchronized HostState state()
+    {
+      int n = Math.min(latencyCount, LATENCY_SAMPLES);
+      long median = -1;
+      if (n > 0) {
+        long sorted[] = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        median = sorted[n / 2];
+      }
+      return new HostState(name, circuit, consecutiveFailures, successCount, failureCount, hedgeCount, median, openUntil, lastFailure);
+    }
+  }
+
+  private static class Failure
+  {
+    private final long at;
+    private final long until;
+    private final String message;
+
+    private Failure(long at, long until, String message)
+    {
+      this.at = at;
+      this.until = until;
+      this.message = message;
+    }
+  }
+
+  /**
+   * The responses to a fetch and its hedge, the first successful one winning. The loser is
+   * closed as it comes in.
+   */
+  private static class Race
+  {
+    private final CompletableFuture<FetchResult> winner = new CompletableFuture();
+    private int running;
+
+    synchronized boolean launch()
+    {
+      if (winner.isDone())
+        return false;
+      running++;
+      return true;
+    }
+
+    synchronized void succeeded(FetchResult res)
+    {
+      running--;
+      if (!winner.complete(res))
+        IOUtils.closeQuietly(res);
+    }
+
+    synchronized void failed(Throwable ex)
+    {
+      running--;
+      if (running == 0)
+        winner.completeExceptionally(ex);
+    }
+  }
+}
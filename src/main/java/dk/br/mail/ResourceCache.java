@@ -0,0 +1,375 @@
+package dk.br.mail;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process cache of fetched resources, keyed by URL, bounded by the total size of the
+ * content held on the heap.
+ * <p>
+ * Parts are immutable, and kept by reference. The cache is a segmented LRU: resources enter
+ * a probationary segment, and move to a protected one, of up to 80% of the capacity, when
+ * hit. Room is made by evicting the least recently used probationary resources first, so
+ * that a batch of resources used once does not push out the logos used by every mail.
+ * <p>
+ * Resources go stale some time after being fetched. A stale resource is still served, for
+ * a while, as it is being refreshed in the background. Resources fetched with validators
+ * ("ETag", "Last-Modified") are kept past that, to be revalidated by a conditional fetch.
+ *
+ * @see MailPartData#getResourceCache()
+ * @author osa
+ */
+public class ResourceCache
+{
+  private final static int PROTECTED_PERCENT = 80;
+
+  // Weighed in with each entry, on top of its content:
+  private final static long ENTRY_OVERHEAD = 256;
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final long staleMillis;
+
+  private final LinkedHashMap<String,Entry> probationary = new LinkedHashMap(16, 0.75f, true);
+  private final LinkedHashMap<String,Entry> protectedEntries = new LinkedHashMap(16, 0.75f, true);
+  private long probationaryBytes;
+  private long protectedBytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong staleHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes   the total content size to keep; zero disables caching
+   * @param ttlMillis  how long a resource is fresh after being put
+   */
+  public ResourceCache(long maxBytes, long ttlMillis)
+  {
+    this(maxBytes, ttlMillis, 0);
+  }
+
+  /**
+   * @param maxBytes     the total content size to keep; zero disables caching
+   * @param ttlMillis    how long a resource is fresh after being put
+   * @param staleMillis  how long a resource may be served stale after that
+   */
+  public ResourceCache(long maxBytes, long ttlMillis, long staleMillis)
+  {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    this.staleMillis = staleMillis;
+  }
+
+  /**
+   * @return  the fresh resource cached under {@code key}, or {@code null}
+   */
+  synchronized MailPartData get(String key)
+  {
+    Entry e = _entry(key);
+    if (e == null || !e.isFresh()) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return e.value;
+  }
+
+  /**
+   * @return  the entry of the resource cached under {@code key}, fresh, stale, or kept for
+   *          revalidation, or {@code null}
+   */
+  synchronized Entry lookup(String key)
+  {
+    Entry e = _entry(key);
+    if (e == null || !(e.isFresh() || e.isStale()))
+      misses.incrementAndGet();
+    else if (e.isFresh())
+      hits.incrementAndGet();
+    else
+      staleHits.incrementAndGet();
+    return e;
+  }
+
+  private Entry _entry(String key)
+  {
+    Entry e = probationary.remove(key);
+    if (e != null) {
+      probationaryBytes -= e.weight;
+      if (e.isUsable()) {
+        // Used twice now, move to the protected segment:
+        protectedEntries.put(key, e);
+        protectedBytes += e.weight;
+        _demote();
+      }
+      else {
+        e = null;
+      }
+    }
+    else {
+      e = protectedEntries.get(key);
+      if (e != null && !e.isUsable()) {
+        protectedEntries.remove(key);
+        protectedBytes -= e.weight;
+        e = null;
+      }
+    }
+    return e;
+  }
+
+  /**
+   * @return  the resource cached under {@code key}, or {@code null}, without counting it
+   *          as a hit or a miss
+   */
+  synchronized MailPartData peek(String key)
+  {
+    Entry e = probationary.get(key);
+    if (e == null)
+      e = protectedEntries.get(key);
+    return e == null || !e.isFresh() ? null : e.value;
+  }
+
+  void put(String key, MailPartData value)
+  {
+    put(key, value, null, null);
+  }
+
+  /**
+   * Puts a resource to be fresh for less than the default, and never served stale.
+   */
+  void put(String key, MailPartData value, long ttlMillis)
+  {
+    long now = System.currentTimeMillis();
+    long expires = now + Math.min(ttlMillis, this.ttlMillis);
+    _put(key, new Entry(value, ENTRY_OVERHEAD + value.weight(), null, null, expires, expires));
+  }
+
+  /**
+   * Puts a resource fetched with the validators given, if any.
+   */
+  void put(String key, MailPartData value, String etag, String lastModified)
+  {
+    long now = System.currentTimeMillis();
+    _put(key, new Entry(value, ENTRY_OVERHEAD + value.weight(), etag, lastModified, now + ttlMillis, now + ttlMillis + staleMillis));
+  }
+
+  /**
+   * Puts a resource fetched at the time given, e.g. read back from disk, unless too old to
+   * be of use.
+   *
+   * @return  the entry of the resource
+   */
+  Entry restore(String key, MailPartData value, String etag, String lastModified, long fetchedAt)
+  {
+    Entry e = new Entry(value, ENTRY_OVERHEAD + value.weight(), etag, lastModified, fetchedAt + ttlMillis, fetchedAt + ttlMillis + staleMillis);
+    if (e.isUsable())
+      _put(key, e);
+    return e;
+  }
+
+  /**
+   * Renews the entry of a resource found unchanged by a conditional fetch.
+   */
+  void revalidated(String key, Entry e)
+  {
+    revalidations.incrementAndGet();
+    put(key, e.value, e.etag, e.lastModified);
+  }
+
+  private synchronized void _put(String key, Entry e)
+  {
+    if (maxBytes <= 0 || e.weight > maxBytes)
+      return;
+
+    remove(key);
+    probationary.put(key, e);
+    probationaryBytes += e.weight;
+    _evict();
+  }
+
+  synchronized void remove(String key)
+  {
+    Entry e = probationary.remove(key);
+    if (e != null)
+      probationaryBytes -= e.weight;
+    e = protectedEntries.remove(key);
+    if (e != null)
+      protectedBytes -= e.weight;
+  }
+
+  /**
+   * Moves the least recently used protected entries back on probation, while the protected
+   * segment exceeds its share of the capacity.
+   */
+  private void _demote()
+  {
+    long maxProtected = maxBytes / 100 * PROTECTED_PERCENT;
+    Iterator<Map.Entry<String,Entry>> it = protectedEntries.entrySet().iterator();
+    while (protectedBytes > maxProtected && it.hasNext()) {
+      Map.Entry<String,Entry> eldest = it.next();
+      it.remove();
+      protectedBytes -= eldest.getValue().weight;
+      probationary.put(eldest.getKey(), eldest.getValue());
+      probationaryBytes += eldest.getValue().weight;
+    }
+  }
+
+  private void _evict()
+  {
+    Iterator<Map.Entry<String,Entry>> it = probationary.entrySet().iterator();
+    while (probationaryBytes + protectedBytes > maxBytes && it.hasNext()) {
+      probationaryBytes -= it.next().getValue().weight;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+    it = protectedEntries.entrySet().iterator();
+    while (probationaryBytes + protectedBytes > maxBytes && it.hasNext()) {
+      protectedBytes -= it.next().getValue().weight;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  public boolean isEnabled()
+  {
+    return maxBytes > 0;
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * @return  the total content size of the resources held
+   */
+  public synchronized long getBytes()
+  {
+    return probationaryBytes + protectedBytes;
+  }
+
+  public synchronized int size()
+  {
+    return probationary.size() + protectedEntries.size();
+  }
+
+  public long getHitCount()
+  {
+    return hits.get();
+  }
+
+  /**
+   * @return  the number of stale resources served, while being refreshed
+   */
+  public long getStaleHitCount()
+  {
+    return staleHits.get();
+  }
+
+  public long getMissCount()
+  {
+    return misses.get();
+  }
+
+  /**
+   * @return  the number of stale resources found unchanged by a conditional fetch
+   */
+  public long getRevalidationCount()
+  {
+    return revalidations.get();
+  }
+
+  public long getEvictionCount()
+  {
+    return evictions.get();
+  }
+
+  /**
+   * Empties the cache and resets the counters.
+   */
+  public void clear()
+  {
+    synchronized (this) {
+      probationary.clear();
+      protectedEntries.clear();
+      probationaryBytes = 0;
+      protectedBytes = 0;
+    }
+    hits.set(0);
+    staleHits.set(0);
+    misses.set(0);
+    revalidations.set(0);
+    evictions.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[resource cache: " + size() + " entries, " + getBytes() + "/" + maxBytes + " bytes, " + hits.get() + " hits, " + staleHits.get() + " stale hits, " + misses.get() + " misses, " + revalidations.get() + " revalidations, " + evictions.get() + " evictions]";
+  }
+
+  /**
+   * A cached resource, and its validators.
+   */
+  static class Entry
+  {
+    private final MailPartData value;
+    private final long weight;
+    private final String etag;
+    private final String lastModified;
+    private final long expires;
+    private final long staleUntil;
+
+    private Entry(MailPartData value, long weight, String etag, String lastModified, long expires, long staleUntil)
+    {
+      this.value = value;
+      this.weight = weight;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.expires = expires;
+      this.staleUntil = staleUntil;
+    }
+
+    MailPartData getValue()
+    {
+      return value;
+    }
+
+    String getETag()
+    {
+      return etag;
+    }
+
+    String getLastModified()
+    {
+      return lastModified;
+    }
+
+    boolean isFresh()
+    {
+      return System.currentTimeMillis() < expires;
+    }
+
+    /**
+     * @return  whether no longer fresh, but still to be served while being refreshed
+     */
+    boolean isStale()
+    {
+      long now = System.currentTimeMillis();
+      return now >= expires && now < staleUntil;
+    }
+
+    boolean hasValidators()
+    {
+      return etag != null || lastModified != null;
+    }
+
+    boolean isUsable()
+    {
+      return hasValidators() || System.currentTimeMillis() < staleUntil;
+    }
+  }
+}
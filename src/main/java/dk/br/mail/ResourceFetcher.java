@@ -0,0 +1,38 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Fetches the content of the resources (images, style sheets, attachments) referenced by
+ * mails. Implementations must be thread-safe.
+ *
+ * @see MailPartData#setResourceFetcher(ResourceFetcher)
+ * @author osa
+ */
+public interface ResourceFetcher
+{
+  /**
+   * Fetches {@code url}, following any redirects.
+   *
+   * @return  the response, to be closed by the caller
+   * @throws  IOException    if the content cannot be fetched
+   */
+  FetchResult fetch(URL url)
+      throws IOException;
+
+  /**
+   * Fetches {@code url}, unless unchanged since fetched with the validators given. The
+   * default implementation fetches it unconditionally.
+   *
+   * @param etag          the "ETag" of the content at hand, or {@code null}
+   * @param lastModified  the "Last-Modified" date of the content at hand, or {@code null}
+   * @return  the response, to be closed by the caller, telling whether the content is
+   *          {@linkplain FetchResult#isNotModified() unchanged}
+   */
+  default FetchResult fetch(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    return fetch(url);
+  }
+}
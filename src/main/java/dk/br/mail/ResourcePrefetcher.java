@@ -0,0 +1,161 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the remote resources (images, style sheets, attachments) of a batch of parsed
+ * mails up front, so that composing them won't have to wait for the network.
+ * <p>
+ * The distinct URLs of the batch are grouped by host, and fetched concurrently, by no more
+ * than {@code perHostLimit} connections to any one host at a time. Fetched content goes
+ * into the resource cache consulted when composing. A resource failing to prefetch is
+ * logged and left for the composing to retry and report.
+ *
+ * @author osa
+ */
+public class ResourcePrefetcher
+{
+  private final static Logger LOG = LoggerFactory.getLogger(ResourcePrefetcher.class);
+
+  private final static int MAX_THREADS = 32;
+
+  private final int perHostLimit;
+
+  public ResourcePrefetcher(int perHostLimit)
+  {
+    if (perHostLimit < 1)
+      throw new IllegalArgumentException("per-host limit must be positive: " + perHostLimit);
+    this.perHostLimit = perHostLimit;
+  }
+
+  public int getPerHostLimit()
+  {
+    return perHostLimit;
+  }
+
+  /**
+   * @see #prefetch(Collection)
+   */
+  public int prefetch(MailMessageData... mails)
+  {
+    return prefetch(Arrays.asList(mails));
+  }
+
+  /**
+   * Fetches the remote resources of {@code mails}, returning when all have been fetched or
+   * have failed.
+   *
+   * @return  the number of resources fetched
+   */
+  public int prefetch(Collection<MailMessageData> mails)
+  {
+    return prefetchUrls(remoteUrls(mails));
+  }
+
+  /**
+   * Fetches the resources at {@code urls}, e.g. a manifest of the resources used by the
+   * templates of a campaign, to warm up the caches before the first batch is composed.
+   *
+   * @return  the number of resources fetched
+   */
+  public int prefetchUrls(Collection<URL> urls)
+  {
+    // URL.equals() would resolve the host names:
+    Map<String,URL> distinct = new LinkedHashMap();
+    for (URL url : urls)
+      distinct.put(url.toString(), url);
+
+    Map<String,Queue<URL>> byHost = new LinkedHashMap();
+    int total = 0;
+    for (URL url : distinct.values()) {
+      Queue<URL> queue = byHost.get(url.getHost());
+      if (queue == null)
+        byHost.put(url.getHost(), queue = new ConcurrentLinkedQueue());
+      queue.add(url);
+      total++;
+    }
+    if (total == 0)
+      return 0;
+
+    int threads = 0;
+    for (Queue<URL> queue : byHost.values())
+      threads += Math.min(perHostLimit, queue.size());
+    threads = Math.min(threads, MAX_THREADS);
+
+    long t1 = System.currentTimeMillis();
+    AtomicInteger fetched = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "resource-prefetch");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      // Each host gets its own set of workers, draining the queue of URLs on that host:
+      List<CompletableFuture<Void>> workers = new ArrayList();
+      for (Queue<URL> queue : byHost.values())
+        for (int i = Math.min(perHostLimit, queue.size()); i > 0; i--)
+          workers.add(CompletableFuture.runAsync(() -> _drain(queue, fetched), executor));
+      CompletableFuture.allOf(workers.toArray(new CompletableFuture[workers.size()])).join();
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    long t2 = System.currentTimeMillis();
+    LOG.info("prefetched {} of {} resource(s) from {} host(s) ({}ms)", fetched.get(), total, byHost.size(), t2-t1);
+    return fetched.get();
+  }
+
+  private static void _drain(Queue<URL> queue, AtomicInteger fetched)
+  {
+    for (URL url; (url = queue.poll()) != null; ) {
+      try {
+        MailPartData.prefetch(url);
+        fetched.incrementAndGet();
+      }
+      catch (IOException | RuntimeException ex) {
+        LOG.warn("{}: prefetch failed - {}", url, ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return  the distinct URLs of remote resources referenced by {@code mails}
+   */
+  static List<URL> remoteUrls(Collection<MailMessageData> mails)
+  {
+    // URL.equals() would resolve the host names:
+    Map<String,URL> res = new LinkedHashMap();
+    for (MailMessageData mail : mails) {
+      for (MailPartSource part : mail.getRelatedBodyParts().values())
+        _addRemoteUrl(part, res);
+      for (MailPartSource part : mail.getAttachments())
+        _addRemoteUrl(part, res);
+    }
+    return new ArrayList(res.values());
+  }
+
+  private static void _addRemoteUrl(MailPartSource part, Map<String,URL> res)
+  {
+    if (!(part instanceof MailPartData))
+      return;
+    URL url = ((MailPartData)part).getRemoteUrl();
+    if (url != null)
+      res.put(url.toString(), url);
+  }
+}
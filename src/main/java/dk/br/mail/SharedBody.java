@@ -0,0 +1,152 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * The body of a message, composed and encoded once, for the many messages of a mail-merge
+ * batch that differ only by their headers (recipients, subject, tracking ids) to share.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ *
+ * @see MailMessageData#shareBody(boolean)
+ * @see MailMessageData#compose(Session, SharedBody)
+ * @see MailMessageData#composeTo(java.io.OutputStream, Session, SharedBody)
+ * @author osa
+ */
+public final class SharedBody
+{
+  private final static byte CRLF[] = { '\r', '\n' };
+
+  // The content headers (Content-Type, Content-Transfer-Encoding), each line ended by CRLF:
+  private final byte m_headerLines[];
+  private final List<String[]> m_headers;
+  private final byte m_content[];
+
+  private SharedBody(byte headerLines[], List<String[]> headers, byte content[])
+  {
+    m_headerLines = headerLines;
+    m_headers = headers;
+    m_content = content;
+  }
+
+  /**
+   * @param written  a part as written by {@link MimeStreamWriter}: its headers, an empty
+   *                 line, and its content
+   */
+  static SharedBody of(byte written[])
+      throws MessagingException
+  {
+    int end = _indexOfEmptyLine(written);
+    if (end < 0)
+      throw new MessagingException("no end of headers in composed body");
+
+    byte headerLines[] = new byte[end + CRLF.length];
+    System.arraycopy(written, 0, headerLines, 0, headerLines.length);
+    byte content[] = new byte[written.length - end - 2 * CRLF.length];
+    System.arraycopy(written, end + 2 * CRLF.length, content, 0, content.length);
+
+    // Header lines start at anything but whitespace, folded lines are continued:
+    List<String[]> headers = new ArrayList();
+    String text = new String(headerLines, 0, end, StandardCharsets.US_ASCII);
+    for (String line : text.split("\r\n(?![ \t])")) {
+      int colon = line.indexOf(':');
+      if (colon < 0)
+        throw new MessagingException("malformed header in composed body: " + line);
+      headers.add(new String[] { line.substring(0, colon), line.substring(colon + 1).trim() });
+    }
+    return new SharedBody(headerLines, headers, content);
+  }
+
+  private static int _indexOfEmptyLine(byte b[])
+  {
+    for (int i = 0; i + 3 < b.length; i++)
+      if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n')
+        return i;
+    return -1;
+  }
+
+  /**
+   * @return  the number of bytes of the encoded body, content headers included
+   */
+  public int length()
+  {
+    return m_headerLines.length + CRLF.length + m_content.length;
+  }
+
+  /**
+   * @return  the value of the Content-Type header of the body
+   */
+  public String getContentType()
+  {
+    for (String[] header : m_headers)
+      if ("Content-Type".equalsIgnoreCase(header[0]))
+        return MimeUtility.unfold(header[1]);
+    return null;
+  }
+
+  /**
+   * Writes the body: the content headers, the headers queued by
+   * {@link MimeStreamWriter#trailingHeader}, and the content.
+   */
+  void writeTo(MimeStreamWriter w)
+      throws IOException
+  {
+    w.preComposed(m_headerLines, m_content);
+  }
+
+  /**
+   * @return  a message of this body, for the caller to add its other headers to
+   */
+  MimeMessage newMessage(Session session)
+      throws MessagingException
+  {
+    MimeMessage message = new Message(session, m_content);
+    for (String[] header : m_headers)
+      message.setHeader(header[0], header[1]);
+    return message;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "[shared body: " + getContentType() + ", " + length() + " bytes]";
+  }
+
+  /**
+   * A message of content composed already, written as is, rather than composed anew from
+   * a tree of parts when saved.
+   */
+  private static class Message extends MimeMessage
+  {
+    private Message(Session session, byte content[])
+    {
+      super(session);
+      this.content = content;
+      modified = false;
+    }
+
+    @Override
+    public void saveChanges()
+        throws MessagingException
+    {
+      saved = true;
+      updateHeaders();
+    }
+
+    @Override
+    protected void updateHeaders()
+        throws MessagingException
+    {
+      // The content headers are those of the shared body:
+      setHeader("MIME-Version", "1.0");
+      updateMessageID();
+    }
+  }
+}
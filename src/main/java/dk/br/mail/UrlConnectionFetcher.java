@@ -0,0 +1,133 @@
+package dk.br.mail;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.Set;
+import javax.net.ssl.SSLException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default {@link ResourceFetcher}, opening a {@link URLConnection} for each fetch.
+ * <p>
+ * Redirects are followed here, rather than by the connection, to detect loops and to allow
+ * redirects from https: to http:. Permanent redirects are remembered, and gone straight to
+ * by later fetches. HTTPS resources on the default port failing the TLS handshake are
+ * retried by plain HTTP.
+ *
+ * @author osa
+ */
+public class UrlConnectionFetcher implements ResourceFetcher
+{
+  private final static Logger LOG = LoggerFactory.getLogger(UrlConnectionFetcher.class);
+
+  final static String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Thunderbird/128.1.0";
+
+  private final PermanentRedirects redirects = new PermanentRedirects();
+
+  @Override
+  public FetchResult fetch(URL url)
+      throws IOException
+  {
+    return fetch(url, null, null);
+  }
+
+  @Override
+  public FetchResult fetch(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    URL target = redirects.resolve(url);
+    if (!target.toString().equals(url.toString())) {
+      try {
+        return _fetch(target, etag, lastModified);
+      }
+      catch (IOException ex) {
+        LOG.info("{} - {}, retry {}", target, ex.getMessage(), url);
+        redirects.forget(url);
+      }
+    }
+    return _fetch(url, etag, lastModified);
+  }
+
+  private FetchResult _fetch(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    URLConnection conn = _connect(url, etag, lastModified);
+    if (conn instanceof HttpURLConnection && ((HttpURLConnection)conn).getResponseCode() == 304) {
+      IOUtils.closeQuietly(conn.getInputStream());
+      return FetchResult.notModified(conn.getURL(), etag, lastModified);
+    }
+    return new FetchResult(conn.getURL(), conn.getContentType(), conn.getContentEncoding(), conn.getInputStream(),
+                           conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+  }
+
+  private URLConnection _connect(URL url, String etag, String lastModified)
+      throws IOException
+  {
+    Set<String> seen = new HashSet();
+
+    // Loop to follow redirects:
+    for (;;) {
+      LOG.debug("connect({})", url);
+      if (url == null)
+        throw new NullPointerException("bad url");
+      if (!url.getProtocol().startsWith("http"))
+        return url.openConnection();
+
+      // Check for loops and overlong chains of redirects:
+      String urlText = url.toString();
+      if (seen.contains(urlText))
+        throw new IOException("redirect loop");
+      if (seen.size() > 10)
+        throw new IOException("too many redirects");
+      seen.add(urlText);
+
+      // https://stackoverflow.com/a/26046079/442782
+      HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+      conn.setRequestProperty("User-Agent", USER_AGENT);
+      conn.setConnectTimeout(15000);
+      conn.setReadTimeout(15000);
+      conn.setInstanceFollowRedirects(false);
+      if (etag != null)
+        conn.setRequestProperty("If-None-Match", etag);
+      if (lastModified != null)
+        conn.setRequestProperty("If-Modified-Since", lastModified);
+
+      int res;
+      try {
+        res = conn.getResponseCode();
+      }
+      catch (SSLException ex) {
+        // conn.disconnect(); here?
+        if ("https".equals(url.getProtocol()) && url.getPort() == -1) {
+          URL retryUrl = new URL(url.toString().replaceFirst("^https:", "http:"));
+          LOG.warn("{} - {}, retry {}", url, ex.getMessage(), retryUrl);
+          url = retryUrl;
+          continue;
+        }
+        throw ex;
+      }
+
+      if (res == 301 || res == 302) {
+        String location = conn.getHeaderField("Location");
+        LOG.info("Redirect ({} {}) {} \u9192 {}", res, conn.getResponseMessage(), url, location);
+        URL target = new URL(url, location);  // Deal with relative URLs
+        if (PermanentRedirects.isPermanent(res))
+          redirects.remember(url, target);
+        url = target;
+        continue;
+      }
+
+      if (res == 200 || res == 304)
+        LOG.debug("{} ({} {})", url, res, conn.getResponseMessage());
+      else
+        LOG.info("{} ({} {})", url, res, conn.getResponseMessage());
+
+      return conn;
+    }
+  }
+}
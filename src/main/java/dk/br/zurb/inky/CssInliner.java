@@ -0,0 +1,227 @@
+package dk.br.zurb.inky;
+
+import cz.vutbr.web.css.CombinedSelector;
+import cz.vutbr.web.css.NodeData;
+import cz.vutbr.web.css.RuleBlock;
+import cz.vutbr.web.css.RuleSet;
+import cz.vutbr.web.css.Selector;
+import cz.vutbr.web.css.StyleSheet;
+import cz.vutbr.web.css.Term;
+import cz.vutbr.web.domassign.DirectAnalyzer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Inlines a style sheet made of plain tag, class and id selectors, combined by descendant or
+ * child combinators only, as is the case for the Inky styling CSS.
+ * <p>
+ * For such a sheet, the declarations an element gets depend only on its own tag name,
+ * classes and id, and on those of its ancestors. The tag names, classes and ids mentioned by
+ * the sheet are indexed up front, and the elements are keyed by the relevant parts of that
+ * signature. The style computed for a signature is kept, and reused for every element with the
+ * same signature, in this and any later document.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author osa
+ */
+class CssInliner
+{
+  private final static Logger LOG = LoggerFactory.getLogger(CssInliner.class);
+
+  private final static int MAX_SIGNATURES = 8192;
+
+  private final Set<String> tagNames = new HashSet();
+  private final Set<String> classNames = new HashSet();
+  private final Set<String> ids = new HashSet();
+  private final boolean structural;
+
+  private final ThreadLocal<DirectAnalyzer> analyzer;
+
+  // "<parent signature id>/<element key>" -> signature id and inlined declarations:
+  private final ConcurrentMap<String,Signature> signatures = new ConcurrentHashMap();
+  private final AtomicInteger signatureCount = new AtomicInteger();
+
+  private CssInliner(final StyleSheet sheet, boolean structural)
+  {
+    this.analyzer = ThreadLocal.withInitial(() -> new DirectAnalyzer(sheet));
+    this.structural = structural;
+  }
+
+  /**
+   * @return  an inliner for {@code sheet}, or {@code null} if it uses selectors (pseudo
+   *          classes, attributes, sibling combinators, ...) or rules (<code>@media</code>,
+   *          ...) this inliner can't handle
+   */
+  static CssInliner of(StyleSheet sheet)
+  {
+    Set<String> tagNames = new HashSet();
+    Set<String> classNames = new HashSet();
+    Set<String> ids = new HashSet();
+    boolean childCombinators = false;
+
+    for (RuleBlock<?> block : sheet)
+    {
+      if (!(block instanceof RuleSet))
+        return null;
+      for (CombinedSelector cs : ((RuleSet)block).getSelectors())
+      {
+        for (Selector s : cs)
+        {
+          Selector.Combinator combinator = s.getCombinator();
+          if (combinator == Selector.Combinator.CHILD)
+            childCombinators = true;
+          else if (combinator != null && combinator != Selector.Combinator.DESCENDANT)
+            return null;
+
+          for (Selector.SelectorPart part : s)
+          {
+            if (part instanceof Selector.ElementName)
+              tagNames.add(((Selector.ElementName)part).getName().toLowerCase());
+            else if (part instanceof Selector.ElementClass)
+              classNames.add(((Selector.ElementClass)part).getClassName().toLowerCase());
+            else if (part instanceof Selector.ElementID)
+              ids.add(((Selector.ElementID)part).getID().toLowerCase());
+            else
+              return null;
+          }
+        }
+      }
+    }
+
+    // Unless element depth may matter, elements matching no selector part are left out of
+    // their descendants' signatures:
+    CssInliner res = new CssInliner(sheet, childCombinators || tagNames.contains("*"));
+    res.tagNames.addAll(tagNames);
+    res.classNames.addAll(classNames);
+    res.ids.addAll(ids);
+    return res;
+  }
+
+  void inline(Document doc)
+  {
+    Element root = doc.getDocumentElement();
+    if (root != null)
+      _inline(root, "");
+  }
+
+  private void _inline(Element e, String parentId)
+  {
+    // No CSS inlining <noinky> here </noinky>
+    if ("noinky".equals(e.getNodeName()))
+      return;
+
+    String key = _key(e);
+    Signature sig = _signature(parentId + "/" + key, e);
+    _patch(e, sig.declarations);
+
+    String childParentId = !structural && key.isEmpty() ? parentId : sig.id;
+    for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling())
+      if (n.getNodeType() == Node.ELEMENT_NODE)
+        _inline((Element)n, childParentId);
+  }
+
+  /**
+   * @return  the tag name, classes and id of {@code e}, as far as they appear in the sheet
+   */
+  private String _key(Element e)
+  {
+    StringBuilder sb = new StringBuilder();
+    String tagName = e.getTagName();
+    if (tagNames.contains(tagName.toLowerCase()))
+      sb.append(tagName);
+
+    String classAttr = e.getAttribute("class");
+    if (!classAttr.isEmpty())
+    {
+      String classes[] = StringUtils.split(classAttr);
+      Arrays.sort(classes);
+      for (String c : classes)
+        if (classNames.contains(c.toLowerCase()))
+          sb.append('.').append(c);
+    }
+
+    String id = e.getAttribute("id");
+    if (!id.isEmpty() && ids.contains(id.toLowerCase()))
+      sb.append('#').append(id);
+
+    return sb.toString();
+  }
+
+  private Signature _signature(String path, Element e)
+  {
+    Signature sig = signatures.get(path);
+    if (sig != null)
+      return sig;
+
+    if (signatures.size() >= MAX_SIGNATURES)
+      signatures.clear();
+
+    sig = new Signature(Integer.toString(signatureCount.incrementAndGet(), 36), _declarations(e));
+    Signature was = signatures.putIfAbsent(path, sig);
+    return was == null ? sig : was;
+  }
+
+  private String _declarations(Element e)
+  {
+    NodeData css = analyzer.get().getElementStyle(e, null, "screen");
+    if (css == null)
+      return "";
+
+    StringBuilder sb = new StringBuilder();
+    for (String prop : css.getPropertyNames())
+    {
+      if (prop == null)
+        continue;
+
+      try {
+        String val = css.getAsString(prop, false);
+        if (sb.length() > 0)
+          sb.append(';');
+        sb.append(prop).append(':').append(val);
+      }
+      catch (Exception ex) {
+        Term val = css.getValue(prop, false);
+        if (val == null)
+          continue;
+        Object v1 = val.getValue();
+        LOG.warn("<{}> \"{}:{};\" ignored ({}:{} = {})", e.getNodeName(), prop, val, val.getClass().getName(), v1.getClass().getName(), v1);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void _patch(Element e, String declarations)
+  {
+    if (declarations.isEmpty())
+      return;
+
+    String s = e.getAttribute("style");
+    StringBuilder sb = new StringBuilder(s.length() + 1 + declarations.length()).append(s);
+    if (s.length() > 0 && !s.endsWith(";"))
+      sb.append(';');
+    e.setAttribute("style", sb.append(declarations).toString());
+  }
+
+  private static class Signature
+  {
+    private final String id;
+    private final String declarations;
+
+    private Signature(String id, String declarations)
+    {
+      this.id = id;
+      this.declarations = declarations;
+    }
+  }
+}
@@ -24,7 +24,9 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import org.slf4j.Logger;
@@ -35,6 +37,14 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
+ * Transforms Inky markup into e-mail ready HTML, through <code>inky-1.xsl</code>, optional
+ * CSS inlining, and <code>inky-2.xsl</code>.
+ * <p>
+ * Instances may be shared between threads. Each thread keeps its own, reusable, transformers.
+ * Without CSS inlining, the two stylesheets are chained as SAX filters (the "pipeline" mode),
+ * so that no intermediate DOM gets built. With CSS inlining, a styling CSS of plain selectors
+ * is inlined by a {@link CssInliner}, which reuses the styles computed for elements seen before.
+ *
  * @author osa
  */
 public class Inky
@@ -49,9 +59,41 @@ public class Inky
   private Templates inky1;
   private Templates inky2;
   private String htmlEncoding;
+  private CssInliner indexedInliner;
+  private final boolean pipelined;
+  private final boolean indexed;
 
+  // inky-1 stage, with and without the styling CSS parameter, and inky-2 stage:
+  private final ThreadLocal<Transformer> inky1Outline = ThreadLocal.withInitial(() -> _inky1Transformer(false));
+  private final ThreadLocal<Transformer> inky1Inline = ThreadLocal.withInitial(() -> _inky1Transformer(true));
+  private final ThreadLocal<Transformer> inky2Html = ThreadLocal.withInitial(() -> _inky2Transformer());
+
+  /**
+   * Pipelines unless the <code>inky.pipeline</code> system property is "false", and uses the
+   * indexed CSS inliner unless the <code>inky.indexed-inliner</code> system property is "false".
+   */
   public Inky()
   {
+    this(!"false".equals(System.getProperty("inky.pipeline")));
+  }
+
+  /**
+   * @param pipelined  whether to chain the stylesheets through SAX, rather than through an
+   *                   intermediate DOM, when not inlining CSS
+   */
+  public Inky(boolean pipelined)
+  {
+    this(pipelined, !"false".equals(System.getProperty("inky.indexed-inliner")));
+  }
+
+  /**
+   * @param indexed  whether to inline CSS by a {@link CssInliner}, rather than by a full
+   *                 jStyleParser analysis of each document, where the styling CSS allows
+   */
+  public Inky(boolean pipelined, boolean indexed)
+  {
+    this.pipelined = pipelined;
+    this.indexed = indexed;
     init();
   }
 
@@ -79,6 +121,13 @@ public class Inky
       LOG.error("{} failed to load", app_css, ex);
       throw new RuntimeException(ex);
     }
+
+    if (indexed)
+    {
+      indexedInliner = CssInliner.of(inliner);
+      if (indexedInliner == null)
+        LOG.info("{}: selectors too complex for indexed inlining", app_css);
+    }
   }
 
   private URL _getResource(String sourceUri) {
@@ -139,37 +188,112 @@ public class Inky
     return bo.toByteArray();
   }
 
+  private Transformer _inky1Transformer(boolean useCssInliner)
+  {
+    try
+    {
+      Transformer xf1 = inky1.newTransformer();
+      xf1.setParameter("outline-css", responsiveOutlineCss);
+      if (!useCssInliner)
+        xf1.setParameter("styling-css", inlinedStylingCss);
+      xf1.setParameter("column-count", 12);
+      return xf1;
+    }
+    catch (TransformerConfigurationException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private Transformer _inky2Transformer()
+  {
+    try
+    {
+      Transformer xf2 = inky2.newTransformer();
+      _setOutputProperties(xf2);
+      return xf2;
+    }
+    catch (TransformerConfigurationException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private void _setOutputProperties(Transformer xf2)
+  {
+    xf2.setOutputProperty(OutputKeys.METHOD, "html");
+    xf2.setOutputProperty(OutputKeys.ENCODING, htmlEncoding);
+    xf2.setOutputProperty(OutputKeys.INDENT, "no");
+    xf2.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+  }
+
   public void transform(Source src, Result res, boolean useCssInliner)
           throws TransformerException
   {
-    Transformer xf1 = inky1.newTransformer();
-    xf1.setParameter("outline-css", responsiveOutlineCss);
-    if (!useCssInliner)
-      xf1.setParameter("styling-css", inlinedStylingCss);
-    xf1.setParameter("column-count", 12);
+    String xmlDebugFolderPath = System.getProperty("dk.es.xml.debug.folder");
+
+    ThreadLocal<Transformer> inky1Stage = useCssInliner ? inky1Inline : inky1Outline;
+    Transformer xf1 = inky1Stage.get();
+    boolean done = false;
+    try
+    {
+      if (pipelined && !useCssInliner && xmlDebugFolderPath == null)
+        _transformPipelined(xf1, src, res);
+      else
+        _transformViaDom(xf1, src, res, useCssInliner, xmlDebugFolderPath);
+      done = true;
+    }
+    finally
+    {
+      // Transformers failed half-way through a document are not to be reused:
+      if (!done)
+      {
+        inky1Stage.remove();
+        inky2Html.remove();
+      }
+    }
+  }
+
+  private void _transformPipelined(Transformer xf1, Source src, Result res)
+          throws TransformerException
+  {
+    // A TransformerHandler serves a single document only, so the last stage is set up anew:
+    TransformerHandler h2;
+    synchronized (stf)
+    {
+      h2 = stf.newTransformerHandler(inky2);
+    }
+    _setOutputProperties(h2.getTransformer());
+    if (src.getSystemId() != null)
+      h2.setSystemId(src.getSystemId());
+    h2.setResult(res);
 
+    xf1.transform(src, new SAXResult(h2));
+  }
+
+  private void _transformViaDom(Transformer xf1, Source src, Result res, boolean useCssInliner, String xmlDebugFolderPath)
+          throws TransformerException
+  {
     DOMResult r1 = new DOMResult();
     xf1.transform(src, r1);
 
     Document doc = (Document)r1.getNode();
 
-    String xmlDebugFolderPath = System.getProperty("dk.es.xml.debug.folder");
     if (xmlDebugFolderPath != null)
       saveXmlFile(doc, new File(xmlDebugFolderPath));
 
     if (useCssInliner) {
-      StyleMap styles = new Analyzer(inliner).evaluateDOM(doc, "screen", false);
-      inlineCss(doc, styles);
+      if (indexedInliner != null) {
+        indexedInliner.inline(doc);
+      }
+      else {
+        StyleMap styles = new Analyzer(inliner).evaluateDOM(doc, "screen", false);
+        inlineCss(doc, styles);
+      }
     }
 
     DOMSource s2 = new DOMSource(doc, r1.getSystemId());
-    Transformer xf2 = inky2.newTransformer();
-    xf2.setOutputProperty(OutputKeys.METHOD, "html");
-    xf2.setOutputProperty(OutputKeys.ENCODING, htmlEncoding);
-    xf2.setOutputProperty(OutputKeys.INDENT, "no");
-    xf2.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-
-    xf2.transform(s2, res);
+    inky2Html.get().transform(s2, res);
   }
 
   private static void saveXmlFile(Document doc, File xmlDebugFolder)
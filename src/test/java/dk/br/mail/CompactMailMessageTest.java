@@ -0,0 +1,135 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Mails compacted for queueing in memory.
+ *
+ * @author osa
+ */
+public class CompactMailMessageTest
+{
+  private final static Session SESSION = Session.getInstance(new Properties());
+
+  private static MailMessageData _mail(int i) throws IOException {
+    MailMessageData mail = new MailMessageData();
+    mail.setFrom("Bruun Rasmussen", "info@bruun-rasmussen.dk");
+    mail.setBounceAddress(new InternetAddress("bounce@bruun-rasmussen.dk", null));
+    mail.addRecipientTo("Kunde " + i, "kunde" + i + "@example.com");
+    mail.setSentDate(new Date(1760000000000L));
+    mail.setSubject("Resultat fra din søgeagent");
+    for (int j = 0; j < 20; j++)
+      mail.setCustomHeader("X-Header-" + j, "value " + j);
+    mail.setCustomHeader("X-BR-Tracking-ID", "track-" + i);
+    mail.setPlainBody("Se dine resultater");
+    StringBuilder html = new StringBuilder("<html><body><img src=\"cid:logo\">");
+    for (int j = 0; j < 500; j++)
+      html.append("<p>Katalognummer ").append(j).append(": <b>Maleri</b> af ukendt kunstner</p>\n");
+    mail.setHtmlBody(html.append("</body></html>").toString());
+    byte logo[] = new byte[5000];
+    new Random(5000).nextBytes(logo);
+    mail.addRelatedBodyPart("logo", MailPartData.from("image/png", "logo.png", logo));
+    mail.attach("application/pdf", "vilkaar.pdf", "%PDF-1.4".getBytes("US-ASCII"));
+    return mail;
+  }
+
+  private static String _composeTo(MailMessageSource mail) throws IOException, MessagingException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    mail.composeTo(bos, SESSION, false);
+    // Boundaries and the Message-ID differ from message to message:
+    return new String(bos.toByteArray(), "US-ASCII")
+        .replaceAll("----=_Part_[0-9_.]+", "BOUNDARY")
+        .replaceAll("Message-ID: <[^>]*>", "Message-ID: <>");
+  }
+
+  @Test
+  public void testCompose() throws IOException, MessagingException {
+    MailMessageData mail = _mail(1);
+    CompactMailMessage compact = CompactMailMessage.of(mail);
+    assertEquals(_composeTo(mail), _composeTo(compact));
+    assertEquals(mail.getHtmlBody(), compact.getHtmlBody());
+    assertEquals(mail.getSentDate(), compact.getSentDate());
+    assertEquals("track-1", compact.getCustomHeader("X-BR-Tracking-ID"));
+    assertEquals(mail.getFirstRecipient(), compact.getFirstRecipient());
+  }
+
+  @Test
+  public void testDeflated() throws IOException {
+    MailMessageData mail = _mail(1);
+    CompactMailMessage compact = CompactMailMessage.of(mail);
+    int utf8 = mail.getPlainBody().getBytes("UTF-8").length + mail.getHtmlBody().getBytes("UTF-8").length;
+    assertTrue(compact.bodyBytes() + " bytes", compact.bodyBytes() * 4 < utf8);
+    assertEquals(mail.getPlainBody(), compact.getPlainBody());
+  }
+
+  @Test
+  public void testInterned() throws IOException {
+    CompactMailMessage.Interner interner = new CompactMailMessage.Interner();
+    CompactMailMessage first = CompactMailMessage.of(_mail(1), interner);
+    int size = interner.size();
+    CompactMailMessage second = CompactMailMessage.of(_mail(2), interner);
+
+    // Only the recipient and the tracking id are new:
+    assertEquals(size + 2, interner.size());
+    assertNotSame(first.getFirstSender(), second.getFirstSender());
+    assertEquals(first.getFirstSender().getPersonal(), second.getFirstSender().getPersonal());
+  }
+
+  @Test
+  public void testImmutable() throws IOException {
+    CompactMailMessage.Interner interner = new CompactMailMessage.Interner();
+    CompactMailMessage compact = CompactMailMessage.of(_mail(1), interner);
+    CompactMailMessage other = CompactMailMessage.of(_mail(2), interner);
+    compact.getFirstSender().setPersonal("Other");
+    assertEquals("Bruun Rasmussen", compact.getFirstSender().getPersonal());
+
+    // Nor does changing a copy change the batch:
+    MailMessageData copy = compact.toMailMessageData();
+    copy.getFrom().get(0).setPersonal("Other");
+    copy.getRecipientsTo().get(0).setPersonal("Other");
+    assertEquals("Bruun Rasmussen", other.getFirstSender().getPersonal());
+    assertEquals("Kunde 1", compact.getFirstRecipient().getPersonal());
+  }
+
+  @Test
+  public void testCustomHeaders() throws IOException, MessagingException {
+    CompactMailMessage.Interner interner = new CompactMailMessage.Interner();
+    CompactMailMessage compact = CompactMailMessage.of(_mail(1), interner);
+    CompactMailMessage other = CompactMailMessage.of(_mail(2), interner);
+    compact.setCustomHeader("X-Header-0", "changed");
+    compact.setCustomHeader("X-Other", "value");
+
+    assertEquals("changed", compact.getCustomHeader("X-Header-0"));
+    assertEquals("value", compact.getCustomHeader("X-Other"));
+    assertEquals("value 0", other.getCustomHeader("X-Header-0"));
+    assertNull(other.getCustomHeader("X-Other"));
+    assertEquals("value", compact.toMailMessageData().getCustomHeader("X-Other"));
+  }
+
+  @Test
+  public void testSerializable() throws IOException, ClassNotFoundException, MessagingException {
+    CompactMailMessage compact = CompactMailMessage.of(_mail(1));
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ObjectOutputStream os = new ObjectOutputStream(bos)) {
+      os.writeObject(compact);
+    }
+    CompactMailMessage read;
+    try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      read = (CompactMailMessage)is.readObject();
+    }
+    assertEquals(_composeTo(compact), _composeTo(read));
+  }
+}
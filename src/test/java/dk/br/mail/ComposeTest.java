@@ -0,0 +1,187 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.BodyPart;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Messages written straight to a stream.
+ *
+ * @author osa
+ */
+public class ComposeTest
+{
+  private final static Session SESSION = Session.getInstance(new Properties());
+
+  private static byte[] _content(int length) {
+    byte content[] = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+
+  private static MailMessageData _mail() throws IOException {
+    MailMessageData mail = new MailMessageData();
+    mail.setFrom("Bruun Rasmussen", "info@bruun-rasmussen.dk");
+    mail.addRecipientTo("Kunde", "kunde@example.com");
+    mail.addRecipientBcc("Arkiv", "arkiv@bruun-rasmussen.dk");
+    mail.setSubject("Resultat fra din søgeagent");
+    mail.setCustomHeader("X-Campaign", "agent-42");
+    mail.setPlainBody("Se dine resultater");
+    mail.setHtmlBody("<html><body><img src=\"cid:logo\"> Se dine <b>resultater</b></body></html>");
+    mail.addRelatedBodyPart("logo", MailPartData.from("image/png", "logo.png", _content(5000)));
+    mail.attach("application/pdf", "vilkaar.pdf", _content(200 * 1024));
+    return mail;
+  }
+
+  private static byte[] _composeTo(MailMessageSource mail) throws IOException, MessagingException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    mail.composeTo(bos, SESSION, false);
+    return bos.toByteArray();
+  }
+
+  @Test
+  public void testComposeToRaw() throws IOException, MessagingException {
+    String raw = new String(_composeTo(_mail()), "US-ASCII");
+    String headers = raw.substring(0, raw.indexOf("\r\n\r\n"));
+
+    assertTrue(headers, headers.contains("\r\nMIME-Version: 1.0\r\n"));
+    assertTrue(headers, headers.contains("\r\nX-Campaign: agent-42"));
+    assertTrue(headers, headers.contains("Subject: =?UTF-8?"));
+    // The SMTP "DATA" form, leaving the Bcc recipients for the envelope:
+    assertFalse(headers, headers.contains("Bcc:"));
+    assertFalse(raw, raw.contains("arkiv@bruun-rasmussen.dk"));
+    assertTrue(headers, headers.contains("\r\nMessage-ID: <"));
+    assertTrue(headers, headers.indexOf("Content-Type: multipart/mixed") < headers.indexOf("X-Campaign"));
+
+    Matcher m = Pattern.compile("boundary=\"?([^\"\\s;]+)").matcher(headers);
+    assertTrue(headers, m.find());
+    String boundary = m.group(1);
+    assertTrue(raw.endsWith("\r\n--" + boundary + "--\r\n"));
+    assertTrue(raw, raw.contains("multipart/alternative"));
+    assertTrue(raw, raw.contains("multipart/related"));
+    assertTrue(raw, raw.contains("Content-ID: <logo>\r\nContent-Disposition: inline\r\n"));
+
+    // The attachment, base64-encoded in lines of 76:
+    int pdf = raw.indexOf("name=vilkaar.pdf");
+    assertTrue(raw, pdf > 0);
+    int start = raw.indexOf("\r\n\r\n", pdf) + 4;
+    String base64 = raw.substring(start, raw.indexOf("\r\n--" + boundary, start));
+    for (String line : base64.split("\r\n"))
+      assertTrue(line.length() + " characters", line.length() <= 76);
+    assertArrayEquals(_content(200 * 1024), Base64.decodeBase64(base64));
+  }
+
+  @Test
+  public void testComposeTo() throws IOException, MessagingException {
+    MailMessageData mail = _mail();
+    MimeMessage composed = mail.compose(SESSION, false);
+    MimeMessage written = new MimeMessage(SESSION, new ByteArrayInputStream(_composeTo(mail)));
+
+    assertEquals(composed.getSubject(), written.getSubject());
+    assertArrayEquals(composed.getFrom(), written.getFrom());
+    assertArrayEquals(composed.getRecipients(Message.RecipientType.TO), written.getRecipients(Message.RecipientType.TO));
+    assertNotNull(composed.getRecipients(Message.RecipientType.BCC));
+    assertNull(written.getRecipients(Message.RecipientType.BCC));
+    assertEquals(composed.getHeader("X-Campaign", null), written.getHeader("X-Campaign", null));
+    _assertSameContent(composed, written);
+  }
+
+  @Test
+  public void testComposeToPlain() throws IOException, MessagingException {
+    MailMessageData mail = new MailMessageData();
+    mail.addRecipientTo(new InternetAddress("kunde@example.com"));
+    mail.setPlainBody("Kun tekst");
+    MimeMessage written = new MimeMessage(SESSION, new ByteArrayInputStream(_composeTo(mail)));
+    _assertSameContent(mail.compose(SESSION, false), written);
+  }
+
+  private static MailMessageData _recipient(String email, String campaign) throws IOException {
+    MailMessageData mail = new MailMessageData();
+    mail.setFrom("Bruun Rasmussen", "info@bruun-rasmussen.dk");
+    mail.addRecipientTo("Kunde", email);
+    mail.setSubject("Resultat fra din søgeagent");
+    mail.setCustomHeader("X-Campaign", campaign);
+    return mail;
+  }
+
+  @Test
+  public void testSharedBodyRaw() throws IOException, MessagingException {
+    SharedBody body = _mail().shareBody(false);
+    assertTrue(body.getContentType(), body.getContentType().startsWith("multipart/mixed"));
+
+    String raw[] = new String[2];
+    for (int i = 0; i < raw.length; i++) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      _recipient("kunde" + i + "@example.com", "agent-" + i).composeTo(bos, SESSION, body);
+      raw[i] = new String(bos.toByteArray(), "US-ASCII");
+    }
+
+    for (int i = 0; i < raw.length; i++) {
+      String headers = raw[i].substring(0, raw[i].indexOf("\r\n\r\n"));
+      assertTrue(headers, headers.contains("kunde" + i + "@example.com"));
+      assertTrue(headers, headers.indexOf("Content-Type: multipart/mixed") < headers.indexOf("X-Campaign: agent-" + i));
+    }
+    // The one body under the headers of each:
+    assertEquals(raw[0].substring(raw[0].indexOf("\r\n\r\n")), raw[1].substring(raw[1].indexOf("\r\n\r\n")));
+  }
+
+  @Test
+  public void testSharedBody() throws IOException, MessagingException {
+    MailMessageData mail = _mail();
+    SharedBody body = mail.shareBody(false);
+    MimeMessage shared = _recipient("kunde@example.com", "agent-42").compose(SESSION, body);
+    shared.saveChanges();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    shared.writeTo(bos);
+    MimeMessage written = new MimeMessage(SESSION, new ByteArrayInputStream(bos.toByteArray()));
+
+    assertEquals("agent-42", written.getHeader("X-Campaign", null));
+    assertEquals("Resultat fra din søgeagent", written.getSubject());
+    assertNotNull(written.getMessageID());
+    _assertSameContent(mail.compose(SESSION, false), written);
+  }
+
+  private static void _assertSameContent(Part expected, Part actual) throws IOException, MessagingException {
+    assertEquals(_baseType(expected), _baseType(actual));
+    assertEquals(expected.getDisposition(), actual.getDisposition());
+    assertEquals(expected.getFileName(), actual.getFileName());
+    if (expected.isMimeType("multipart/*")) {
+      MimeMultipart e = (MimeMultipart)expected.getContent();
+      MimeMultipart a = (MimeMultipart)actual.getContent();
+      assertEquals(e.getCount(), a.getCount());
+      for (int i = 0; i < e.getCount(); i++) {
+        BodyPart ep = e.getBodyPart(i);
+        BodyPart ap = a.getBodyPart(i);
+        assertArrayEquals(ep.getHeader("Content-ID"), ap.getHeader("Content-ID"));
+        _assertSameContent(ep, ap);
+      }
+    }
+    else {
+      assertTrue(Arrays.equals(IOUtils.toByteArray(expected.getInputStream()), IOUtils.toByteArray(actual.getInputStream())));
+    }
+  }
+
+  private static String _baseType(Part part) throws MessagingException {
+    String type = part.getContentType();
+    int semi = type.indexOf(';');
+    return (semi < 0 ? type : type.substring(0, semi)).trim().toLowerCase();
+  }
+}
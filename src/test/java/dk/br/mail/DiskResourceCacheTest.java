@@ -0,0 +1,129 @@
+package dk.br.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.mail.MessagingException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Fetched resources cached on disk.
+ *
+ * @author osa
+ */
+public class DiskResourceCacheTest
+{
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("disk-cache").toFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private static MailPartData _part(String text) throws IOException {
+    return MailPartData.from("image/png", text + ".png", text.getBytes("UTF-8"));
+  }
+
+  private static String _text(MailPartData part) throws IOException, MessagingException {
+    return IOUtils.toString(part.getDataHandler().getInputStream(), "UTF-8");
+  }
+
+  @Test
+  public void testReopen() throws IOException, MessagingException {
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 1024 * 1024)) {
+      cache.put("http://cdn.example.com/logo.png", _part("logo"), "\"v1\"", null, 1000);
+      cache.put("http://cdn.example.com/footer.png", _part("footer"), null, "Mon, 05 Oct 2026 10:00:00 GMT", 2000);
+      cache.put("http://cdn.example.com/logo.png", _part("new logo"), "\"v2\"", null, 3000);
+      assertEquals(2, cache.size());
+    }
+
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 1024 * 1024)) {
+      assertEquals(Arrays.asList("http://cdn.example.com/logo.png", "http://cdn.example.com/footer.png"), cache.keys());
+
+      DiskResourceCache.Stored logo = cache.get("http://cdn.example.com/logo.png");
+      assertEquals("new logo", _text(logo.value));
+      assertEquals("image/png", logo.value.getDataHandler().getContentType());
+      assertEquals("\"v2\"", logo.etag);
+      assertNull(logo.lastModified);
+      assertEquals(3000, logo.fetchedAt);
+
+      DiskResourceCache.Stored footer = cache.get("http://cdn.example.com/footer.png");
+      assertEquals("footer", _text(footer.value));
+      assertEquals("Mon, 05 Oct 2026 10:00:00 GMT", footer.lastModified);
+
+      assertNull(cache.get("http://cdn.example.com/missing.png"));
+      assertEquals(2, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+    }
+  }
+
+  @Test
+  public void testTornRecord() throws IOException, MessagingException {
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 1024 * 1024)) {
+      cache.put("http://cdn.example.com/a.png", _part("a"), null, null, 1000);
+      cache.put("http://cdn.example.com/b.png", _part("b"), null, null, 1000);
+    }
+
+    // As if the process died while writing the second record:
+    File segment = new File(dir, "segment-000001.dat");
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    long torn = segment.length();
+
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 1024 * 1024)) {
+      assertEquals(Arrays.asList("http://cdn.example.com/a.png"), cache.keys());
+      assertEquals("a", _text(cache.get("http://cdn.example.com/a.png").value));
+      assertTrue(segment.length() < torn);
+
+      // Written after the intact records:
+      cache.put("http://cdn.example.com/c.png", _part("c"), null, null, 2000);
+    }
+
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 1024 * 1024)) {
+      assertEquals(Arrays.asList("http://cdn.example.com/c.png", "http://cdn.example.com/a.png"), cache.keys());
+    }
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    byte content[] = new byte[1000];
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 8000)) {
+      // Segments of 2000 bytes, each holding one record:
+      for (int i = 0; i < 10; i++)
+        cache.put("http://cdn.example.com/" + i + ".png", MailPartData.from("image/png", i + ".png", content), null, null, 1000);
+      assertTrue(cache.getBytes() + " bytes", cache.getBytes() <= 8000);
+      assertEquals(7, cache.size());
+      assertEquals("http://cdn.example.com/9.png", cache.keys().get(0));
+      assertNull(cache.get("http://cdn.example.com/0.png"));
+      assertEquals(7, dir.list((d, name) -> name.startsWith("segment-")).length);
+    }
+  }
+
+  @Test
+  public void testLocked() throws IOException {
+    try (DiskResourceCache cache = new DiskResourceCache(dir, 1024 * 1024)) {
+      try {
+        new DiskResourceCache(dir, 1024 * 1024);
+        fail("opened twice");
+      }
+      catch (IOException ex) {
+        // expected
+      }
+    }
+    new DiskResourceCache(dir, 1024 * 1024).close();
+  }
+}
@@ -0,0 +1,184 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.util.Date;
+import java.util.Random;
+import javax.mail.MessagingException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Mails encoded for queueing.
+ *
+ * @author osa
+ */
+public class MailMessageCodecTest
+{
+  private final static Logger LOG = LoggerFactory.getLogger(MailMessageCodecTest.class);
+
+  private static byte[] _content(int length) {
+    byte content[] = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+
+  private static MailMessageData _mail(int i) throws IOException {
+    MailMessageData mail = new MailMessageData();
+    mail.setFrom("Bruun Rasmussen", "info@bruun-rasmussen.dk");
+    mail.addRecipientTo("Kunde " + i, "kunde" + i + "@example.com");
+    mail.addRecipientBcc("Arkiv", "arkiv@bruun-rasmussen.dk");
+    mail.setSentDate(new Date(1760000000000L));
+    mail.setSubject("Resultat fra din søgeagent");
+    mail.setCustomHeader("X-BR-Tracking-ID", "track-" + i);
+    mail.setPlainBody("Se dine resultater");
+    StringBuilder html = new StringBuilder("<html><body><img src=\"cid:logo\">");
+    for (int j = 0; j < 200; j++)
+      html.append("<p>Katalognummer ").append(j).append(": <b>Maleri</b></p>");
+    mail.setHtmlBody(html.append("</body></html>").toString());
+    mail.addRelatedBodyPart("logo", MailPartData.from("image/png", "logo.png", _content(5000)));
+    mail.addRelatedBodyPart("banner", MailPartData.from("http://cdn.example.com/banner.png"));
+    mail.attach("application/pdf", "vilkaar.pdf", _content(100 * 1024));
+    return mail;
+  }
+
+  private static void _assertSame(MailMessageData expected, MailMessageData actual) throws IOException, MessagingException {
+    assertEquals(expected.getSubject(), actual.getSubject());
+    assertEquals(expected.getSentDate(), actual.getSentDate());
+    assertEquals(expected.getFrom().get(0).getPersonal(), actual.getFrom().get(0).getPersonal());
+    assertEquals(expected.getRecipientsTo(), actual.getRecipientsTo());
+    assertEquals(expected.getRecipientsBcc(), actual.getRecipientsBcc());
+    assertEquals(expected.getCustomHeaders(), actual.getCustomHeaders());
+    assertEquals(expected.getPlainBody(), actual.getPlainBody());
+    assertEquals(expected.getHtmlBody(), actual.getHtmlBody());
+    assertEquals(new URL("http://cdn.example.com/banner.png"), ((MailPartData)actual.getRelatedBodyParts().get("banner")).getSourceUrl());
+    assertEquals(expected.getRelatedBodyParts().get("logo"), actual.getRelatedBodyParts().get("logo"));
+    assertEquals(expected.getAttachments(), actual.getAttachments());
+    assertArrayEquals(IOUtils.toByteArray(expected.getAttachments().get(0).getDataHandler().getInputStream()),
+                      IOUtils.toByteArray(actual.getAttachments().get(0).getDataHandler().getInputStream()));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException, MessagingException {
+    MailMessageData mail = _mail(1);
+    mail.setSubject(null);
+    MailMessageData decoded = MailMessageCodec.decode(MailMessageCodec.encode(mail));
+    assertNull(decoded.getSubject());
+    _assertSame(mail, decoded);
+  }
+
+  @Test
+  public void testReferences() throws IOException, MessagingException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    int sizes[] = new int[3];
+    try (MailMessageCodec.Writer w = new MailMessageCodec.Writer(bos)) {
+      for (int i = 0; i < sizes.length; i++) {
+        int before = bos.size();
+        w.write(_mail(i));
+        sizes[i] = bos.size() - before;
+      }
+    }
+    // The logo and the PDF are written with the first mail only:
+    assertTrue(sizes[0] + " bytes", sizes[0] > 100 * 1024);
+    assertTrue(sizes[1] + " bytes", sizes[1] < 10 * 1024);
+
+    try (MailMessageCodec.Reader r = new MailMessageCodec.Reader(new ByteArrayInputStream(bos.toByteArray()))) {
+      MailMessageData first = r.read();
+      for (int i = 1; i < sizes.length; i++) {
+        MailMessageData mail = r.read();
+        _assertSame(_mail(i), mail);
+        // ... and share their content with those of the first:
+        assertSame(((MailPartData)first.getAttachments().get(0)).digest(), ((MailPartData)mail.getAttachments().get(0)).digest());
+      }
+      assertNull(r.read());
+    }
+  }
+
+  @Test
+  public void testWindow() throws IOException, MessagingException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    // Room for the logo only, the PDF goes inline every time:
+    try (MailMessageCodec.Writer w = new MailMessageCodec.Writer(bos, 4, 8000)) {
+      for (int i = 0; i < 3; i++)
+        w.write(_mail(i));
+    }
+    assertTrue(bos.size() + " bytes", bos.size() > 3 * 100 * 1024);
+    try (MailMessageCodec.Reader r = new MailMessageCodec.Reader(new ByteArrayInputStream(bos.toByteArray()))) {
+      for (int i = 0; i < 3; i++)
+        _assertSame(_mail(i), r.read());
+    }
+  }
+
+  @Test
+  public void testVersion() throws IOException {
+    byte encoded[] = MailMessageCodec.encode(_mail(1));
+    encoded[4] = (byte)(MailMessageCodec.VERSION + 1);
+    try {
+      MailMessageCodec.decode(encoded);
+      fail("decoded unknown version");
+    }
+    catch (IOException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("version"));
+    }
+  }
+
+  /**
+   * Compares size and speed with Java serialization, for a batch of mails sharing their parts.
+   */
+  @Test
+  public void testBenchmark() throws IOException, ClassNotFoundException {
+    final int count = 200;
+    MailMessageData mails[] = new MailMessageData[count];
+    for (int i = 0; i < count; i++)
+      mails[i] = _mail(i);
+
+    long serializedBytes = 0;
+    long codecBytes = 0;
+    long serializeNanos = 0;
+    long codecNanos = 0;
+    for (int round = 0; round < 3; round++) {
+      // Each mail queued as a message of its own:
+      long t1 = System.nanoTime();
+      serializedBytes = 0;
+      for (MailMessageData mail : mails) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bos)) {
+          os.writeObject(mail);
+        }
+        try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+          is.readObject();
+        }
+        serializedBytes += bos.size();
+      }
+      long t2 = System.nanoTime();
+      codecBytes = 0;
+      for (MailMessageData mail : mails) {
+        byte encoded[] = MailMessageCodec.encode(mail);
+        MailMessageCodec.decode(encoded);
+        codecBytes += encoded.length;
+      }
+      long t3 = System.nanoTime();
+      serializeNanos = t2 - t1;
+      codecNanos = t3 - t2;
+    }
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    try (MailMessageCodec.Writer w = new MailMessageCodec.Writer(stream)) {
+      for (MailMessageData mail : mails)
+        w.write(mail);
+    }
+
+    LOG.info("{} mails: serialized {} bytes ({}ms), encoded {} bytes ({}ms), {} bytes as one stream",
+        count, serializedBytes, serializeNanos / 1000000, codecBytes, codecNanos / 1000000, stream.size());
+    assertTrue(codecBytes + " vs " + serializedBytes, codecBytes < serializedBytes);
+    assertTrue(stream.size() + " vs " + codecBytes, stream.size() * 10 < codecBytes);
+  }
+}
@@ -0,0 +1,338 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Mailboxes marshalled in bulk, from local fixture files.
+ *
+ * @author osa
+ */
+public class MailboxMarshallerTest
+{
+  private final static Session SESSION = Session.getInstance(new Properties());
+  private final static String SAMPLES[] = { "simple", "html-and-image", "html-with-attachment" };
+
+  private ExecutorService executor;
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(4);
+    dir = Files.createTempDirectory("mailbox").toFile();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdown();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private static byte[] _sample(String name) throws Exception {
+    try (InputStream is = MailboxMarshallerTest.class.getResourceAsStream(name + ".eml")) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  private static Element _parse(byte xml[]) throws Exception {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    dbf.setCoalescing(true);
+    Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    doc.normalizeDocument();
+    return doc.getDocumentElement();
+  }
+
+  private static Element _expected(String sample) throws Exception {
+    return _expected(_sample(sample));
+  }
+
+  private static Element _expected(byte message[]) throws Exception {
+    MimeMessage msg = new MimeMessage(SESSION, new ByteArrayInputStream(message));
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    MailMessageMarshaller.marshal(msg, bos);
+    return _parse(bos.toByteArray());
+  }
+
+  @Test
+  public void testMbox() throws Exception {
+    // Each sample twice, after a "From " line, and ended by an empty line:
+    ByteArrayOutputStream mbox = new ByteArrayOutputStream();
+    for (int i = 0; i < 2 * SAMPLES.length; i++) {
+      mbox.write("From MAILER-DAEMON Thu Jan  1 00:00:00 2026\n".getBytes(StandardCharsets.US_ASCII));
+      mbox.write(_sample(SAMPLES[i % SAMPLES.length]));
+      mbox.write("\n".getBytes(StandardCharsets.US_ASCII));
+    }
+    File file = new File(dir, "mbox");
+    FileUtils.writeByteArrayToFile(file, mbox.toByteArray());
+
+    // A window smaller than the mailbox:
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    int count = new MailboxMarshaller(SESSION, executor, 2, null).marshalList(file, xml);
+    assertEquals(2 * SAMPLES.length, count);
+
+    Element list = _parse(xml.toByteArray());
+    assertEquals("email-list", list.getTagName());
+    NodeList emails = list.getElementsByTagName("email");
+    assertEquals(count, emails.getLength());
+    for (int i = 0; i < count; i++)
+      assertTrue(SAMPLES[i % SAMPLES.length], _expected(SAMPLES[i % SAMPLES.length]).isEqualNode(emails.item(i)));
+  }
+
+  @Test
+  public void testQuotedFromLines() throws Exception {
+    File file = new File(dir, "quoted.mbox");
+    try (InputStream is = getClass().getResourceAsStream("quoted.mbox")) {
+      FileUtils.copyInputStreamToFile(is, file);
+    }
+
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    assertEquals(2, new MailboxMarshaller(SESSION, executor).marshalList(file, xml));
+    NodeList bodies = _parse(xml.toByteArray()).getElementsByTagName("plain-body");
+    assertEquals(2, bodies.getLength());
+
+    // Unquoted by one level, and lines quoted otherwise left as they are:
+    String body = bodies.item(0).getTextContent();
+    assertTrue(body, body.startsWith("From the desk of Ole:\n"));
+    assertTrue(body, body.contains("\n>From an earlier mail, quoted once already\n"));
+    assertTrue(body, body.contains("\n> From a reply, not quoted by mbox\n"));
+    body = bodies.item(1).getTextContent();
+    assertTrue(body, body.contains("\nFrom here on, nothing."));
+    assertFalse(body, body.contains(">From"));
+  }
+
+  @Test
+  public void testSpooled() throws Exception {
+    // Larger, as XML, than kept in memory:
+    byte content[] = new byte[1536 * 1024];
+    new Random(42).nextBytes(content);
+    String message =
+        "From: Ole Sandum <osa@bruun-rasmussen.dk>\n" +
+        "Subject: Catalogue\n" +
+        "MIME-Version: 1.0\n" +
+        "Content-Type: multipart/mixed; boundary=\"part\"\n" +
+        "\n" +
+        "--part\n" +
+        "Content-Type: text/plain; charset=us-ascii\n" +
+        "\n" +
+        "Attached.\n" +
+        "--part\n" +
+        "Content-Type: application/pdf; name=\"catalogue.pdf\"\n" +
+        "Content-Disposition: attachment; filename=\"catalogue.pdf\"\n" +
+        "Content-Transfer-Encoding: base64\n" +
+        "\n" +
+        Base64.encodeBase64String(content).replaceAll("(.{76})", "$1\n") + "\n" +
+        "--part--\n";
+    byte large[] = message.getBytes(StandardCharsets.US_ASCII);
+
+    File maildir = new File(dir, "maildir");
+    FileUtils.writeByteArrayToFile(new File(maildir, "cur/1760000000.M1P1.host"), large);
+    FileUtils.writeByteArrayToFile(new File(maildir, "cur/1760000001.M1P1.host"), _sample("simple"));
+
+    File out = new File(dir, "xml");
+    assertEquals(2, new MailboxMarshaller(SESSION, executor, 1, null).marshalFiles(maildir, out));
+    assertTrue(_expected(large).isEqualNode(_parse(FileUtils.readFileToByteArray(new File(out, "mail-000001.xml")))));
+    assertTrue(_expected("simple").isEqualNode(_parse(FileUtils.readFileToByteArray(new File(out, "mail-000002.xml")))));
+  }
+
+  @Test
+  public void testFolder() throws Exception {
+    SampleFolder folder = new SampleFolder();
+    ByteArrayOutputStream xml = new ByteArrayOutputStream();
+    assertEquals(SAMPLES.length, new MailboxMarshaller(SESSION, executor, 2, null).marshalList(folder, xml));
+
+    // Fetched a window at a time, and closed again:
+    assertEquals(Arrays.asList(2, 1), folder.fetched);
+    assertFalse(folder.isOpen());
+
+    NodeList emails = _parse(xml.toByteArray()).getElementsByTagName("email");
+    assertEquals(SAMPLES.length, emails.getLength());
+    for (int i = 0; i < SAMPLES.length; i++)
+      assertTrue(SAMPLES[i], _expected(SAMPLES[i]).isEqualNode(emails.item(i)));
+  }
+
+  /**
+   * The samples, as a read-only folder of a store of nothing else.
+   */
+  private static class SampleFolder extends Folder
+  {
+    private final List<Integer> fetched = new ArrayList();
+    private final MimeMessage messages[] = new MimeMessage[SAMPLES.length];
+    private boolean open;
+
+    SampleFolder() throws Exception {
+      super(new Store(SESSION, null) {
+        @Override
+        public Folder getDefaultFolder() {
+          return null;
+        }
+
+        @Override
+        public Folder getFolder(String name) {
+          return null;
+        }
+
+        @Override
+        public Folder getFolder(URLName url) {
+          return null;
+        }
+      });
+      for (int i = 0; i < SAMPLES.length; i++)
+        messages[i] = new MimeMessage(SESSION, new ByteArrayInputStream(_sample(SAMPLES[i])));
+    }
+
+    @Override
+    public String getName() {
+      return "INBOX";
+    }
+
+    @Override
+    public String getFullName() {
+      return "INBOX";
+    }
+
+    @Override
+    public Folder getParent() {
+      return null;
+    }
+
+    @Override
+    public boolean exists() {
+      return true;
+    }
+
+    @Override
+    public Folder[] list(String pattern) {
+      return new Folder[0];
+    }
+
+    @Override
+    public char getSeparator() {
+      return '/';
+    }
+
+    @Override
+    public int getType() {
+      return HOLDS_MESSAGES;
+    }
+
+    @Override
+    public boolean create(int type) {
+      return false;
+    }
+
+    @Override
+    public boolean hasNewMessages() {
+      return false;
+    }
+
+    @Override
+    public Folder getFolder(String name) {
+      return null;
+    }
+
+    @Override
+    public boolean delete(boolean recurse) {
+      return false;
+    }
+
+    @Override
+    public boolean renameTo(Folder f) {
+      return false;
+    }
+
+    @Override
+    public void open(int mode) {
+      assertEquals(READ_ONLY, mode);
+      open = true;
+    }
+
+    @Override
+    public void close(boolean expunge) {
+      open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public Flags getPermanentFlags() {
+      return new Flags();
+    }
+
+    @Override
+    public int getMessageCount() {
+      return messages.length;
+    }
+
+    @Override
+    public Message getMessage(int number) {
+      assertTrue(open);
+      return messages[number - 1];
+    }
+
+    @Override
+    public void fetch(Message msgs[], FetchProfile fp) {
+      fetched.add(msgs.length);
+    }
+
+    @Override
+    public void appendMessages(Message msgs[]) throws MessagingException {
+      throw new MessagingException("read-only");
+    }
+
+    @Override
+    public Message[] expunge() throws MessagingException {
+      throw new MessagingException("read-only");
+    }
+  }
+
+  @Test
+  public void testMaildir() throws Exception {
+    File maildir = new File(dir, "maildir");
+    for (int i = 0; i < SAMPLES.length; i++)
+      FileUtils.writeByteArrayToFile(new File(maildir, (i == 0 ? "new/" : "cur/") + (1760000000 + i) + ".M1P1.host"), _sample(SAMPLES[i]));
+    new File(maildir, "tmp").mkdirs();
+
+    File out = new File(dir, "xml");
+    assertEquals(SAMPLES.length, new MailboxMarshaller(SESSION, executor).marshalFiles(maildir, out));
+    for (int i = 0; i < SAMPLES.length; i++) {
+      File file = new File(out, String.format("mail-%06d.xml", i + 1));
+      assertTrue(SAMPLES[i], _expected(SAMPLES[i]).isEqualNode(_parse(FileUtils.readFileToByteArray(file))));
+    }
+  }
+}
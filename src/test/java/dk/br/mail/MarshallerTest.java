@@ -3,16 +3,27 @@ package dk.br.mail;
 import com.icegreen.greenmail.user.GreenMailUser;
 import com.icegreen.greenmail.util.GreenMail;
 import com.icegreen.greenmail.util.ServerSetupTest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.Properties;
+import java.util.Random;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Assert;
 import static org.junit.Assert.*;
@@ -21,6 +32,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 /**
  *
@@ -62,6 +74,84 @@ public class MarshallerTest
         testSample(_sample("dk/br/mail/html-with-attachment.eml"));
     }
 
+    @Test
+    public void testStreamed() throws Exception {
+        for (String sample : new String[] { "simple", "html-and-image", "html-with-attachment" }) {
+            MimeMessage msg = loadMessage(_sample("dk/br/mail/" + sample + ".eml"));
+            ByteArrayOutputStream dom = new ByteArrayOutputStream();
+            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(MailMessageMarshaller.marshal(msg)), new StreamResult(dom));
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            MailMessageMarshaller.marshal(msg, streamed);
+
+            // The same XML, but for base64 content in CDATA sections of a chunk each:
+            Element expected = _coalesced(dom.toByteArray());
+            Element actual = _coalesced(streamed.toByteArray());
+            assertTrue(sample, expected.isEqualNode(actual));
+        }
+    }
+
+    @Test
+    public void testBase64Chunks() throws Exception {
+        for (int length : new int[] { 0, 1, 57, 57 * 1024, 57 * 1024 + 1, 200 * 1024 }) {
+            byte content[] = new byte[length];
+            new Random(length).nextBytes(content);
+            StringWriter xml = new StringWriter();
+            XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(xml);
+            w.writeStartElement("content");
+            MailMessageMarshaller.writeBase64(w, new ByteArrayInputStream(content));
+            w.writeEndElement();
+            w.close();
+
+            String expected = new String(Base64.encodeBase64(content, true), "US-ASCII").replace("\r\n", "\n");
+            assertEquals(length + " bytes", expected, _coalesced(xml.toString().getBytes("UTF-8")).getTextContent());
+        }
+    }
+
+    @Test
+    public void testBlobs() throws Exception {
+        File dir = Files.createTempDirectory("blobs").toFile();
+        BlobDirectory blobs = new BlobDirectory(dir);
+        MimeMessage msg = loadMessage(_sample("dk/br/mail/html-with-attachment.eml"));
+        Document doc = MailMessageMarshaller.marshal(msg, blobs);
+        Element attachment = (Element)doc.getElementsByTagName("attachment").item(0);
+        assertTrue(attachment.getAttribute("src"), attachment.getAttribute("src").startsWith("blob:"));
+        assertEquals("", attachment.getTextContent());
+        int stored = FileUtils.listFiles(dir, null, true).size();
+
+        // Stored once, however often archived:
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        MailMessageMarshaller.marshal(msg, streamed, blobs);
+        assertEquals(stored, FileUtils.listFiles(dir, null, true).size());
+        assertTrue(_coalesced(streamed.toByteArray()).isEqualNode(_coalesced(_serialized(doc))));
+
+        MailPartData.setBlobDirectory(blobs);
+        try {
+            MailMessageData mail = MailMessageParser.parseMail(doc.getDocumentElement());
+            MailMessageData inlined = MailMessageParser.parseMail(MailMessageMarshaller.marshal(msg).getDocumentElement());
+            assertArrayEquals(IOUtils.toByteArray(inlined.getAttachments().get(0).getDataHandler().getInputStream()),
+                              IOUtils.toByteArray(mail.getAttachments().get(0).getDataHandler().getInputStream()));
+        }
+        finally {
+            MailPartData.setBlobDirectory(null);
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static byte[] _serialized(Document doc) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(bos));
+        return bos.toByteArray();
+    }
+
+    private static Element _coalesced(byte xml[]) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        dbf.setCoalescing(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        doc.normalizeDocument();
+        return doc.getDocumentElement();
+    }
+
 /*  @Test
     public void testComplex() throws Exception {
         testSample(_sample("dk/br/mail/complex.eml"));
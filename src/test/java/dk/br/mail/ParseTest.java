@@ -1,11 +1,31 @@
 package dk.br.mail;
 
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.mail.MessagingException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import org.apache.commons.io.FileUtils;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -13,6 +33,8 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 /**
@@ -47,6 +69,188 @@ public class ParseTest
     testMailParser("mail-merge-sample.xml");
   }
 
+  @Test
+  public void testStreamedMails() throws IOException {
+    MailMessageData parsed[] = testMailParser("OnlineOverbidNotification-mail_ws.xml");
+
+    List<MailMessageData> streamed = new ArrayList();
+    try (InputStream is = getClass().getResourceAsStream("OnlineOverbidNotification-mail_ws.xml")) {
+      Iterator<MailMessageData> mails = MailMessageParser.streamMails(is);
+      while (mails.hasNext())
+        streamed.add(mails.next());
+    }
+
+    assertEquals(parsed.length, streamed.size());
+    assertEquals(parsed[0].getSubject(), streamed.get(0).getSubject());
+
+    // List-level <tag>s must reach the links, as with the DOM parser:
+    assertTrue(streamed.get(0).getHtmlBody().contains("utm_source=overbid-notify"));
+  }
+
+  @Test
+  public void testTransformedMails() throws IOException, TransformerException {
+    MailMessageData parsed[] = testMailParser("mail-merge-sample.xml");
+
+    final List<MailMessageData> received = new ArrayList();
+    try (InputStream is = getClass().getResourceAsStream("mail-merge-sample.xml")) {
+      TransformerFactory.newInstance().newTransformer().transform(new StreamSource(is), MailMessageParser.saxResult(received::add));
+    }
+
+    assertEquals(parsed.length, received.size());
+    assertEquals(parsed[0].getSubject(), received.get(0).getSubject());
+    assertEquals(parsed[0].getFirstRecipient(), received.get(0).getFirstRecipient());
+  }
+
+  @Test
+  public void testTransformedAttributes() throws IOException, TransformerException {
+    // An attribute named as the value of the attribute before it:
+    String xml = "<email><subject>Attributes</subject><header value=\"name\" name=\"X-Test\"/></email>";
+
+    final List<MailMessageData> received = new ArrayList();
+    TransformerFactory.newInstance().newTransformer().transform(new StreamSource(new StringReader(xml)), MailMessageParser.saxResult(received::add));
+
+    assertEquals(1, received.size());
+    assertEquals("name", received.get(0).getCustomHeader("X-Test"));
+  }
+
+  @Test
+  public void testSharedEngine() throws IOException {
+    Properties config = new Properties();
+    config.setProperty("mail.tracking.header", "X-Test-Tracking");
+    config.setProperty("mail.tracking.token.length", "16");
+    MailParserEngine engine = new MailParserEngine(MailParserConfig.from(config));
+
+    for (int i = 0; i < 3; i++) {
+      Document doc = parse(getClass().getResource("OnlineOverbidNotification-mail.xml"));
+      MailMessageData mails[] = engine.parseMails(doc);
+      assertEquals(1, mails.length);
+      assertEquals(16, mails[0].getCustomHeader("X-Test-Tracking").length());
+    }
+  }
+
+  @Test
+  public void testConfigRecovery() throws IOException, InterruptedException {
+    File file = File.createTempFile("mail-parser-config", ".properties");
+    file.delete();
+    try {
+      // Built-in defaults, until the configuration turns up:
+      MailParserEngine engine = MailParserEngine.watching(file.toURI().toURL(), 1);
+      assertEquals("X-BR-Tracking-ID", engine.getConfig().getTrackingHeaderName());
+
+      FileUtils.writeStringToFile(file, "mail.tracking.header=X-Test-Tracking\n", "ISO-8859-1");
+      Thread.sleep(10);
+      assertEquals("X-Test-Tracking", engine.getConfig().getTrackingHeaderName());
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testConfigPolledOverHttp() throws IOException, InterruptedException {
+    final List<String> methods = Collections.synchronizedList(new ArrayList());
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      methods.add(exchange.getRequestMethod());
+      byte content[] = "mail.tracking.header=X-Test-Tracking\n".getBytes("ISO-8859-1");
+      exchange.getResponseHeaders().set("Last-Modified", "Thu, 01 Jan 2026 00:00:00 GMT");
+      exchange.sendResponseHeaders(200, "HEAD".equals(exchange.getRequestMethod()) ? -1 : content.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        if (!"HEAD".equals(exchange.getRequestMethod()))
+          os.write(content);
+      }
+    });
+    server.start();
+    try {
+      MailParserEngine engine = MailParserEngine.watching(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/config.properties"), 1);
+      for (int i = 0; i < 3; i++) {
+        Thread.sleep(10);
+        assertEquals("X-Test-Tracking", engine.getConfig().getTrackingHeaderName());
+      }
+      // Loaded once, its modification time polled for without the content:
+      assertEquals(1, Collections.frequency(methods, "GET"));
+      assertEquals(methods.size() - 1, Collections.frequency(methods, "HEAD"));
+    }
+    finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testParallelMails() throws IOException {
+    // Make a batch of numbered copies of the same mail:
+    Document doc = parse(getClass().getResource("OnlineOverbidNotification-mail_ws.xml"));
+    Element list = doc.getDocumentElement();
+    Node mail = list.getElementsByTagName("email").item(0);
+    for (int i = 1; i <= 12; i++) {
+      Element copy = (Element)mail.cloneNode(true);
+      copy.getElementsByTagName("subject").item(0).setTextContent("Mail #" + i);
+      list.appendChild(copy);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      MailMessageData mails[] = MailMessageParser.parseMails(doc, executor);
+      assertEquals(13, mails.length);
+      for (int i = 1; i <= 12; i++) {
+        assertEquals("Mail #" + i, mails[i].getSubject());
+        assertTrue(mails[i].getHtmlBody().contains("utm_source=overbid-notify"));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testInkyCache() throws IOException {
+    MailParserEngine engine = new MailParserEngine(MailParserConfig.from(new Properties()));
+    InkyCache cache = engine.getInkyCache();
+
+    List<MailMessageData> mails = new ArrayList();
+    for (int i = 0; i < 3; i++)
+      mails.addAll(Arrays.asList(engine.parseMails(parse(getClass().getResource("OnlineOverbidNotification-mail_ws.xml")))));
+
+    assertEquals(1, cache.getMissCount());
+    assertEquals(2, cache.getHitCount());
+
+    // Each mail still carries its own tracking token:
+    for (MailMessageData mail : mails) {
+      String token = mail.getCustomHeader("X-BR-Tracking-ID");
+      assertTrue(mail.getHtmlBody().contains("track-id=" + token));
+    }
+  }
+
+  @Test
+  public void testTemplate() throws IOException, MessagingException {
+    Document doc = parse(getClass().getResource("OnlineOverbidNotification-mail_ws.xml"));
+    Element mail = (Element)doc.getElementsByTagName("email").item(0);
+    mail.getElementsByTagName("subject").item(0).setTextContent("Til ${name}");
+    Element to = (Element)mail.getElementsByTagName("to").item(0);
+    to.getElementsByTagName("personal").item(0).setTextContent("${name}");
+    to.getElementsByTagName("email-address").item(0).setTextContent("${email}");
+
+    MailTemplate template = MailMessageParser.compileTemplate(mail);
+
+    Map<String,String> fields = new HashMap();
+    fields.put("name", "Jane <Doe>");
+    fields.put("email", "jane@example.com");
+    MailMessageData jane = template.render(fields);
+    fields.put("name", "John");
+    fields.put("email", "john@example.com");
+    MailMessageData john = template.render(fields);
+
+    assertEquals("Til Jane <Doe>", jane.getSubject());
+    assertEquals("Til John", john.getSubject());
+    assertEquals("jane@example.com", jane.getFirstRecipient().getAddress());
+    assertEquals("john@example.com", john.getFirstRecipient().getAddress());
+    assertFalse(jane.getCustomHeader("X-BR-Tracking-ID").equals(john.getCustomHeader("X-BR-Tracking-ID")));
+    assertFalse(jane.getHtmlBody().contains("${"));
+
+    // Tracked links differ by recipient:
+    assertNull(template.shareBody(true));
+  }
+
   private MailMessageData[] testMailParser(String resource) throws IOException {
     assertNotNull(resource);
 
@@ -0,0 +1,138 @@
+package dk.br.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.mail.MessagingException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Parts too large to keep on the heap.
+ *
+ * @author osa
+ */
+public class PartDataTest
+{
+  private final static int LARGE = 3 * 1024 * 1024;
+
+  private static byte[] _content(int length) {
+    byte content[] = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+
+  private static byte[] _read(MailPartSource part) throws IOException, MessagingException {
+    return IOUtils.toByteArray(part.getDataHandler().getInputStream());
+  }
+
+  @Before
+  public void setUp() {
+    MailPartData.setSpillThreshold(1024 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    MailPartData.setSpillThreshold(0);
+    MailPartData.setSpillByReference(false);
+  }
+
+  private static MailPartData _copy(MailPartData part) throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(part);
+    }
+    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+      return (MailPartData)ois.readObject();
+    }
+  }
+
+  @Test
+  public void testSpill() throws IOException, MessagingException, ClassNotFoundException {
+    byte small[] = _content(1000);
+    MailPartData smallPart = MailPartData.read("application/pdf", "small.pdf", new ByteArrayInputStream(small));
+    assertFalse(smallPart.toString().contains("mapped"));
+    assertArrayEquals(small, _read(smallPart));
+
+    byte large[] = _content(LARGE);
+    MailPartData largePart = MailPartData.fromBase64("application/pdf", "large.pdf", Base64.encodeBase64String(large));
+    assertTrue(largePart.toString(), largePart.toString().contains("mapped"));
+    assertArrayEquals(large, _read(largePart));
+    assertEquals(MailPartData.from("application/pdf", "other.pdf", large).contentKey(), largePart.contentKey());
+
+    // Serialized with its content, for any host to read:
+    MailPartData copy = _copy(largePart);
+    assertFalse(copy.toString(), copy.toString().contains("mapped"));
+    assertArrayEquals(large, _read(copy));
+  }
+
+  @Test
+  public void testSpillByReference() throws IOException, MessagingException, ClassNotFoundException {
+    byte large[] = _content(LARGE);
+    MailPartData largePart = MailPartData.read("application/pdf", "large.pdf", new ByteArrayInputStream(large));
+    assertTrue(largePart.toString(), largePart.toString().contains("mapped"));
+
+    MailPartData.setSpillByReference(true);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+      oos.writeObject(largePart);
+    }
+    assertTrue(bos.size() + " bytes", bos.size() < 4096);
+    MailPartData copy = _copy(largePart);
+    assertEquals(largePart, copy);
+    assertArrayEquals(large, _read(copy));
+  }
+
+  @Test
+  public void testSpillFileRemoved() throws IOException, MessagingException, ClassNotFoundException {
+    byte large[] = _content(LARGE + 2);
+    MailPartData largePart = MailPartData.read("application/pdf", "large.pdf", new ByteArrayInputStream(large));
+    MailPartData.setSpillByReference(true);
+    MailPartData copy = _copy(largePart);
+
+    // As if removed by the trimming of the spill directory:
+    String s = largePart.toString();
+    File file = new File(s.substring(s.indexOf("mapped from ") + "mapped from ".length(), s.length() - 1));
+    assertTrue(file.delete());
+
+    MailPartData renamed = largePart.rename("application/pdf", "renamed.pdf");
+    assertEquals(LARGE + 2, renamed.length());
+    assertArrayEquals(large, _read(renamed));
+    assertArrayEquals(large, _read(copy));
+  }
+
+  @Test
+  public void testNoSpill() throws IOException, MessagingException {
+    MailPartData.setSpillThreshold(0);
+    byte large[] = _content(LARGE);
+    MailPartData largePart = MailPartData.read("application/pdf", "large.pdf", new ByteArrayInputStream(large));
+    assertFalse(largePart.toString(), largePart.toString().contains("mapped"));
+    assertArrayEquals(large, _read(largePart));
+  }
+
+  @Test
+  public void testMappedFile() throws IOException, MessagingException {
+    byte large[] = _content(LARGE + 1);
+    File file = File.createTempFile("catalogue", ".pdf");
+    try {
+      FileUtils.writeByteArrayToFile(file, large);
+      MailPartData part = MailPartData.from(file.toURI().toString());
+      assertTrue(part.toString(), part.toString().contains("mapped from " + file));
+      assertTrue(Arrays.equals(large, _read(part)));
+    }
+    finally {
+      file.delete();
+    }
+  }
+}
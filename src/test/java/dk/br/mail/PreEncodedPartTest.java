@@ -0,0 +1,72 @@
+package dk.br.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.mail.MessagingException;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Parts transfer-encoded once.
+ *
+ * @author osa
+ */
+public class PreEncodedPartTest
+{
+  private static String _encoded(PreEncodedPart part) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    part.writeTo(bos);
+    return bos.toString("US-ASCII");
+  }
+
+  @Test
+  public void testAscii() throws IOException, MessagingException {
+    PreEncodedPart part = PreEncodedPart.text("Se dine resultater", "text/plain");
+    assertEquals("7bit", part.getEncoding());
+    assertEquals("Se dine resultater", _encoded(part));
+    assertTrue(part.encodes("Se dine resultater"));
+    assertFalse(part.encodes("Se dine resultater!"));
+  }
+
+  @Test
+  public void testMostlyAscii() throws IOException, MessagingException {
+    PreEncodedPart part = PreEncodedPart.text("Resultat fra din søgeagent", "text/plain; charset=UTF-8");
+    assertEquals("quoted-printable", part.getEncoding());
+    assertEquals("Resultat fra din s=C3=B8geagent", _encoded(part));
+  }
+
+  @Test
+  public void testBinary() throws IOException, MessagingException {
+    byte content[] = new byte[1000];
+    new Random(1000).nextBytes(content);
+    PreEncodedPart part = PreEncodedPart.of(MailPartData.from("image/png", "logo.png", content)._source());
+    assertEquals("base64", part.getEncoding());
+    assertEquals("logo.png", part.getName());
+    assertEquals("image/png", part.getContentType());
+    for (String line : _encoded(part).split("\r\n"))
+      assertTrue(line.length() + " characters", line.length() <= 76);
+  }
+
+  @Test
+  public void testQuotedPrintable() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      sb.append('x');
+    String qp = new String(PreEncodedPart.quotedPrintable((sb + " \nen = to \r\n").getBytes("US-ASCII")), "US-ASCII");
+    String lines[] = qp.split("\r\n");
+    // Soft line breaks keep lines to 76 characters, the "=" included:
+    assertEquals(76, lines[0].length());
+    assertTrue(lines[0].endsWith("="));
+    // Whitespace at the end of a line is encoded:
+    assertEquals(sb.substring(75) + "=20", lines[1]);
+    assertEquals("en =3D to=20", lines[2]);
+  }
+
+  @Test
+  public void testEncodedOnce() throws IOException, MessagingException {
+    MailPartData part = MailPartData.from("application/pdf", "vilkaar.pdf", new byte[] { 0, 1, 2 });
+    assertSame(part.preEncoded(), part.preEncoded());
+  }
+}
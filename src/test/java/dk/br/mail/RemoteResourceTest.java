@@ -0,0 +1,602 @@
+package dk.br.mail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Fetching of remote resources, against a local HTTP server.
+ *
+ * @author osa
+ */
+public class RemoteResourceTest
+{
+  private HttpServer server;
+  private String baseUrl;
+
+  private final Map<String,AtomicInteger> hits = new ConcurrentHashMap();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger maxActive = new AtomicInteger();
+  private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger notModified = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/", this::serve);
+    server.createContext("/gzip/", this::serveGzip);
+    server.createContext("/redirect/", this::serveRedirect);
+    server.createContext("/etag/", this::serveEtag);
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    if (path.startsWith("/missing")) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+    try {
+      Thread.sleep(50);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      // Done before responding, as the client may go on with its next request right after:
+      active.decrementAndGet();
+    }
+
+    // Everything under "/shared/" is the same:
+    byte content[] = (path.startsWith("/shared/") ? "shared content" : "content of " + path).getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "image/png");
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(content);
+    }
+  }
+
+  private void serveGzip(HttpExchange exchange) throws IOException {
+    clientPorts.add(exchange.getRemoteAddress().getPort());
+    String path = exchange.getRequestURI().getPath();
+    hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+    IOUtils.toByteArray(exchange.getRequestBody());
+
+    byte content[] = ("content of " + path).getBytes("UTF-8");
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      exchange.sendResponseHeaders(200, 0);
+      try (OutputStream os = new GZIPOutputStream(exchange.getResponseBody())) {
+        os.write(content);
+      }
+    }
+    else {
+      exchange.sendResponseHeaders(200, content.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(content);
+      }
+    }
+  }
+
+  private void serveRedirect(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+    // "/redirect/moved/..." permanently, otherwise temporarily:
+    boolean moved = path.startsWith("/redirect/moved/");
+    exchange.getResponseHeaders().set("Location", "/gzip/" + path.substring((moved ? "/redirect/moved/" : "/redirect/").length()));
+    byte content[] = "moved".getBytes("UTF-8");
+    exchange.sendResponseHeaders(moved ? 301 : 302, content.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(content);
+    }
+  }
+
+  private void serveEtag(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    hits.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+    if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      notModified.incrementAndGet();
+      exchange.sendResponseHeaders(304, -1);
+      exchange.getResponseBody().close();
+      return;
+    }
+
+    byte content[] = ("content of " + path).getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "image/png");
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(content);
+    }
+  }
+
+  private static String _fetch(ResourceFetcher fetcher, String url) throws IOException {
+    try (FetchResult res = fetcher.fetch(new URL(url))) {
+      assertNull(res.getContentEncoding());
+      try (InputStream is = res.getContent()) {
+        return IOUtils.toString(is, "UTF-8");
+      }
+    }
+  }
+
+  @Test
+  public void testPrefetch() throws IOException, MessagingException {
+    // Ten mails, sharing eight images between them:
+    List<MailMessageData> mails = new ArrayList();
+    for (int i = 0; i < 10; i++) {
+      MailMessageData mail = new MailMessageData();
+      for (int j = 0; j < 5; j++)
+        mail.addRelatedBodyPart("part." + j, MailPartData.from(baseUrl + "/prefetch/" + (i + j) % 8 + ".png"));
+      mails.add(mail);
+    }
+
+    assertEquals(8, new ResourcePrefetcher(2).prefetch(mails));
+    assertEquals(8, hits.size());
+    for (AtomicInteger count : hits.values())
+      assertEquals(1, count.get());
+    assertTrue("at most 2 concurrent requests: " + maxActive.get(), maxActive.get() <= 2);
+
+    // Composing finds them in the cache:
+    for (MailPartSource part : mails.get(0).getRelatedBodyParts().values())
+      assertNotNull(part.getDataHandler());
+    for (AtomicInteger count : hits.values())
+      assertEquals(1, count.get());
+  }
+
+  @Test
+  public void testSharedContent() throws IOException, MessagingException {
+    MailPartData a = MailPartData.from(baseUrl + "/shared/a.png").resolve();
+    MailPartData b = MailPartData.from(baseUrl + "/shared/b.png").resolve();
+    MailPartData c = MailPartData.from(baseUrl + "/other/c.png").resolve();
+    assertEquals(a.contentKey(), b.contentKey());
+    assertFalse(a.contentKey().equals(c.contentKey()));
+
+    // Parts of the same content share one copy of it:
+    byte content[] = "same bytes".getBytes("UTF-8");
+    byte digest[] = PartStore.digest(content);
+    assertSame(content, PartStore.intern(digest, content));
+    assertSame(content, PartStore.intern(digest, content.clone()));
+    assertEquals(MailPartData.from("image/png", "d1.png", content).contentKey(), MailPartData.from("image/png", "d2.png", content.clone()).contentKey());
+
+    // Within a mail, they go in once, under the Content-ID of the one added first:
+    MailMessageData mail = new MailMessageData();
+    mail.setHtmlBody("<img src=\"cid:part.1\"><img src=\"cid:part.2\"><img src=\"cid:part.12\">");
+    mail.addRelatedBodyPart("part.1", MailPartData.from(baseUrl + "/shared/1.png"));
+    mail.addRelatedBodyPart("part.2", MailPartData.from(baseUrl + "/shared/2.png"));
+    mail.addRelatedBodyPart("part.12", MailPartData.from(baseUrl + "/other/12.png"));
+    MimeMessage msg = mail.compose(Session.getInstance(new Properties()), false);
+    msg.saveChanges();
+
+    MimeMultipart related = (MimeMultipart)msg.getContent();
+    assertEquals(3, related.getCount());
+    BodyPart html = related.getBodyPart(0);
+    assertEquals("<img src=\"cid:part.1\"><img src=\"cid:part.1\"><img src=\"cid:part.12\">", html.getContent());
+    assertArrayEquals(new String[] { "<part.1>" }, related.getBodyPart(1).getHeader("Content-ID"));
+    assertArrayEquals(new String[] { "<part.12>" }, related.getBodyPart(2).getHeader("Content-ID"));
+
+    mail = new MailMessageData();
+    mail.setHtmlBody("<img src=\"cid:part.1\"><img src=\"cid:part.2\">");
+    mail.addRelatedBodyPart("part.2", MailPartData.from(baseUrl + "/shared/2.png"));
+    mail.addRelatedBodyPart("part.1", MailPartData.from(baseUrl + "/shared/1.png"));
+    msg = mail.compose(Session.getInstance(new Properties()), false);
+    msg.saveChanges();
+
+    related = (MimeMultipart)msg.getContent();
+    assertEquals(2, related.getCount());
+    assertEquals("<img src=\"cid:part.2\"><img src=\"cid:part.2\">", related.getBodyPart(0).getContent());
+    assertArrayEquals(new String[] { "<part.2>" }, related.getBodyPart(1).getHeader("Content-ID"));
+  }
+
+  @Test
+  public void testPooledFetcher() throws Exception {
+    ResourceFetcher fetcher = new PooledHttpFetcher(2, 5000, 5000);
+
+    // Decoded on the fly, and following redirects:
+    assertEquals("content of /gzip/a.png", _fetch(fetcher, baseUrl + "/gzip/a.png"));
+    assertEquals("content of /gzip/b.png", _fetch(fetcher, baseUrl + "/redirect/b.png"));
+
+    // Kept alive:
+    for (int i = 0; i < 10; i++)
+      _fetch(fetcher, baseUrl + "/gzip/" + i + ".png");
+    assertEquals(clientPorts.toString(), 1, clientPorts.size());
+
+    // No more than 2 connections to a host at a time:
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList();
+      for (int i = 0; i < 8; i++) {
+        String url = baseUrl + "/slow/" + i + ".png";
+        results.add(executor.submit((Callable<String>)() -> _fetch(fetcher, url)));
+      }
+      for (int i = 0; i < 8; i++)
+        assertEquals("content of /slow/" + i + ".png", results.get(i).get());
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertTrue("at most 2 concurrent requests: " + maxActive.get(), maxActive.get() <= 2);
+
+    // Failing:
+    try {
+      _fetch(fetcher, baseUrl + "/missing.png");
+      fail("fetched missing resource");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDefaultFetcher() throws IOException {
+    ResourceFetcher fetcher = new UrlConnectionFetcher();
+    assertEquals("content of /gzip/b.png", _fetch(fetcher, baseUrl + "/redirect/b.png"));
+  }
+
+  @Test
+  public void testResourceCache() throws InterruptedException {
+    // Room for 3 resources of 1000 bytes, with overhead:
+    ResourceCache cache = new ResourceCache(5000, 60000);
+    MailPartData logo = MailPartData.from("image/png", "logo.png", new byte[1000]);
+    cache.put("logo", logo);
+    assertSame(logo, cache.get("logo"));
+
+    // A scan of resources used once leaves the one used twice:
+    for (int i = 0; i < 20; i++)
+      cache.put("once." + i, MailPartData.from("image/png", "once.png", new byte[1000 + i]));
+    assertSame(logo, cache.get("logo"));
+    assertNull(cache.get("once.0"));
+    assertNotNull(cache.get("once.19"));
+    assertTrue(cache.toString(), cache.getBytes() <= 5000);
+    assertEquals(3, cache.size());
+    assertEquals(18, cache.getEvictionCount());
+    assertEquals(3, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // Too large to keep:
+    cache.put("large", MailPartData.from("application/pdf", "large.pdf", new byte[5000]));
+    assertNull(cache.get("large"));
+
+    // Expired:
+    cache = new ResourceCache(5000, 10);
+    cache.put("logo", logo);
+    Thread.sleep(20);
+    assertNull(cache.get("logo"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    // Eight threads composing with the same image at once:
+    MailPartData part = MailPartData.from(baseUrl + "/single-flight/logo.png");
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<MailPartData>> results = new ArrayList();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return part.resolve();
+        }));
+      }
+      start.countDown();
+      MailPartData first = results.get(0).get();
+      for (Future<MailPartData> result : results)
+        assertSame(first, result.get());
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(1, hits.get("/single-flight/logo.png").get());
+  }
+
+  @Test
+  public void testCacheBusting() throws IOException, MessagingException {
+    MailPartData part = MailPartData.from(baseUrl + "/busted/logo.png?t=$TS$");
+    int entries = MailPartData.getResourceCache().size();
+    MailPartData first = part.resolve();
+    assertSame(first, part.resolve());
+    assertSame(first, MailPartData.from(baseUrl + "/busted/logo.png?t=$TS$").resolve());
+    assertEquals(1, hits.get("/busted/logo.png").get());
+    assertEquals(entries + 1, MailPartData.getResourceCache().size());
+  }
+
+  @Test
+  public void testConditionalFetch() throws IOException {
+    for (ResourceFetcher fetcher : new ResourceFetcher[] { new UrlConnectionFetcher(), new PooledHttpFetcher(2, 5000, 5000) }) {
+      URL url = new URL(baseUrl + "/etag/" + fetcher.getClass().getSimpleName() + ".png");
+      String etag;
+      try (FetchResult res = fetcher.fetch(url)) {
+        assertFalse(res.isNotModified());
+        etag = res.getETag();
+      }
+      assertEquals("\"v1\"", etag);
+      try (FetchResult res = fetcher.fetch(url, etag, null)) {
+        assertTrue(res.isNotModified());
+      }
+
+      // Straight to the target of a permanent redirect:
+      String moved = "/redirect/moved/" + fetcher.getClass().getSimpleName() + ".png";
+      for (int i = 0; i < 3; i++)
+        assertEquals("content of /gzip/" + fetcher.getClass().getSimpleName() + ".png", _fetch(fetcher, baseUrl + moved));
+      assertEquals(1, hits.get(moved).get());
+    }
+    assertEquals(2, notModified.get());
+  }
+
+  @Test
+  public void testStaleWhileRevalidate() throws Exception {
+    ResourceCache was = MailPartData.getResourceCache();
+    ResourceCache cache = new ResourceCache(1024 * 1024, 200, 60000);
+    MailPartData.setResourceCache(cache);
+    try {
+      MailPartData part = MailPartData.from(baseUrl + "/etag/stale.png");
+      MailPartData first = part.resolve();
+      assertSame(first, part.resolve());
+      Thread.sleep(300);
+
+      // Served stale at once, while revalidated in the background:
+      assertSame(first, part.resolve());
+      for (int i = 0; i < 100 && cache.getRevalidationCount() == 0; i++)
+        Thread.sleep(20);
+      assertEquals(1, cache.getRevalidationCount());
+      assertEquals(1, notModified.get());
+
+      assertSame(first, part.resolve());
+      assertEquals(2, hits.get("/etag/stale.png").get());
+      assertEquals(2, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+      assertEquals(1, cache.getStaleHitCount());
+    }
+    finally {
+      MailPartData.setResourceCache(was);
+    }
+  }
+
+  @Test
+  public void testDiskCacheWarmUp() throws IOException, MessagingException {
+    ResourceCache was = MailPartData.getResourceCache();
+    File dir = Files.createTempDirectory("disk-cache").toFile();
+    try {
+      MailPartData.setResourceCache(new ResourceCache(1024 * 1024, 60000, 60000));
+      try (DiskResourceCache disk = new DiskResourceCache(dir, 1024 * 1024)) {
+        MailPartData.setDiskCache(disk);
+        MailPartData.from(baseUrl + "/warm/logo.png").resolve();
+        MailPartData.from(baseUrl + "/etag/banner.png").resolve();
+        assertEquals(2, disk.size());
+      }
+
+      // As if restarted:
+      ResourceCache cache = new ResourceCache(1024 * 1024, 60000, 60000);
+      MailPartData.setResourceCache(cache);
+      try (DiskResourceCache disk = new DiskResourceCache(dir, 1024 * 1024)) {
+        MailPartData.setDiskCache(disk);
+        assertEquals(2, MailPartData.warmUp());
+        assertEquals(2, cache.size());
+
+        MailPartData logo = MailPartData.from(baseUrl + "/warm/logo.png").resolve();
+        assertEquals("content of /warm/logo.png", IOUtils.toString(logo.getDataHandler().getInputStream(), "UTF-8"));
+        MailPartData.from(baseUrl + "/etag/banner.png").resolve();
+        assertEquals(1, hits.get("/warm/logo.png").get());
+        assertEquals(1, hits.get("/etag/banner.png").get());
+        assertEquals(2, cache.getHitCount());
+      }
+    }
+    finally {
+      MailPartData.setDiskCache(null);
+      MailPartData.setResourceCache(was);
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  @Test
+  public void testDiskCacheRevalidation() throws Exception {
+    ResourceCache was = MailPartData.getResourceCache();
+    File dir = Files.createTempDirectory("disk-cache").toFile();
+    try (DiskResourceCache disk = new DiskResourceCache(dir, 1024 * 1024)) {
+      MailPartData.setDiskCache(disk);
+      MailPartData.setResourceCache(new ResourceCache(1024 * 1024, 500, 0));
+      MailPartData.from(baseUrl + "/etag/old.png").resolve();
+
+      // Gone stale on disk, found unchanged by a conditional fetch:
+      ResourceCache cache = new ResourceCache(1024 * 1024, 500, 0);
+      MailPartData.setResourceCache(cache);
+      Thread.sleep(600);
+      MailPartData.from(baseUrl + "/etag/old.png").resolve();
+      assertEquals(1, notModified.get());
+      assertEquals(1, cache.getRevalidationCount());
+      assertEquals(1, disk.getHitCount());
+
+      // Fresh on disk again, as if restarted:
+      MailPartData.setResourceCache(new ResourceCache(1024 * 1024, 500, 0));
+      MailPartData.from(baseUrl + "/etag/old.png").resolve();
+      assertEquals(1, notModified.get());
+      assertEquals(2, hits.get("/etag/old.png").get());
+      assertEquals(2, disk.getHitCount());
+    }
+    finally {
+      MailPartData.setDiskCache(null);
+      MailPartData.setResourceCache(was);
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  private static FetchResult _result(URL url, AtomicInteger closed) {
+    return new FetchResult(url, "image/png", null, new ByteArrayInputStream(new byte[0]) {
+      @Override
+      public void close() {
+        closed.incrementAndGet();
+      }
+    });
+  }
+
+  @Test
+  public void testNegativeCache() throws IOException {
+    AtomicInteger calls = new AtomicInteger();
+    ResilientFetcher fetcher = new ResilientFetcher(url -> {
+      calls.incrementAndGet();
+      throw new FileNotFoundException(url.toString());
+    }, 60000, 3, 60000, 0);
+
+    for (int i = 0; i < 5; i++) {
+      try {
+        fetcher.fetch(new URL("http://cdn.example.com/missing.png"));
+        fail("fetched missing resource");
+      }
+      catch (IOException ex) {
+        // expected
+      }
+    }
+    assertEquals(1, calls.get());
+    assertEquals(1, fetcher.getFailureCount());
+    // Missing resources don't trip the circuit:
+    assertEquals(ResilientFetcher.Circuit.CLOSED, fetcher.getHostState("cdn.example.com").getCircuit());
+  }
+
+  @Test
+  public void testCircuitBreaker() throws IOException, InterruptedException {
+    AtomicInteger calls = new AtomicInteger();
+    AtomicInteger closed = new AtomicInteger();
+    boolean down[] = { true };
+    ResilientFetcher fetcher = new ResilientFetcher(url -> {
+      calls.incrementAndGet();
+      if (down[0])
+        throw new SocketTimeoutException("read timed out");
+      return _result(url, closed);
+    }, 0, 3, 200, 0);
+
+    for (int i = 0; i < 10; i++) {
+      try {
+        fetcher.fetch(new URL("http://down.example.com/" + i + ".png"));
+        fail("fetched from host that is down");
+      }
+      catch (IOException ex) {
+        // expected
+      }
+    }
+    assertEquals(3, calls.get());
+    ResilientFetcher.HostState state = fetcher.getHostState("down.example.com");
+    assertEquals(ResilientFetcher.Circuit.OPEN, state.getCircuit());
+    assertEquals(3, state.getFailureCount());
+
+    // A trial fetch after a while closes the circuit again:
+    Thread.sleep(250);
+    down[0] = false;
+    fetcher.fetch(new URL("http://down.example.com/up.png")).close();
+    assertEquals(ResilientFetcher.Circuit.CLOSED, fetcher.getHostState("down.example.com").getCircuit());
+    assertEquals(4, calls.get());
+  }
+
+  @Test
+  public void testCircuitTrialFailing() throws IOException, InterruptedException {
+    AtomicInteger calls = new AtomicInteger();
+    AtomicInteger closed = new AtomicInteger();
+    int outcome[] = { 0 };
+    ResilientFetcher fetcher = new ResilientFetcher(url -> {
+      calls.incrementAndGet();
+      if (outcome[0] == 0)
+        throw new SocketTimeoutException("read timed out");
+      if (outcome[0] == 1)
+        throw new IllegalStateException("broken fetcher");
+      return _result(url, closed);
+    }, 0, 1, 200, 0);
+
+    try {
+      fetcher.fetch(new URL("http://flaky.example.com/1.png"));
+      fail("fetched from host that is down");
+    }
+    catch (IOException ex) {
+      // expected
+    }
+    assertEquals(ResilientFetcher.Circuit.OPEN, fetcher.getHostState("flaky.example.com").getCircuit());
+
+    // A trial fetch failing otherwise than by I/O ...
+    Thread.sleep(250);
+    outcome[0] = 1;
+    try {
+      fetcher.fetch(new URL("http://flaky.example.com/2.png"));
+      fail("fetched by broken fetcher");
+    }
+    catch (IllegalStateException ex) {
+      // expected
+    }
+
+    // ... leaves room for the next one:
+    outcome[0] = 2;
+    fetcher.fetch(new URL("http://flaky.example.com/3.png")).close();
+    assertEquals(ResilientFetcher.Circuit.CLOSED, fetcher.getHostState("flaky.example.com").getCircuit());
+    assertEquals(3, calls.get());
+  }
+
+  @Test
+  public void testHedgedRequests() throws IOException {
+    AtomicInteger calls = new AtomicInteger();
+    AtomicInteger closed = new AtomicInteger();
+    ResilientFetcher fetcher = new ResilientFetcher(url -> {
+      // The 21st request is stuck for a while, its hedge is not:
+      if (calls.incrementAndGet() == 21) {
+        try {
+          Thread.sleep(1000);
+        }
+        catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return _result(url, closed);
+    }, 0, 3, 60000, 90);
+
+    for (int i = 0; i < 20; i++)
+      fetcher.fetch(new URL("http://slow.example.com/" + i + ".png")).close();
+
+    long t1 = System.currentTimeMillis();
+    fetcher.fetch(new URL("http://slow.example.com/stuck.png")).close();
+    long t2 = System.currentTimeMillis();
+    assertTrue((t2 - t1) + "ms", t2 - t1 < 500);
+    assertEquals(22, calls.get());
+    assertEquals(1, fetcher.getHostState("slow.example.com").getHedgeCount());
+  }
+}